@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera.benchmarks;
+
+import com.android.devcamera.SharpnessScorer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the per-frame and per-sensor-event code of DevCamera on a plain JVM, to catch CPU
+ * regressions without a device:
+ *
+ *   DevCameraBenchmarks [--warmup-ms N] [--iteration-ms N] [--iterations N] [name filter ...]
+ *
+ * Only benchmarks whose name contains one of the filters are run; all of them if none given.
+ */
+public class DevCameraBenchmarks {
+    public static void main(String[] args) {
+        long warmupMillis = 2000;
+        long iterationMillis = 1000;
+        int iterations = 5;
+        List<String> filters = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--warmup-ms") && i + 1 < args.length) {
+                warmupMillis = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--iteration-ms") && i + 1 < args.length) {
+                iterationMillis = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--iterations") && i + 1 < args.length) {
+                iterations = Integer.parseInt(args[++i]);
+            } else {
+                filters.add(args[i]);
+            }
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<MicroBenchmark> benchmarks = new ArrayList<MicroBenchmark>();
+        benchmarks.add(new NormalizedFaceBenchmark());
+        benchmarks.add(new GyroIntegratorBenchmark());
+        benchmarks.add(new FrameStatsBenchmark());
+        benchmarks.add(new LatencyHistogramBenchmark());
+        benchmarks.add(new ReportStringsBenchmark());
+        benchmarks.add(new YuvToArgbBenchmark(640, 480, 1, false));
+        benchmarks.add(new YuvToArgbBenchmark(640, 480, 1, true));
+        benchmarks.add(new YuvToArgbBenchmark(1920, 1080, 1, false));
+        benchmarks.add(new YuvToArgbBenchmark(1920, 1080, Math.max(2, cores), false));
+        benchmarks.add(new SharpnessScorerBenchmark(640, 480, SharpnessScorer.MAX_SAMPLES));
+        benchmarks.add(new SharpnessScorerBenchmark(1920, 1080, SharpnessScorer.MAX_SAMPLES));
+        benchmarks.add(new SharpnessScorerBenchmark(4032, 3024, SharpnessScorer.MAX_SAMPLES));
+        benchmarks.add(new SharpnessScorerBenchmark(4032, 3024, Integer.MAX_VALUE));
+        benchmarks.add(new MultiFrameMergeBenchmark(1920, 1080, 4, 1));
+        benchmarks.add(new MultiFrameMergeBenchmark(1920, 1080, 4, Math.max(2, cores)));
+        benchmarks.add(new MultiFrameMergeBenchmark(4032, 3024, 4, Math.max(2, cores)));
+        benchmarks.add(new StripedJpegEncodeBenchmark(1920, 1080, 1));
+        benchmarks.add(new StripedJpegEncodeBenchmark(4032, 3024, 1));
+        benchmarks.add(new StripedJpegEncodeBenchmark(4032, 3024, Math.max(2, cores)));
+
+        for (MicroBenchmark b : benchmarks) {
+            if (matches(b.getName(), filters)) {
+                System.out.println(b.run(warmupMillis, iterationMillis, iterations));
+            }
+        }
+    }
+
+    private static boolean matches(String name, List<String> filters) {
+        if (filters.isEmpty()) {
+            return true;
+        }
+        for (String f : filters) {
+            if (name.contains(f)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera.benchmarks;
+
+import com.android.devcamera.FrameDropTracker;
+import com.android.devcamera.FrameStats;
+import com.android.devcamera.FrameTimer;
+
+/**
+ * Per-frame statistics of a 30 fps stream with an occasional dropped frame: the FrameStats
+ * math FrameDataPublisher.publish() runs, and FrameDropTracker bookkeeping for one tracked
+ * output.
+ */
+public class FrameStatsBenchmark extends MicroBenchmark {
+    private static final long FRAME_DURATION = 33333333;
+    private static final int FPS_CALC_LOOKBACK = 15;
+
+    private FrameTimer mTimer;
+    private FrameDropTracker mTracker;
+    private final int mMask = FrameDropTracker.mask(FrameDropTracker.STREAM_PREVIEW)
+            | FrameDropTracker.mask(FrameDropTracker.STREAM_YUV1);
+    private long mFrameNumber;
+    private long mTimestamp;
+
+    public FrameStatsBenchmark() {
+        super("Frame FPS/drop stats");
+    }
+
+    @Override
+    protected void setUp() {
+        mTimer = new FrameTimer(FPS_CALC_LOOKBACK);
+        mTracker = new FrameDropTracker();
+        mTracker.trackImages(FrameDropTracker.STREAM_YUV1);
+        mFrameNumber = 0;
+        mTimestamp = 1;
+    }
+
+    @Override
+    protected long runOnce() {
+        mFrameNumber++;
+        // Drop one frame in a hundred.
+        mTimestamp += mFrameNumber % 100 == 0 ? 2 * FRAME_DURATION : FRAME_DURATION;
+
+        mTracker.onCaptureStarted(mFrameNumber, mTimestamp, mMask);
+        if (mFrameNumber % 50 != 0) {
+            mTracker.onImage(FrameDropTracker.STREAM_YUV1, mTimestamp);
+        }
+
+        float normExposure = FrameStats.normalizedExposure(10000000 + (mFrameNumber & 0xffff));
+        mTimer.addFrame(mTimestamp);
+        float drops = FrameStats.droppedFrames(mTimer, FRAME_DURATION);
+        float fps = FrameStats.displayFps(mTimer);
+        return Float.floatToIntBits(fps + drops + normExposure);
+    }
+}
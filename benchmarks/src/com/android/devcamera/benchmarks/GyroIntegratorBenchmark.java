@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera.benchmarks;
+
+import com.android.devcamera.GyroIntegrator;
+import com.android.devcamera.GyroListener;
+
+/**
+ * One gyro sample through GyroIntegrator: delay line plus integration, as for every
+ * SensorEvent while the gyro display is on.
+ */
+public class GyroIntegratorBenchmark extends MicroBenchmark {
+    // 200 Hz.
+    private static final long SAMPLE_INTERVAL_NANOS = 5000000;
+
+    private GyroIntegrator mIntegrator;
+    private float mLastAngle;
+    private long mTimestamp;
+
+    public GyroIntegratorBenchmark() {
+        super("GyroIntegrator.addSample");
+    }
+
+    @Override
+    protected void setUp() {
+        mIntegrator = new GyroIntegrator(new GyroListener() {
+            @Override
+            public void updateGyroAngles(float[] gyroAngles) {
+                mLastAngle = gyroAngles[0];
+            }
+        });
+        mTimestamp = 1;
+    }
+
+    @Override
+    protected long runOnce() {
+        mTimestamp += SAMPLE_INTERVAL_NANOS;
+        float t = (mTimestamp % 1000000000L) * 1e-9f;
+        mIntegrator.addSample(mTimestamp, 0.1f - t * 0.2f, 0.05f);
+        return Float.floatToIntBits(mLastAngle);
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera.benchmarks;
+
+import com.android.devcamera.LatencyHistogram;
+
+/**
+ * LatencyHistogram.record() of frame intervals around 33 ms, as StreamTiming does per frame.
+ */
+public class LatencyHistogramBenchmark extends MicroBenchmark {
+    private LatencyHistogram mHistogram;
+    private long mSeed;
+
+    public LatencyHistogramBenchmark() {
+        super("LatencyHistogram.record");
+    }
+
+    @Override
+    protected void setUp() {
+        mHistogram = new LatencyHistogram(10000000000L);
+        mSeed = 1;
+    }
+
+    @Override
+    protected long runOnce() {
+        // xorshift, for cheap jitter that the JIT can't predict.
+        mSeed ^= mSeed << 13;
+        mSeed ^= mSeed >>> 7;
+        mSeed ^= mSeed << 17;
+        mHistogram.record(33333333 + (mSeed & 0x3fffff));
+        return mHistogram.getCount();
+    }
+}
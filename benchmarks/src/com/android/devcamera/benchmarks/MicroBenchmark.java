@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera.benchmarks;
+
+/**
+ * One microbenchmark: an operation timed in ns/op over several measurement iterations, after
+ * a warmup long enough for the JIT to compile it. Results of every operation are folded into
+ * a volatile sink so that the JIT can't remove the work.
+ */
+public abstract class MicroBenchmark {
+    private static volatile long sSink;
+
+    // Batches are grown until they take at least this long, to keep System.nanoTime() out
+    // of the measurement of fast operations.
+    private static final long MIN_BATCH_NANOS = 1000000;
+    private static final int MAX_BATCH = 1 << 20;
+
+    private final String mName;
+    // Operations between clock reads.
+    private int mBatch = 1;
+
+    protected MicroBenchmark(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Prepare inputs; called once before warmup.
+     */
+    protected void setUp() {
+    }
+
+    /**
+     * Release resources, e.g. threads; called once after measuring.
+     */
+    protected void tearDown() {
+    }
+
+    /**
+     * Do one operation and return something that depends on its result.
+     */
+    protected abstract long runOnce();
+
+    /**
+     * Warm up for warmupMillis, then measure iterations of iterationMillis each.
+     *
+     * @return One line: mean, standard deviation and best of the per-iteration ns/op.
+     */
+    public String run(long warmupMillis, long iterationMillis, int iterations) {
+        setUp();
+        try {
+            measure(warmupMillis);
+            double[] nsPerOp = new double[iterations];
+            for (int i = 0; i < iterations; i++) {
+                nsPerOp[i] = measure(iterationMillis);
+            }
+            double mean = 0;
+            double best = Double.MAX_VALUE;
+            for (double v : nsPerOp) {
+                mean += v;
+                best = Math.min(best, v);
+            }
+            mean /= iterations;
+            double var = 0;
+            for (double v : nsPerOp) {
+                var += (v - mean) * (v - mean);
+            }
+            double sd = iterations > 1 ? Math.sqrt(var / (iterations - 1)) : 0;
+            return String.format("%-40s %12.1f ns/op +- %8.1f  (best %.1f, %d iterations)",
+                    mName, mean, sd, best, iterations);
+        } finally {
+            tearDown();
+        }
+    }
+
+    // Run batches for about millis; return ns per operation.
+    private double measure(long millis) {
+        long sink = 0;
+        long ops = 0;
+        long start = System.nanoTime();
+        long deadline = start + millis * 1000000L;
+        long now = start;
+        do {
+            long batchStart = now;
+            for (int i = 0; i < mBatch; i++) {
+                sink += runOnce();
+            }
+            ops += mBatch;
+            now = System.nanoTime();
+            if (now - batchStart < MIN_BATCH_NANOS && mBatch < MAX_BATCH) {
+                mBatch *= 2;
+            }
+        } while (now < deadline);
+        sSink += sink;
+        return (double) (now - start) / ops;
+    }
+}
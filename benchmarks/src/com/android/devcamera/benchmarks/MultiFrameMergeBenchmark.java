@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera.benchmarks;
+
+import com.android.devcamera.MultiFrameMerger;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * One multi-frame merge: copy in a burst of synthetic YUV_420 frames (semi-planar chroma, the
+ * same textured scene shifted a few pixels per frame, with noise), align, merge and copy out,
+ * as for every merged shot.
+ */
+public class MultiFrameMergeBenchmark extends MicroBenchmark {
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFrames;
+    private final int mParallelism;
+
+    // Scene: random values on a coarse grid, interpolated.
+    private static final int GRID = 8;
+    private int[] mGrid;
+    private int mGridWidth;
+
+    private MultiFrameMerger mMerger;
+    private ByteBuffer[] mY;
+    private ByteBuffer[] mU;
+    private ByteBuffer[] mV;
+    private ByteBuffer mOutY;
+    private ByteBuffer mOutU;
+    private ByteBuffer mOutV;
+
+    public MultiFrameMergeBenchmark(int width, int height, int frames, int parallelism) {
+        super(String.format("MultiFrameMerge %dx%d %d frames x%d threads",
+                width, height, frames, parallelism));
+        mWidth = width;
+        mHeight = height;
+        mFrames = frames;
+        mParallelism = parallelism;
+    }
+
+    @Override
+    protected void setUp() {
+        mMerger = new MultiFrameMerger(mParallelism, MultiFrameMerger.DEFAULT_NOISE_THRESHOLD);
+        Random random = new Random(0);
+        mGridWidth = mWidth / GRID + 16;
+        mGrid = new int[mGridWidth * (mHeight / GRID + 16)];
+        for (int i = 0; i < mGrid.length; i++) {
+            mGrid[i] = 28 + random.nextInt(200);
+        }
+        mY = new ByteBuffer[mFrames];
+        mU = new ByteBuffer[mFrames];
+        mV = new ByteBuffer[mFrames];
+        for (int f = 0; f < mFrames; f++) {
+            // Hand shake: a few pixels per frame.
+            int sx = 3 * f;
+            int sy = 2 * f;
+            mY[f] = ByteBuffer.allocateDirect(mWidth * mHeight);
+            for (int y = 0; y < mHeight; y++) {
+                for (int x = 0; x < mWidth; x++) {
+                    mY[f].put(y * mWidth + x, (byte) clamp(scene(x + sx, y + sy)
+                            + (int) (random.nextGaussian() * 4)));
+                }
+            }
+            ByteBuffer vu = ByteBuffer.allocateDirect(mWidth * mHeight / 2);
+            for (int i = 0; i < vu.capacity(); i++) {
+                vu.put(i, (byte) (128 + random.nextInt(9) - 4));
+            }
+            mV[f] = vu.duplicate();
+            vu.position(1);
+            mU[f] = vu.slice();
+        }
+        mOutY = ByteBuffer.allocateDirect(mWidth * mHeight);
+        ByteBuffer outVu = ByteBuffer.allocateDirect(mWidth * mHeight / 2);
+        mOutV = outVu.duplicate();
+        outVu.position(1);
+        mOutU = outVu.slice();
+    }
+
+    @Override
+    protected void tearDown() {
+        mMerger.shutdown();
+    }
+
+    @Override
+    protected long runOnce() {
+        mMerger.begin(mWidth, mHeight);
+        for (int f = 0; f < mFrames; f++) {
+            mMerger.setFrame(mY[f], mWidth, 1, mU[f], mV[f], mWidth, 2);
+        }
+        mMerger.merge();
+        mMerger.writeResult(mOutY, mWidth, 1, mOutU, mOutV, mWidth, 2);
+        return mOutY.get(mOutY.capacity() / 2);
+    }
+
+    // Bilinear interpolation of the grid; not periodic, so alignment can't lock onto a
+    // wrong repeat.
+    private int scene(int x, int y) {
+        int gx = x / GRID;
+        int gy = y / GRID;
+        int fx = x % GRID;
+        int fy = y % GRID;
+        int o = gy * mGridWidth + gx;
+        int top = mGrid[o] * (GRID - fx) + mGrid[o + 1] * fx;
+        int bottom = mGrid[o + mGridWidth] * (GRID - fx) + mGrid[o + mGridWidth + 1] * fx;
+        return (top * (GRID - fy) + bottom * fy) / (GRID * GRID);
+    }
+
+    private static int clamp(int v) {
+        return Math.min(255, Math.max(0, v));
+    }
+}
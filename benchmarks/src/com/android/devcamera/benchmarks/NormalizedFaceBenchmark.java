@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera.benchmarks;
+
+import com.android.devcamera.NormalizedFace;
+
+/**
+ * Face normalization as done for every result in FrameDataPublisher.publish(): construct a
+ * NormalizedFace per detected face and mirror it for the camera orientation.
+ */
+public class NormalizedFaceBenchmark extends MicroBenchmark {
+    private static final int FACES = 5;
+    private static final int ACTIVE_WIDTH = 4000;
+    private static final int ACTIVE_HEIGHT = 3000;
+    // Coordinate layout of FrameMetadata.faceCoords, which can't be built on the host.
+    private static final int FACE_STRIDE = 10;
+
+    private final int[] mCoords = new int[FACES * FACE_STRIDE];
+
+    public NormalizedFaceBenchmark() {
+        super("NormalizedFace x" + FACES + " + mirror");
+    }
+
+    @Override
+    protected void setUp() {
+        for (int f = 0; f < FACES; f++) {
+            int o = f * FACE_STRIDE;
+            int left = 200 + f * 700;
+            int top = 800 + f * 100;
+            mCoords[o] = left;
+            mCoords[o + 1] = top;
+            mCoords[o + 2] = left + 500;
+            mCoords[o + 3] = top + 500;
+            mCoords[o + 4] = left + 150;
+            mCoords[o + 5] = top + 200;
+            mCoords[o + 6] = left + 350;
+            mCoords[o + 7] = top + 200;
+            // Some HALs leave out the mouth.
+            mCoords[o + 8] = f % 2 == 0 ? left + 250 : NormalizedFace.NO_POINT;
+            mCoords[o + 9] = f % 2 == 0 ? top + 400 : NormalizedFace.NO_POINT;
+        }
+    }
+
+    @Override
+    protected long runOnce() {
+        float sum = 0;
+        for (int f = 0; f < FACES; f++) {
+            NormalizedFace face = new NormalizedFace(mCoords, f * FACE_STRIDE,
+                    ACTIVE_WIDTH, ACTIVE_HEIGHT, 0, 0);
+            // Back camera mounted at 270 degrees.
+            face.mirrorInX();
+            face.mirrorInY();
+            sum += face.bounds.left + face.leftEye.y;
+        }
+        return Float.floatToIntBits(sum);
+    }
+}
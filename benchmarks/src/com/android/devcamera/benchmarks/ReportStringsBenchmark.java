@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera.benchmarks;
+
+import com.android.devcamera.ReportStrings;
+
+/**
+ * CameraDeviceReport style string building: a list of stream sizes and a list of modes.
+ */
+public class ReportStringsBenchmark extends MicroBenchmark {
+    private static final int SIZES = 40;
+
+    // Stand-in for android.util.Size, which prints the same way.
+    private static class Size {
+        final int mWidth;
+        final int mHeight;
+
+        Size(int width, int height) {
+            mWidth = width;
+            mHeight = height;
+        }
+
+        @Override
+        public String toString() {
+            return mWidth + "x" + mHeight;
+        }
+    }
+
+    private final Size[] mSizes = new Size[SIZES];
+    private final int[] mModes = {0, 1, 2, 3, 4};
+
+    public ReportStringsBenchmark() {
+        super("ReportStrings " + SIZES + " sizes + modes");
+    }
+
+    @Override
+    protected void setUp() {
+        for (int i = 0; i < SIZES; i++) {
+            mSizes[i] = new Size(4032 - i * 96, 3024 - i * 72);
+        }
+    }
+
+    @Override
+    protected long runOnce() {
+        return ReportStrings.join(mSizes).length() + ReportStrings.join(mModes).length();
+    }
+}
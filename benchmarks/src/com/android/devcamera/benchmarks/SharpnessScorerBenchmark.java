@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera.benchmarks;
+
+import com.android.devcamera.SharpnessScorer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sharpness score of one YUV1 luma plane, as done for every ZSL frame on the camera thread.
+ * With the default sample budget the cost should stay flat as the frame grows; the
+ * "every pixel" variant shows what the budget saves.
+ */
+public class SharpnessScorerBenchmark extends MicroBenchmark {
+    private final int mWidth;
+    private final int mHeight;
+    private final int mMaxSamples;
+
+    private SharpnessScorer mScorer;
+    private ByteBuffer mY;
+
+    public SharpnessScorerBenchmark(int width, int height, int maxSamples) {
+        super(String.format("SharpnessScorer %dx%d %s", width, height,
+                maxSamples == Integer.MAX_VALUE ? "every pixel" : maxSamples + " samples"));
+        mWidth = width;
+        mHeight = height;
+        mMaxSamples = maxSamples;
+    }
+
+    @Override
+    protected void setUp() {
+        mScorer = new SharpnessScorer(mMaxSamples);
+        // Rows padded to 64 bytes, as camera buffers usually are.
+        int rowStride = (mWidth + 63) & ~63;
+        mY = ByteBuffer.allocateDirect(rowStride * mHeight);
+        for (int i = 0; i < mY.capacity(); i++) {
+            mY.put(i, (byte) ((i * 7) ^ (i >> 9)));
+        }
+    }
+
+    @Override
+    protected long runOnce() {
+        int rowStride = (mWidth + 63) & ~63;
+        return (long) mScorer.score(mY, mWidth, mHeight, rowStride, 1);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera.benchmarks;
+
+import com.android.devcamera.StripedJpegEncoder;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Software JPEG of one YUV_420 frame (semi-planar chroma, smooth scene with noise): copy in,
+ * encode the stripes and join them into a reused output buffer, as for every shot without YUV
+ * reprocessing.
+ */
+public class StripedJpegEncodeBenchmark extends MicroBenchmark {
+    private final int mWidth;
+    private final int mHeight;
+    private final int mParallelism;
+
+    private ForkJoinPool mPool;
+    private StripedJpegEncoder mEncoder;
+    private ByteBuffer mY;
+    private ByteBuffer mU;
+    private ByteBuffer mV;
+    private byte[] mOut = new byte[0];
+
+    public StripedJpegEncodeBenchmark(int width, int height, int parallelism) {
+        super(String.format("StripedJpegEncode %dx%d x%d threads", width, height, parallelism));
+        mWidth = width;
+        mHeight = height;
+        mParallelism = parallelism;
+    }
+
+    @Override
+    protected void setUp() {
+        mPool = mParallelism > 1 ? new ForkJoinPool(mParallelism) : null;
+        mEncoder = new StripedJpegEncoder(mPool, StripedJpegEncoder.DEFAULT_QUALITY);
+        Random random = new Random(0);
+        mY = ByteBuffer.allocateDirect(mWidth * mHeight);
+        for (int y = 0; y < mHeight; y++) {
+            for (int x = 0; x < mWidth; x++) {
+                double v = 128 + 60 * Math.sin(x * 0.05) * Math.cos(y * 0.03) + random.nextGaussian() * 4;
+                mY.put(y * mWidth + x, (byte) Math.min(255, Math.max(0, (int) v)));
+            }
+        }
+        ByteBuffer vu = ByteBuffer.allocateDirect(mWidth * mHeight / 2);
+        for (int i = 0; i < vu.capacity(); i++) {
+            vu.put(i, (byte) (128 + random.nextInt(9) - 4));
+        }
+        mV = vu.duplicate();
+        vu.position(1);
+        mU = vu.slice();
+    }
+
+    @Override
+    protected void tearDown() {
+        if (mPool != null) {
+            mPool.shutdown();
+        }
+    }
+
+    @Override
+    protected long runOnce() {
+        mEncoder.setFrame(mWidth, mHeight, mY, mWidth, 1, mU, mV, mWidth, 2);
+        int size = mEncoder.encode(90);
+        if (mOut.length < size) {
+            mOut = new byte[size];
+        }
+        return mEncoder.writeTo(mOut);
+    }
+}
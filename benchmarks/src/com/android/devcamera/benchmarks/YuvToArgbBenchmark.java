@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera.benchmarks;
+
+import com.android.devcamera.YuvToArgbConverter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * YUV_420_888 to ARGB conversion of one frame with semi-planar chroma (pixel stride 2, as
+ * most cameras produce), as BitmapUtility does for YUV thumbnails.
+ */
+public class YuvToArgbBenchmark extends MicroBenchmark {
+    private final int mWidth;
+    private final int mHeight;
+    private final int mParallelism;
+    private final boolean mRotate90;
+
+    private YuvToArgbConverter mConverter;
+    private ByteBuffer mY;
+    private ByteBuffer mU;
+    private ByteBuffer mV;
+    private int[] mOut;
+
+    public YuvToArgbBenchmark(int width, int height, int parallelism, boolean rotate90) {
+        super(String.format("YuvToArgb %dx%d x%d threads%s", width, height, parallelism,
+                rotate90 ? " rot90" : ""));
+        mWidth = width;
+        mHeight = height;
+        mParallelism = parallelism;
+        mRotate90 = rotate90;
+    }
+
+    @Override
+    protected void setUp() {
+        mConverter = new YuvToArgbConverter(mParallelism);
+        mY = ByteBuffer.allocateDirect(mWidth * mHeight);
+        // Interleaved VU, as in NV21: V at even offsets, U one byte later.
+        ByteBuffer vu = ByteBuffer.allocateDirect(mWidth * mHeight / 2);
+        for (int i = 0; i < mY.capacity(); i++) {
+            mY.put(i, (byte) (i * 7));
+        }
+        for (int i = 0; i < vu.capacity(); i++) {
+            vu.put(i, (byte) (128 + (i % 64) - 32));
+        }
+        mV = vu.duplicate();
+        vu.position(1);
+        mU = vu.slice();
+        mOut = new int[mWidth * mHeight];
+    }
+
+    @Override
+    protected void tearDown() {
+        mConverter.shutdown();
+    }
+
+    @Override
+    protected long runOnce() {
+        mConverter.convert(mY, mWidth, 1, mU, mV, mWidth, 2, mWidth, mHeight, mRotate90, mOut);
+        return mOut[mOut.length / 2];
+    }
+}
@@ -24,10 +24,10 @@ import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
-import android.hardware.camera2.params.Face;
 import android.hardware.camera2.params.InputConfiguration;
 import android.media.Image;
 import android.media.ImageReader;
@@ -39,6 +39,7 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.SystemClock;
 import android.util.Log;
+import android.util.Range;
 import android.util.Size;
 import android.view.Surface;
 import android.media.Image.Plane;
@@ -46,9 +47,12 @@ import android.media.Image.Plane;
 import java.nio.ByteBuffer;
 import java.nio.BufferUnderflowException;
 import java.lang.IndexOutOfBoundsException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.microedition.khronos.opengles.GL10;
 
@@ -67,30 +71,72 @@ public class Api2Camera implements CameraInterface, SurfaceTexture.OnFrameAvaila
 
     // Nth frame to log; put 10^6 if you don't want logging.
     private static int LOG_NTH_FRAME = 30;
-    // Log dropped frames. There are a log on Angler MDA32.
-    private static boolean LOG_DROPPED_FRAMES = true;
+    // Frames per frame interval histogram window; about 10 seconds at 30 fps.
+    private static final int TIMING_WINDOW_FRAMES = 300;
 
     // IMPORTANT: Only one of these can be true:
     private static boolean SECOND_YUV_IMAGEREADER_STREAM = true;
     private static boolean SECOND_SURFACE_TEXTURE_STREAM = false;
 
+    // Time YUV->ARGB conversion of every YUV1 and YUV2 frame and log throughput. Slows the
+    // camera thread down, so only turn this on to benchmark.
+    private static final boolean BENCHMARK_YUV_TO_ARGB = false;
+
     // Enable raw stream if available.
     private static boolean RAW_STREAM_ENABLE = true;
     // Use JPEG ImageReader and YUV ImageWriter if reprocessing is available
     private static final boolean USE_REPROCESSING_IF_AVAIL = true;
 
     // Whether we are continuously taking pictures, or not.
-    boolean mIsBursting = false;
-    // Last total capture result
-    TotalCaptureResult mLastTotalCaptureResult;
+    volatile boolean mIsBursting = false;
 
     // ImageReader/Writer buffer sizes.
     private static final int YUV1_IMAGEREADER_SIZE = 8;
+    private static final int IMAGEWRITER_SIZE = 2;
+    // Max reprocess requests outstanding at once. Lets the HAL overlap JPEG encode of one
+    // shot with queueing of the next.
+    private static final int REPROCESS_MAX_IN_FLIGHT = IMAGEWRITER_SIZE;
+    // ZSL history depth. Leave one YUV1 buffer for acquireNextImage() and one for each image
+    // in flight to the ImageWriter, which stays acquired until reprocessing is done with it.
+    private static final int ZSL_HISTORY_SIZE = YUV1_IMAGEREADER_SIZE - 1 - REPROCESS_MAX_IN_FLIGHT;
+    // On shutter, take the sharpest ZSL frame within ZSL_SHARPEST_WINDOW_NANOS of the press
+    // rather than the closest, passing over frames that turned more than ZSL_MAX_MOTION_RADIANS
+    // during exposure (about 1 pixel at 3000 pixels across a 70 degree field of view).
+    private static final boolean ZSL_PICK_SHARPEST = true;
+    private static final long ZSL_SHARPEST_WINDOW_NANOS = 150000000L;
+    private static final float ZSL_MAX_MOTION_RADIANS = 0.0004f;
+    // Exposure brackets go out as one captureBurst(); false sends one capture() per frame
+    // instead, to compare. Bracket exposures above BRACKET_MAX_EXPOSURE_NANOS are made up
+    // with sensitivity, to limit hand shake.
+    private static final boolean BRACKET_AS_BURST = true;
+    private static final long BRACKET_MAX_EXPOSURE_NANOS = 66000000L;
+    // Most frames in a bracket. Bracket frames wait for reprocessing in mBracketFrames, which
+    // shares the ZSL history's YUV1 buffers.
+    public static final int MAX_BRACKET_FRAMES = Math.min(BracketTracker.MAX_FRAMES, ZSL_HISTORY_SIZE);
+    // Most frames a merged shot can take from the ZSL history.
+    private static final int MAX_MERGE_FRAMES = Math.min(MultiFrameMerger.MAX_FRAMES, ZSL_HISTORY_SIZE);
     private static final int YUV2_IMAGEREADER_SIZE = 8;
+    // Image motion search range between YUV2 frames, and the longest gap to measure it over.
+    private static final int YUV2_MAX_MOTION_PIXELS = 48;
+    private static final long YUV2_MAX_MOTION_INTERVAL_NANOS = 200000000L;
     private static final int RAW_IMAGEREADER_SIZE = 8;
-    private static final int IMAGEWRITER_SIZE = 2;
+    private static final int JPEG_IMAGEREADER_SIZE = 4;
+    // Hand JPEG Images to the saver without copying them to the heap, while there is room.
+    private static final boolean ZERO_COPY_JPEG = true;
+    // JPEG Images the saver may hold at once. The last buffer is kept free for the next
+    // acquireNextImage(); beyond this, JPEGs are copied and their Image closed right away.
+    private static final int JPEG_MAX_HELD = JPEG_IMAGEREADER_SIZE - 1;
+    // Without YUV reprocessing, shots are JPEG encoded in software from the ZSL frame, one
+    // encoder per shot in flight so the next frame is copied in while one encodes. Output
+    // arrays the saver may hold at once, as with JPEG_MAX_HELD; beyond this each JPEG gets
+    // a new array.
+    private static final boolean SOFTWARE_JPEG_FALLBACK = true;
+    private static final int SOFTWARE_JPEG_ENCODERS = REPROCESS_MAX_IN_FLIGHT;
+    private static final int SOFTWARE_JPEG_OUTPUT_BUFFERS = JPEG_MAX_HELD;
+    private static final long SOFTWARE_JPEG_HIGHEST_TRACKABLE_NANOS = 10000000000L;
 
     private CameraInfoCache mCameraInfoCache;
+    private FrameDataPublisher mFrameDataPublisher;
     private CameraManager mCameraManager;
     private CameraCaptureSession mCurrentCaptureSession;
     private MediaActionSound mMediaActionSound = new MediaActionSound();
@@ -113,14 +159,69 @@ public class Api2Camera implements CameraInterface, SurfaceTexture.OnFrameAvaila
     private boolean mFirstFrameArrived;
     private ImageReader mYuv1ImageReader;
     private int mYuv1ImageCounter;
-    // Handle to last received Image: allows ZSL to be implemented.
-    private Image mYuv1LastReceivedImage = null;
-    // Time at which reprocessing request went in (right now we are doing one at a time).
-    private long mReprocessingRequestNanoTime;
+    // Recent YUV1 images matched with their capture results: allows ZSL to be implemented.
+    private ZslRingBuffer mZslBuffer = new ZslRingBuffer(ZSL_HISTORY_SIZE);
+    // Frames of the current bracket, kept out of mZslBuffer so newer frames can't evict them
+    // before they are reprocessed. Together the two hold at most ZSL_HISTORY_SIZE images.
+    private ZslRingBuffer mBracketFrames = new ZslRingBuffer(MAX_BRACKET_FRAMES);
+    private SharpnessScorer mSharpnessScorer = new SharpnessScorer();
+    // Multi-frame merge: ZSL frames per shot (1 is off), and the merger and its thread.
+    private volatile int mMergeFrames = 1;
+    private MultiFrameMerger mMerger;
+    private HandlerThread mMergeThread;
+    private Handler mMergeHandler;
+    private boolean mMergeBusy = false;
+    // Shutter frame of a merged shot waiting for a reprocess slot, or null.
+    private ZslRingBuffer.Frame mPendingMerge;
+    // Exposure bracket in progress, and the last repeating frame number seen, to measure it.
+    private BracketTracker mBracketTracker = new BracketTracker();
+    private long mLastStartedFrameNumber = -1;
+    // Reprocess requests in flight, and burst throughput.
+    private ReprocessScheduler mReprocessScheduler = new ReprocessScheduler(REPROCESS_MAX_IN_FLIGHT);
 
     private ImageReader mJpegImageReader;
+    // JPEG Images handed to the saver and not yet released. Released on saver threads.
+    private final AtomicInteger mJpegImagesHeld = new AtomicInteger();
+    // Set when the camera closes; guarded by this. The JPEG reader is closed once the saver
+    // has released every Image it holds, as closing it frees their buffers.
+    private boolean mJpegReaderClosing = false;
+    // Set on the ops thread when the camera closes; no new shots are started after.
+    private boolean mClosing = false;
+    // Software JPEG: used even with reprocessing when forced, to compare; threads in the
+    // stripe pool. Encoders are handed out on the ops thread and run on the encode thread.
+    private boolean mForceSoftwareJpeg = false;
+    private int mSoftwareJpegThreads = Runtime.getRuntime().availableProcessors();
+    private ForkJoinPool mSoftwareJpegPool;
+    private final ArrayDeque<StripedJpegEncoder> mFreeJpegEncoders = new ArrayDeque<StripedJpegEncoder>();
+    private HandlerThread mJpegEncodeThread;
+    private Handler mJpegEncodeHandler;
+    // Output arrays back from the saver, and how many were made; released on saver threads.
+    private final ConcurrentLinkedQueue<byte[]> mJpegOutputs = new ConcurrentLinkedQueue<byte[]>();
+    private int mJpegOutputCount = 0;
+    // Encode time and pixels encoded, on the encode thread.
+    private final LatencyHistogram mSoftwareJpegNanos = new LatencyHistogram(SOFTWARE_JPEG_HIGHEST_TRACKABLE_NANOS);
+    private long mSoftwareJpegPixels = 0;
     private ImageReader mYuv2ImageReader;
     private int mYuv2ImageCounter;
+    // Frame timing of each stream: FPS and jitter over the frames between log lines, and
+    // frame interval percentiles per TIMING_WINDOW_FRAMES window and per session.
+    // Frames each stream failed to deliver, by cause.
+    private FrameDropTracker mDropTracker = new FrameDropTracker();
+    private StreamTiming mResultTiming = new StreamTiming("Results", LOG_NTH_FRAME, TIMING_WINDOW_FRAMES);
+    private StreamTiming mYuv1Timing = new StreamTiming("YUV1", LOG_NTH_FRAME, TIMING_WINDOW_FRAMES);
+    private StreamTiming mYuv2Timing = new StreamTiming("YUV2", LOG_NTH_FRAME, TIMING_WINDOW_FRAMES);
+    private StreamTiming mRawTiming = new StreamTiming("RAW", LOG_NTH_FRAME, TIMING_WINDOW_FRAMES);
+    private StreamTiming mDepthTiming = new StreamTiming("Depth", LOG_NTH_FRAME, TIMING_WINDOW_FRAMES);
+    private YuvConversionBenchmark mYuv1Benchmark;
+    private YuvConversionBenchmark mYuv2Benchmark;
+    // Non-null while lining up the gyro with the viewfinder, from YUV2 frame motion.
+    private GyroLatencyEstimator mGyroLatencyEstimator;
+    private ImageMotionEstimator mYuv2Motion = new ImageMotionEstimator(YUV2_MAX_MOTION_PIXELS);
+    private long mYuv2MotionTimestamp;
+    // Non-null while scoring frames for motion with the gyro.
+    private GyroHistory mGyroHistory;
+    // Gyro minus camera timestamp of the same instant, as last measured.
+    private long mGyroOffsetNanos = 0;
     private ImageReader mRawImageReader;
     private int mRawImageCounter;
     private boolean mIsDepthCloudSupported = false;
@@ -141,12 +242,19 @@ public class Api2Camera implements CameraInterface, SurfaceTexture.OnFrameAvaila
         mContext = context;
         mCameraIsFront = useFrontCamera;
         mCameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        CameraTimer.begin(CameraTimer.CAMERA_INFO);
         mCameraInfoCache = new CameraInfoCache(mCameraManager, useFrontCamera);
+        CameraTimer.end(CameraTimer.CAMERA_INFO);
+        mFrameDataPublisher = FrameDataPublisher.forCamera(mCameraInfoCache, useFrontCamera);
 
         // Create thread and handler for camera operations.
         mOpsThread = new HandlerThread("CameraOpsThread");
         mOpsThread.start();
         mOpsHandler = new Handler(mOpsThread.getLooper());
+        mDropTracker.trackImages(FrameDropTracker.STREAM_YUV1);
+        mDropTracker.trackImages(FrameDropTracker.STREAM_YUV2);
+        mDropTracker.trackImages(FrameDropTracker.STREAM_RAW);
+        mDropTracker.trackImages(FrameDropTracker.STREAM_DEPTH);
 
         // Create thread and handler for slow initialization operations.
         // Don't want to use camera operations thread because we want to time camera open carefully.
@@ -156,7 +264,9 @@ public class Api2Camera implements CameraInterface, SurfaceTexture.OnFrameAvaila
         mInitHandler.post(new Runnable() {
             @Override
             public void run() {
+                CameraTimer.begin(CameraTimer.INIT_READERS);
                 InitializeAllTheThings();
+                CameraTimer.end(CameraTimer.INIT_READERS);
                 mAllThingsInitialized = true;
                 Log.v(TAG, "STARTUP_REQUIREMENT ImageReader initialization done.");
                 tryToStartCaptureSession();
@@ -202,7 +312,7 @@ public class Api2Camera implements CameraInterface, SurfaceTexture.OnFrameAvaila
                 mCameraInfoCache.getYuvStream1Size().getWidth(),
                 mCameraInfoCache.getYuvStream1Size().getHeight(),
                 ImageFormat.JPEG,
-                2);
+                JPEG_IMAGEREADER_SIZE);
         mJpegImageReader.setOnImageAvailableListener(mJpegImageListener, mJpegListenerHandler);
 
         // Create ImageReader to receive YUV image buffers.
@@ -274,6 +384,109 @@ public class Api2Camera implements CameraInterface, SurfaceTexture.OnFrameAvaila
         mMyCameraCallback = callback;
     }
 
+    /**
+     * Time every shot through the reprocessing pipeline with tracker, or stop if null.
+     */
+    public void setShotTracker(ShotLatencyTracker tracker) {
+        mShotTracker = tracker;
+    }
+
+    /**
+     * Append JPEGs, and RAW and depth images taken during a burst or bracket if includeRaw,
+     * to a container file instead of handing them to the callback. The container is closed
+     * with the camera.
+     */
+    public void setBurstContainer(final BurstContainer container, final boolean includeRaw) {
+        mOpsHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mBurstContainerRaw = includeRaw;
+                mBurstContainer = container;
+            }
+        });
+    }
+
+    /**
+     * Record per-frame metadata and image timestamps of this session for later replay.
+     * Recording stops when the camera is closed.
+     */
+    public void setSessionRecorder(final SessionRecorder recorder) {
+        mOpsHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (recorder.start(mFrameDataPublisher)) {
+                    mSessionRecorder = recorder;
+                }
+            }
+        });
+    }
+
+    /**
+     * Line the gyro up with the viewfinder using YUV2 frames, or stop if null. Only does
+     * anything while the YUV2 stream is on.
+     */
+    public void setGyroLatencyEstimator(final GyroLatencyEstimator estimator) {
+        mOpsHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mGyroLatencyEstimator = estimator;
+                mYuv2Motion.reset();
+            }
+        });
+    }
+
+    /**
+     * Attach the camera motion over each frame's exposure, from gyro, to its FrameMetadata
+     * and ZSL frame; or stop if null.
+     */
+    public void setGyroHistory(final GyroHistory history) {
+        mOpsHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mGyroHistory = history;
+            }
+        });
+    }
+
+    /**
+     * Merge this many consecutive ZSL frames into each shot to lower noise; 1 for single
+     * frame shots. Takes effect with YUV reprocessing only.
+     */
+    public void setMergeFrames(final int frames) {
+        mOpsHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mMergeFrames = Math.max(1, Math.min(frames, MAX_MERGE_FRAMES));
+                if (mMergeFrames > 1 && mMerger == null) {
+                    mMerger = new MultiFrameMerger(Runtime.getRuntime().availableProcessors(),
+                            MultiFrameMerger.DEFAULT_NOISE_THRESHOLD);
+                    mMergeThread = new HandlerThread("MergeThread");
+                    mMergeThread.start();
+                    mMergeHandler = new Handler(mMergeThread.getLooper());
+                }
+                Log.v(TAG, "Merging " + mMergeFrames + " frames per shot");
+            }
+        });
+    }
+
+    /**
+     * Encode shots to JPEG in software, splitting each over this many threads. Always done
+     * without YUV reprocessing; force uses it even with, to compare against the HAL.
+     */
+    public void setSoftwareJpeg(final boolean force, final int threads) {
+        mOpsHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mForceSoftwareJpeg = force;
+                if (mJpegEncodeThread == null) {
+                    mSoftwareJpegThreads = Math.max(1, threads);
+                } else {
+                    Log.e(TAG, "Software JPEG already started, keeping " + mSoftwareJpegThreads + " threads");
+                }
+            }
+        });
+    }
+
     public void triggerAFScan() {
         Log.v(TAG, "AF trigger");
         issuePreviewCaptureRequest(true);
@@ -285,11 +498,29 @@ public class Api2Camera implements CameraInterface, SurfaceTexture.OnFrameAvaila
     }
 
     public void takePicture() {
+        // Time of shutter press, in the sensor time base, used to pick the ZSL frame.
+        final long shutterTimestamp = mCameraInfoCache.sensorTimestampNow();
+        final long shutterNanos = System.nanoTime();
+        mMediaActionSound.play(MediaActionSound.SHUTTER_CLICK);
+        mOpsHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                runReprocessing(shutterTimestamp, shutterNanos);
+            }
+        });
+    }
+
+    /**
+     * Capture a bracket of frames at these exposure offsets, in stops from the current auto
+     * exposure, as one burst; each frame becomes a JPEG like any other shot. Needs YUV1 on
+     * and MANUAL_SENSOR.
+     */
+    public void takeBracket(final float[] evSteps) {
         mMediaActionSound.play(MediaActionSound.SHUTTER_CLICK);
         mOpsHandler.post(new Runnable() {
             @Override
             public void run() {
-                runReprocessing();
+                runBracket(evSteps);
             }
         });
     }
@@ -300,10 +531,22 @@ public class Api2Camera implements CameraInterface, SurfaceTexture.OnFrameAvaila
 
     public void setBurst(boolean go) {
         // if false to true transition.
-        if (go && !mIsBursting) {
-            takePicture();
-        }
+        final boolean starting = go && !mIsBursting;
+        final boolean stopping = !go && mIsBursting;
         mIsBursting = go;
+        mOpsHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (starting) {
+                    mReprocessScheduler.reset();
+                    pumpBurst();
+                }
+                if (stopping) {
+                    Log.v(TAG, String.format("Burst done: %d shots, %.2f shots/s sustained",
+                            mReprocessScheduler.completedCount(), mReprocessScheduler.shotsPerSecond()));
+                }
+            }
+        });
     }
 
     public boolean isRawAvailable() {
@@ -314,6 +557,15 @@ public class Api2Camera implements CameraInterface, SurfaceTexture.OnFrameAvaila
         return mCameraInfoCache.isYuvReprocessingAvailable();
     }
 
+    public boolean canTakePicture() {
+        return SOFTWARE_JPEG_FALLBACK || mCameraInfoCache.isYuvReprocessingAvailable();
+    }
+
+    public int maxShotsInFlight() {
+        // A merged shot holds the merger until it goes out for reprocessing.
+        return mMergeFrames > 1 ? 1 : REPROCESS_MAX_IN_FLIGHT;
+    }
+
     @Override
     public Size getPreviewSize() {
         return mCameraInfoCache.getPreviewSize();
@@ -340,7 +592,7 @@ public class Api2Camera implements CameraInterface, SurfaceTexture.OnFrameAvaila
         mOpsHandler.post(new Runnable() {
             @Override
             public void run() {
-                CameraTimer.t_open_start = SystemClock.elapsedRealtime();
+                CameraTimer.begin(CameraTimer.HAL_OPEN);
                 try {
                     mCameraManager.openCamera(mCameraInfoCache.getCameraId(), mCameraStateCallback, null);
                 } catch (CameraAccessException e) {
@@ -363,9 +615,114 @@ public class Api2Camera implements CameraInterface, SurfaceTexture.OnFrameAvaila
             mCameraDevice.close();
         }
         mCurrentCaptureSession = null;
+        // Release ZSL images on the thread that owns them.
+        mOpsHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mClosing = true;
+                mPendingMerge = null;
+                mZslBuffer.clear();
+                mBracketFrames.clear();
+                mReprocessScheduler.clear();
+                if (mSessionRecorder != null) {
+                    mSessionRecorder.close();
+                    mSessionRecorder = null;
+                }
+                if (mBurstContainer != null) {
+                    mBurstContainer.close();
+                    mBurstContainer = null;
+                }
+                mResultTiming.logSession();
+                mDropTracker.logAndClose();
+                mBracketTracker.logSummary();
+                mYuv1Timing.logSession();
+                mYuv2Timing.logSession();
+                mRawTiming.logSession();
+                mDepthTiming.logSession();
+                if (mYuv1Benchmark != null) {
+                    mYuv1Benchmark.shutdown();
+                    mYuv1Benchmark = null;
+                }
+                if (mYuv2Benchmark != null) {
+                    mYuv2Benchmark.shutdown();
+                    mYuv2Benchmark = null;
+                }
+                if (mJpegEncodeThread != null) {
+                    // After any encode in progress.
+                    final ForkJoinPool pool = mSoftwareJpegPool;
+                    mJpegEncodeHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            logSoftwareJpeg();
+                            if (pool != null) {
+                                pool.shutdown();
+                            }
+                        }
+                    });
+                    mJpegEncodeThread.quitSafely();
+                    mJpegEncodeThread = null;
+                    mSoftwareJpegPool = null;
+                    mFreeJpegEncoders.clear();
+                }
+                if (mMergeThread != null) {
+                    // After any merge in progress.
+                    final MultiFrameMerger merger = mMerger;
+                    mMergeHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            merger.shutdown();
+                        }
+                    });
+                    mMergeThread.quitSafely();
+                    mMergeThread = null;
+                    mMerger = null;
+                }
+                releaseReadersAndThreads();
+            }
+        });
         Log.v(TAG, "Done closing camera " + mCameraInfoCache.getCameraId());
     }
 
+    // On the ops thread, last thing when closing: this instance is not reopened, so release
+    // its readers, writer and threads. Readers whose listeners run here are closed here;
+    // the JPEG reader waits for the saver.
+    private void releaseReadersAndThreads() {
+        if (mImageWriter != null) {
+            mImageWriter.close();
+            mImageWriter = null;
+        }
+        closeReader(mYuv1ImageReader);
+        closeReader(mYuv2ImageReader);
+        closeReader(mRawImageReader);
+        closeReader(mDepthCloudImageReader);
+        if (mSurfaceTextureSurface != null) {
+            mSurfaceTextureSurface.release();
+            mSurfaceTexture.release();
+        }
+        synchronized (this) {
+            mJpegReaderClosing = true;
+        }
+        maybeCloseJpegReader();
+        mMediaActionSound.release();
+        mInitThread.quitSafely();
+        mJpegListenerThread.quitSafely();
+        mOpsThread.quitSafely();
+    }
+
+    private static void closeReader(ImageReader reader) {
+        if (reader != null) {
+            reader.close();
+        }
+    }
+
+    // Any thread.
+    private synchronized void maybeCloseJpegReader() {
+        if (mJpegReaderClosing && mJpegImagesHeld.get() == 0 && mJpegImageReader != null) {
+            mJpegImageReader.close();
+            mJpegImageReader = null;
+        }
+    }
+
     public void startPreview(final Surface surface) {
         Log.v(TAG, "STARTUP_REQUIREMENT preview Surface ready.");
         mPreviewSurface = surface;
@@ -375,10 +732,10 @@ public class Api2Camera implements CameraInterface, SurfaceTexture.OnFrameAvaila
     private CameraDevice.StateCallback mCameraStateCallback = new LoggingCallbacks.DeviceStateCallback() {
         @Override
         public void onOpened(CameraDevice camera) {
-            CameraTimer.t_open_end = SystemClock.elapsedRealtime();
+            CameraTimer.end(CameraTimer.HAL_OPEN);
             mCameraDevice = camera;
             Log.v(TAG, "STARTUP_REQUIREMENT Done opening camera " + mCameraInfoCache.getCameraId() +
-                    ". HAL open took: (" + (CameraTimer.t_open_end - CameraTimer.t_open_start) + " ms)");
+                    ". HAL open took: (" + CameraTimer.durationMillis(CameraTimer.HAL_OPEN) + " ms)");
 
             super.onOpened(camera);
             tryToStartCaptureSession();
@@ -399,7 +756,7 @@ public class Api2Camera implements CameraInterface, SurfaceTexture.OnFrameAvaila
 
     // Create CameraCaptureSession. Callback will start repeating request with current parameters.
     private void startCaptureSession() {
-        CameraTimer.t_session_go = SystemClock.elapsedRealtime();
+        CameraTimer.begin(CameraTimer.SESSION_CONFIGURE);
 
         Log.v(TAG, "Configuring session..");
         List<Surface> outputSurfaces = new ArrayList<Surface>(4);
@@ -462,11 +819,13 @@ public class Api2Camera implements CameraInterface, SurfaceTexture.OnFrameAvaila
     private CameraCaptureSession.StateCallback mSessionStateCallback = new LoggingCallbacks.SessionStateCallback() {
         @Override
         public void onReady(CameraCaptureSession session) {
-            Log.v(TAG, "capture session onReady().  HAL capture session took: (" + (SystemClock.elapsedRealtime() - CameraTimer.t_session_go) + " ms)");
+            CameraTimer.end(CameraTimer.SESSION_CONFIGURE);
+            Log.v(TAG, "capture session onReady().  HAL capture session took: (" + CameraTimer.durationMillis(CameraTimer.SESSION_CONFIGURE) + " ms)");
             mCurrentCaptureSession = session;
             issuePreviewCaptureRequest(false);
 
-            if (session.isReprocessable()) {
+            // onReady() comes again whenever the session goes idle; keep the first writer.
+            if (session.isReprocessable() && mImageWriter == null) {
                 mImageWriter = ImageWriter.newInstance(session.getInputSurface(), IMAGEWRITER_SIZE);
                 mImageWriter.setOnImageReleasedListener(
                         new ImageWriter.OnImageReleasedListener() {
@@ -527,7 +886,7 @@ public class Api2Camera implements CameraInterface, SurfaceTexture.OnFrameAvaila
     }
 
     public void issuePreviewCaptureRequest(boolean AFtrigger) {
-        CameraTimer.t_burst = SystemClock.elapsedRealtime();
+        CameraTimer.begin(CameraTimer.FIRST_REQUEST);
         Log.v(TAG, "issuePreviewCaptureRequest...");
         try {
             CaptureRequest.Builder b1 = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
@@ -545,19 +904,25 @@ public class Api2Camera implements CameraInterface, SurfaceTexture.OnFrameAvaila
 
             Log.v(TAG, "  .. NR=" + mCaptureNoiseMode + "  Edge=" + mCaptureEdgeMode + "  Face=" + mCaptureFace);
 
+            // Outputs of this request, for drop accounting.
+            int streams = FrameDropTracker.mask(FrameDropTracker.STREAM_PREVIEW);
+
             if (mCaptureYuv1) {
                 b1.addTarget(mYuv1ImageReader.getSurface());
+                streams |= FrameDropTracker.mask(FrameDropTracker.STREAM_YUV1);
                 Log.v(TAG, "  .. YUV1 on");
             }
 
             if (mCaptureRaw) {
                 b1.addTarget(mRawImageReader.getSurface());
+                streams |= FrameDropTracker.mask(FrameDropTracker.STREAM_RAW);
             }
 
             b1.addTarget(mPreviewSurface);
 
             if (mIsDepthCloudSupported && !mCaptureYuv1 && !mCaptureYuv2 && !mCaptureRaw) {
                 b1.addTarget(mDepthCloudImageReader.getSurface());
+                streams |= FrameDropTracker.mask(FrameDropTracker.STREAM_DEPTH);
             }
 
             if (mCaptureYuv2) {
@@ -566,9 +931,11 @@ public class Api2Camera implements CameraInterface, SurfaceTexture.OnFrameAvaila
                 }
                 if (SECOND_YUV_IMAGEREADER_STREAM) {
                     b1.addTarget(mYuv2ImageReader.getSurface());
+                    streams |= FrameDropTracker.mask(FrameDropTracker.STREAM_YUV2);
                 }
                 Log.v(TAG, "  .. YUV2 on");
             }
+            b1.setTag(streams);
 
             if (AFtrigger) {
                 b1.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_START);
@@ -581,15 +948,404 @@ public class Api2Camera implements CameraInterface, SurfaceTexture.OnFrameAvaila
         }
     }
 
-    void runReprocessing() {
-        if (mYuv1LastReceivedImage == null) {
+    private void runBracket(float[] evSteps) {
+        if (mCurrentCaptureSession == null || !canEncodeShots() || !mCaptureYuv1) {
+            Log.e(TAG, "Bracket needs YUV1 and a way to encode it.");
+            return;
+        }
+        if (!mCameraInfoCache.isManualSensorAvailable()) {
+            Log.e(TAG, "Bracket needs MANUAL_SENSOR.");
+            return;
+        }
+        if (mBracketTracker.isActive(System.nanoTime())) {
+            Log.e(TAG, "Previous bracket still in progress.");
+            return;
+        }
+        if (mFrameMetadata.exposureTime <= 0 || mFrameMetadata.iso <= 0) {
+            Log.e(TAG, "No auto exposure to bracket around yet.");
+            return;
+        }
+        Range<Long> exposureRange = mCameraInfoCache.getExposureTimeRange();
+        Range<Integer> isoRange = mCameraInfoCache.getSensitivityRange();
+        long maxExposure = Math.min(exposureRange.getUpper(),
+                Math.max(BRACKET_MAX_EXPOSURE_NANOS, mFrameMetadata.exposureTime));
+
+        List<CaptureRequest> requests = new ArrayList<CaptureRequest>();
+        try {
+            for (int i = 0; i < evSteps.length && i < MAX_BRACKET_FRAMES; i++) {
+                // Total exposure (time x gain) wanted, in time at the current sensitivity.
+                double total = mFrameMetadata.exposureTime * Math.pow(2, evSteps[i]);
+                long exposure = Math.max(exposureRange.getLower(), Math.min(maxExposure, (long) total));
+                int iso = (int) Math.max(isoRange.getLower(), Math.min(isoRange.getUpper(),
+                        Math.round(mFrameMetadata.iso * total / exposure)));
+
+                CaptureRequest.Builder b = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+                b.set(CaptureRequest.CONTROL_AF_MODE, CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+                b.set(CaptureRequest.CONTROL_AE_MODE, CameraMetadata.CONTROL_AE_MODE_OFF);
+                b.set(CaptureRequest.SENSOR_EXPOSURE_TIME, exposure);
+                b.set(CaptureRequest.SENSOR_SENSITIVITY, iso);
+                b.set(CaptureRequest.SENSOR_FRAME_DURATION, Math.max(exposure, mFrameMetadata.frameDuration));
+                b.set(CaptureRequest.NOISE_REDUCTION_MODE, mCaptureNoiseMode);
+                b.set(CaptureRequest.EDGE_MODE, mCaptureEdgeMode);
+                int streams = FrameDropTracker.mask(FrameDropTracker.STREAM_PREVIEW)
+                        | FrameDropTracker.mask(FrameDropTracker.STREAM_YUV1);
+                b.addTarget(mPreviewSurface);
+                b.addTarget(mYuv1ImageReader.getSurface());
+                if (mCaptureRaw) {
+                    b.addTarget(mRawImageReader.getSurface());
+                    streams |= FrameDropTracker.mask(FrameDropTracker.STREAM_RAW);
+                }
+                b.setTag(streams);
+                requests.add(b.build());
+                Log.v(TAG, String.format("  Bracket frame %d: %+.1f EV, %.2f ms, ISO %d",
+                        i, evSteps[i], exposure * 0.000001, iso));
+            }
+
+            mBracketTracker.begin(requests, mCaptureRaw, mLastStartedFrameNumber, System.nanoTime());
+            if (BRACKET_AS_BURST) {
+                mCurrentCaptureSession.captureBurst(requests, mCaptureCallback, mOpsHandler);
+            } else {
+                for (CaptureRequest request : requests) {
+                    mCurrentCaptureSession.capture(request, mCaptureCallback, mOpsHandler);
+                }
+            }
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Could not access camera for bracket.");
+        }
+    }
+
+    // Reprocess completed bracket frames, in order, as reprocessing slots free up.
+    private void pumpBracket() {
+        long timestamp;
+        while ((timestamp = mBracketTracker.peekReprocess()) != 0 && canEncodeShots()
+                && mReprocessScheduler.hasCapacity()) {
+            mBracketTracker.popReprocess();
+            ZslRingBuffer.Frame frame = mBracketFrames.take(timestamp);
+            if (frame == null) {
+                // Image arrived before its bracket frame started.
+                frame = mZslBuffer.take(timestamp);
+            }
+            if (frame == null) {
+                Log.e(TAG, "Bracket frame " + timestamp + " already left the ZSL history.");
+                continue;
+            }
+            ShotLatencyTracker tracker = mShotTracker;
+            if (tracker != null) {
+                long now = System.nanoTime();
+                tracker.onShutter(frame.timestamp, now);
+                tracker.onStage(frame.timestamp, ShotLatencyTracker.STAGE_SELECTED, now);
+            }
+            submitShot(frame);
+        }
+        if (mBracketTracker.peekReprocess() == 0 && !mBracketTracker.isActive(System.nanoTime())) {
+            // Leftovers of failed frames; give their buffers back to the ZSL history.
+            mBracketFrames.clear();
+        }
+    }
+
+    void runReprocessing(long shutterTimestamp, long shutterNanos) {
+        if (!canEncodeShots()) {
+            Log.e(TAG, "No YUV reprocessing and no software JPEG.");
+            return;
+        }
+        if (!mReprocessScheduler.hasCapacity()) {
+            Log.e(TAG, "Reprocessing pipeline full, " + mReprocessScheduler.inFlight() + " requests in flight.");
+            return;
+        }
+        if (mMergeFrames > 1 && !useSoftwareJpeg()) {
+            runMerge(shutterTimestamp, shutterNanos);
+            return;
+        }
+        ZslRingBuffer.Frame frame = takeShutterFrame(shutterTimestamp);
+        if (frame == null) {
+            return;
+        }
+        ShotLatencyTracker tracker = mShotTracker;
+        if (tracker != null) {
+            tracker.onShutter(frame.timestamp, shutterNanos);
+            tracker.onStage(frame.timestamp, ShotLatencyTracker.STAGE_SELECTED, System.nanoTime());
+        }
+        submitShot(frame);
+    }
+
+    private ZslRingBuffer.Frame takeShutterFrame(long shutterTimestamp) {
+        if (ZSL_PICK_SHARPEST && mGyroHistory != null) {
+            mZslBuffer.updateUnknownMotion(mGyroHistory, sensorToGyroTime());
+        }
+        ZslRingBuffer.Frame frame = ZSL_PICK_SHARPEST
+                ? mZslBuffer.takeSharpest(shutterTimestamp, ZSL_SHARPEST_WINDOW_NANOS, ZSL_MAX_MOTION_RADIANS)
+                : mZslBuffer.takeClosest(shutterTimestamp);
+        if (frame == null) {
             Log.e(TAG, "No YUV Image available.");
+            return null;
+        }
+        Log.v(TAG, String.format("  ZSL frame is %.1f ms from shutter press, motion %.2f mrad, sharpness %.1f",
+                (frame.timestamp - shutterTimestamp) * 0.000001, frame.motion * 1000, frame.sharpness));
+        return frame;
+    }
+
+    // Copy the shutter frame and the ZSL frames nearest it into the merger and release them
+    // right away, so the YUV1 reader keeps running; then merge on the merge thread and send
+    // the result for reprocessing with the shutter frame's capture result.
+    private void runMerge(long shutterTimestamp, final long shutterNanos) {
+        if (mMergeBusy) {
+            Log.e(TAG, "Still merging the previous shot.");
+            return;
+        }
+        final ZslRingBuffer.Frame reference = takeShutterFrame(shutterTimestamp);
+        if (reference == null) {
             return;
         }
-        mImageWriter.queueInputImage(mYuv1LastReceivedImage);
+        mMerger.begin(reference.image.getWidth(), reference.image.getHeight());
+        addMergeFrame(reference.image);
+        while (mMerger.getFrameCount() < mMergeFrames) {
+            ZslRingBuffer.Frame frame = mZslBuffer.takeClosest(reference.timestamp);
+            if (frame == null) {
+                break;
+            }
+            addMergeFrame(frame.image);
+        }
+        ShotLatencyTracker tracker = mShotTracker;
+        if (tracker != null) {
+            tracker.onShutter(reference.timestamp, shutterNanos);
+            tracker.onStage(reference.timestamp, ShotLatencyTracker.STAGE_SELECTED, System.nanoTime());
+        }
+
+        mMergeBusy = true;
+        final MultiFrameMerger merger = mMerger;
+        mMergeHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                merger.merge();
+                final long mergeNanos = System.nanoTime() - start;
+                mOpsHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        submitMerged(reference, merger, mergeNanos);
+                    }
+                });
+            }
+        });
+    }
+
+    private void addMergeFrame(Image img) {
+        Image.Plane[] planes = img.getPlanes();
+        mMerger.setFrame(planes[0].getBuffer(), planes[0].getRowStride(), planes[0].getPixelStride(),
+                planes[1].getBuffer(), planes[2].getBuffer(),
+                planes[1].getRowStride(), planes[1].getPixelStride());
+        img.close();
+    }
+
+    private void submitMerged(ZslRingBuffer.Frame reference, MultiFrameMerger merger, long mergeNanos) {
+        if (mImageWriter == null || mCurrentCaptureSession == null || mClosing) {
+            mMergeBusy = false;
+            return;  // Camera closed while merging.
+        }
+        Log.v(TAG, String.format("  Merged %d frames in %.1f ms", merger.getFrameCount(),
+                mergeNanos * 0.000001));
+        mPendingMerge = reference;
+        pumpMerge();
+    }
+
+    // Send the merged frame for reprocessing once a slot is free; a burst or bracket can fill
+    // the window while merging. The merger stays busy until then.
+    private void pumpMerge() {
+        if (mPendingMerge == null || mImageWriter == null || !mReprocessScheduler.hasCapacity()) {
+            return;
+        }
+        ZslRingBuffer.Frame reference = mPendingMerge;
+        mPendingMerge = null;
+        mMergeBusy = false;
+        Image input;
+        try {
+            input = mImageWriter.dequeueInputImage();
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "No ImageWriter buffer for the merged frame, dropping it.");
+            return;
+        }
+        Image.Plane[] planes = input.getPlanes();
+        mMerger.writeResult(planes[0].getBuffer(), planes[0].getRowStride(), planes[0].getPixelStride(),
+                planes[1].getBuffer(), planes[2].getBuffer(),
+                planes[1].getRowStride(), planes[1].getPixelStride());
+        input.setTimestamp(reference.timestamp);
+        submitReprocessing(new ZslRingBuffer.Frame(input, reference.result, reference.timestamp,
+                reference.motion, reference.sharpness));
+    }
+
+    // Keep the reprocess pipeline full while bursting, one new ZSL frame per free slot.
+    void pumpBurst() {
+        while (mIsBursting && canEncodeShots() && mReprocessScheduler.hasCapacity()) {
+            ZslRingBuffer.Frame frame = mZslBuffer.takeNewest();
+            if (frame == null) {
+                return;
+            }
+            mMediaActionSound.play(MediaActionSound.SHUTTER_CLICK);
+            ShotLatencyTracker tracker = mShotTracker;
+            if (tracker != null) {
+                long now = System.nanoTime();
+                tracker.onShutter(frame.timestamp, now);
+                tracker.onStage(frame.timestamp, ShotLatencyTracker.STAGE_SELECTED, now);
+            }
+            submitShot(frame);
+        }
+    }
+
+    private boolean useSoftwareJpeg() {
+        return SOFTWARE_JPEG_FALLBACK && (mForceSoftwareJpeg || mImageWriter == null);
+    }
+
+    private boolean canEncodeShots() {
+        return !mClosing && (mImageWriter != null || useSoftwareJpeg());
+    }
+
+    // Turn a ZSL frame into a JPEG, by reprocessing or in software.
+    private void submitShot(ZslRingBuffer.Frame frame) {
+        if (useSoftwareJpeg()) {
+            submitSoftwareJpeg(frame);
+        } else {
+            submitReprocessing(frame);
+        }
+    }
+
+    // Copy the frame into a free encoder and release it right away, so the YUV1 reader keeps
+    // running; then encode on the encode thread.
+    private void submitSoftwareJpeg(ZslRingBuffer.Frame frame) {
+        if (mJpegEncodeThread == null) {
+            mSoftwareJpegPool = mSoftwareJpegThreads > 1 ? new ForkJoinPool(mSoftwareJpegThreads) : null;
+            for (int i = 0; i < SOFTWARE_JPEG_ENCODERS; i++) {
+                mFreeJpegEncoders.add(new StripedJpegEncoder(mSoftwareJpegPool, StripedJpegEncoder.DEFAULT_QUALITY));
+            }
+            mJpegEncodeThread = new HandlerThread("JpegEncodeThread");
+            mJpegEncodeThread.start();
+            mJpegEncodeHandler = new Handler(mJpegEncodeThread.getLooper());
+            Log.v(TAG, "Software JPEG on " + mSoftwareJpegThreads + " threads");
+        }
+        final StripedJpegEncoder encoder = mFreeJpegEncoders.poll();
+        if (encoder == null) {
+            Log.e(TAG, "No free JPEG encoder, dropping shot.");
+            frame.image.close();
+            return;
+        }
+        final Image img = frame.image;
+        final int width = img.getWidth();
+        final int height = img.getHeight();
+        Image.Plane[] planes = img.getPlanes();
+        encoder.setFrame(width, height, planes[0].getBuffer(), planes[0].getRowStride(), planes[0].getPixelStride(),
+                planes[1].getBuffer(), planes[2].getBuffer(),
+                planes[1].getRowStride(), planes[1].getPixelStride());
+        img.close();
+
+        final long timestamp = frame.timestamp;
+        mReprocessScheduler.onSubmitted(timestamp, System.nanoTime());
+        ShotLatencyTracker tracker = mShotTracker;
+        if (tracker != null) {
+            tracker.onStage(timestamp, ShotLatencyTracker.STAGE_QUEUED, System.nanoTime());
+        }
+        // Todo: Read current orientation instead of just assuming device is in native orientation
+        final int orientation = mCameraInfoCache.sensorOrientation();
+        mJpegEncodeHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                encodeSoftwareJpeg(encoder, width, height, timestamp, orientation);
+            }
+        });
+    }
+
+    // On the encode thread: encode into a reused output array and hand it on as the JPEG
+    // listener does with the HAL's.
+    private void encodeSoftwareJpeg(final StripedJpegEncoder encoder, int width, int height,
+            final long timestamp, int orientation) {
+        long start = System.nanoTime();
+        int size = encoder.encode(orientation);
+        byte[] out = mJpegOutputs.poll();
+        if (out != null && out.length < size) {
+            out = new byte[size + size / 4];
+        } else if (out == null && mJpegOutputCount < SOFTWARE_JPEG_OUTPUT_BUFFERS) {
+            out = new byte[size + size / 4];
+            mJpegOutputCount++;
+        }
+        final boolean pooled = out != null;
+        if (!pooled) {
+            // Saver holds every output array; this one is handed over for good.
+            out = new byte[size];
+        }
+        encoder.writeTo(out);
+        final long returnNanos = System.nanoTime();
+        mSoftwareJpegNanos.record(returnNanos - start);
+        mSoftwareJpegPixels += (long) width * height;
+        Log.v(TAG, String.format("Software JPEG w=%d h=%d time=%d size=%d in %.1f ms, %d stripes on %d threads",
+                width, height, timestamp, size, (returnNanos - start) * 0.000001,
+                encoder.getStripeCount(), mSoftwareJpegThreads));
+        mOpsHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mJpegEncodeThread != null) {
+                    mFreeJpegEncoders.add(encoder);
+                }
+            }
+        });
+
+        ShotLatencyTracker tracker = mShotTracker;
+        if (tracker != null) {
+            tracker.onStage(timestamp, ShotLatencyTracker.STAGE_JPEG, returnNanos);
+        }
+        // Same book-keeping as a reprocessed shot, so shots/s compare directly. Posted before
+        // the callback, so a shot it fires finds the slot free.
+        mOpsHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                onReprocessingDone(timestamp, returnNanos);
+            }
+        });
+
+        BurstContainer container = mBurstContainer;
+        final byte[] jpeg = out;
+        if (container != null) {
+            container.append(SessionRecorder.STREAM_JPEG, width, height, timestamp, ByteBuffer.wrap(jpeg, 0, size));
+            if (pooled) {
+                mJpegOutputs.add(jpeg);
+            }
+        } else if (pooled) {
+            mMyCameraCallback.jpegBufferAvailable(ByteBuffer.wrap(jpeg, 0, size), width, height,
+                    timestamp, new Runnable() {
+                        @Override
+                        public void run() {
+                            mJpegOutputs.add(jpeg);
+                        }
+                    });
+        } else {
+            Log.v(TAG, "Saver holds " + SOFTWARE_JPEG_OUTPUT_BUFFERS + " JPEG arrays, allocating.");
+            mMyCameraCallback.jpegAvailable(jpeg, width, height, timestamp);
+        }
+    }
+
+    // On the encode thread.
+    private void logSoftwareJpeg() {
+        if (mSoftwareJpegNanos.getCount() == 0) {
+            return;
+        }
+        Log.v(TAG, String.format("Software JPEG on %d threads: %.1f MP/s, encode %s", mSoftwareJpegThreads,
+                mSoftwareJpegPixels * 1000.0 / (mSoftwareJpegNanos.getMean() * mSoftwareJpegNanos.getCount()),
+                mSoftwareJpegNanos.summary()));
+        mSoftwareJpegNanos.reset();
+        mSoftwareJpegPixels = 0;
+    }
+
+    private void submitReprocessing(ZslRingBuffer.Frame frame) {
+        CaptureRequest.Builder b1;
+        try {
+            b1 = mCameraDevice.createReprocessCaptureRequest(frame.result);
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Could not access camera for reprocess request.");
+            frame.image.close();
+            return;
+        }
+        // Sensor timestamp of the input, to free its slot if the request fails.
+        b1.setTag(frame.timestamp);
+        mImageWriter.queueInputImage(frame.image);
         Log.v(TAG, "  Sent YUV1 image to ImageWriter.queueInputImage()");
         try {
-            CaptureRequest.Builder b1 = mCameraDevice.createReprocessCaptureRequest(mLastTotalCaptureResult);
             // Todo: Read current orientation instead of just assuming device is in native orientation
             b1.set(CaptureRequest.JPEG_ORIENTATION, mCameraInfoCache.sensorOrientation());
             b1.set(CaptureRequest.JPEG_QUALITY, (byte) 95);
@@ -597,11 +1353,16 @@ public class Api2Camera implements CameraInterface, SurfaceTexture.OnFrameAvaila
             b1.set(CaptureRequest.EDGE_MODE, mReprocessingEdgeMode);
             b1.addTarget(mJpegImageReader.getSurface());
             mCurrentCaptureSession.capture(b1.build(), mReprocessingCaptureCallback, mOpsHandler);
-            mReprocessingRequestNanoTime = System.nanoTime();
+            mReprocessScheduler.onSubmitted(frame.timestamp, System.nanoTime());
+            ShotLatencyTracker tracker = mShotTracker;
+            if (tracker != null) {
+                tracker.onStage(frame.timestamp, ShotLatencyTracker.STAGE_QUEUED, System.nanoTime());
+            }
         } catch (CameraAccessException e) {
-            Log.e(TAG, "Could not access camera for issuePreviewCaptureRequest.");
+            // The queued input is dropped with the session.
+            Log.e(TAG, "Could not access camera to submit reprocess request.");
+            return;
         }
-        mYuv1LastReceivedImage = null;
         Log.v(TAG, "  Reprocessing request submitted.");
     }
 
@@ -614,19 +1375,51 @@ public class Api2Camera implements CameraInterface, SurfaceTexture.OnFrameAvaila
             new ImageReader.OnImageAvailableListener() {
                 @Override
                 public void onImageAvailable(ImageReader reader) {
-                    Image img = reader.acquireLatestImage();
+                    // Take every frame; the ZSL ring drops the oldest one when it is full.
+                    Image img;
+                    try {
+                        img = reader.acquireNextImage();
+                    } catch (IllegalStateException e) {
+                        // Should not happen with ZSL_HISTORY_SIZE; the frame stays queued.
+                        Log.e(TAG, "All YUV1 buffers are acquired, skipping frame.");
+                        return;
+                    }
                     if (img == null) {
                         Log.e(TAG, "Null image returned YUV1");
                         return;
                     }
-                    if (mYuv1LastReceivedImage != null) {
-                        mYuv1LastReceivedImage.close();
-                    }
-                    mYuv1LastReceivedImage = img;
+                    mDropTracker.onImage(FrameDropTracker.STREAM_YUV1, img.getTimestamp());
+                    mYuv1Timing.addFrame(img.getTimestamp());
+                    long scoreStart = System.nanoTime();
+                    Image.Plane y = img.getPlanes()[0];
+                    float sharpness = mSharpnessScorer.score(y.getBuffer(), img.getWidth(), img.getHeight(),
+                            y.getRowStride(), y.getPixelStride());
                     if (++mYuv1ImageCounter % LOG_NTH_FRAME == 0) {
-                        Log.v(TAG, "YUV1 buffer available, Frame #=" + mYuv1ImageCounter + " w=" + img.getWidth() + " h=" + img.getHeight() + " time=" + img.getTimestamp());
+                        Log.v(TAG, "YUV1 buffer available, Frame #=" + mYuv1ImageCounter + " w=" + img.getWidth() + " h=" + img.getHeight() + " time=" + img.getTimestamp() + mYuv1Timing.fpsString()
+                                + String.format(" sharpness=%.1f (%.2f ms)", sharpness, (System.nanoTime() - scoreStart) * 0.000001));
+                    }
+                    if (mSessionRecorder != null) {
+                        mSessionRecorder.writeImage(SessionRecorder.STREAM_YUV1, img.getTimestamp());
+                    }
+                    if (BENCHMARK_YUV_TO_ARGB) {
+                        if (mYuv1Benchmark == null) {
+                            mYuv1Benchmark = new YuvConversionBenchmark("YUV1", LOG_NTH_FRAME);
+                        }
+                        mYuv1Benchmark.run(img);
+                    }
+                    // Image may be reprocessed and closed right away, so this goes last.
+                    long timestamp = img.getTimestamp();
+                    if (mBracketTracker.contains(timestamp)) {
+                        mBracketFrames.addImage(img, sharpness);
+                    } else {
+                        mZslBuffer.addImage(img, sharpness);
+                    }
+                    mZslBuffer.trimImages(ZSL_HISTORY_SIZE - mBracketFrames.imageCount());
+                    mBracketTracker.onImage(FrameDropTracker.STREAM_YUV1, timestamp, System.nanoTime());
+                    pumpBracket();
+                    if (mIsBursting) {
+                        pumpBurst();
                     }
-
                 }
             };
 
@@ -635,7 +1428,7 @@ public class Api2Camera implements CameraInterface, SurfaceTexture.OnFrameAvaila
                 @Override
                 public void onImageAvailable(ImageReader reader)
                         throws BufferUnderflowException, IndexOutOfBoundsException {
-                    Image img = reader.acquireLatestImage();
+                    Image img = acquireLatestImage(reader, FrameDropTracker.STREAM_DEPTH);
                     if (img == null) {
                         Log.e(TAG, "Null image returned Depth");
                         return;
@@ -651,6 +1444,18 @@ public class Api2Camera implements CameraInterface, SurfaceTexture.OnFrameAvaila
                     } else {
                         Log.e(TAG, "Depth buffer with empty planes!");
                     }
+                    if (mSessionRecorder != null) {
+                        mSessionRecorder.writeImage(SessionRecorder.STREAM_DEPTH, img.getTimestamp());
+                    }
+                    if (mBurstContainer != null && mBurstContainerRaw && 0 < planes.length
+                            && isBurstOrBracketFrame(img.getTimestamp())) {
+                        mBurstContainer.append(SessionRecorder.STREAM_DEPTH, img.getWidth(), img.getHeight(),
+                                img.getTimestamp(), planes[0].getBuffer());
+                    }
+                    mDepthTiming.addFrame(img.getTimestamp());
+                    if ((mDepthCloudImageCounter + 1) % LOG_NTH_FRAME == 0) {
+                        Log.v(TAG, "Depth buffer available, Frame #=" + (mDepthCloudImageCounter + 1) + mDepthTiming.fpsString());
+                    }
                     img.close();
                     mDepthCloudImageCounter++;
                 }
@@ -660,30 +1465,61 @@ public class Api2Camera implements CameraInterface, SurfaceTexture.OnFrameAvaila
             new ImageReader.OnImageAvailableListener() {
                 @Override
                 public void onImageAvailable(ImageReader reader) {
-                    Image img = reader.acquireLatestImage();
+                    // Every JPEG is a shot, so don't skip any when several are queued.
+                    final Image img;
+                    synchronized (Api2Camera.this) {
+                        if (mJpegReaderClosing) {
+                            return;
+                        }
+                        img = reader.acquireNextImage();
+                    }
                     if (img == null) {
                         Log.e(TAG, "Null image returned JPEG");
                         return;
                     }
                     Image.Plane plane0 = img.getPlanes()[0];
                     final ByteBuffer buffer = plane0.getBuffer();
-                    long dt = System.nanoTime() - mReprocessingRequestNanoTime;
-                    Log.v(TAG, String.format("JPEG buffer available, w=%d h=%d time=%d size=%d dt=%.1f ms  ISO=%d",
-                            img.getWidth(), img.getHeight(), img.getTimestamp(), buffer.capacity(), 0.000001 * dt, mLastIso));
-                    // Save JPEG on the utility thread,
-                    final byte[] jpegBuf;
-                    if (buffer.hasArray()) {
-                        jpegBuf = buffer.array();
+                    final long timestamp = img.getTimestamp();
+                    final long returnNanos = System.nanoTime();
+                    ShotLatencyTracker tracker = mShotTracker;
+                    if (tracker != null) {
+                        tracker.onStage(timestamp, ShotLatencyTracker.STAGE_JPEG, returnNanos);
+                    }
+                    Log.v(TAG, String.format("JPEG buffer available, w=%d h=%d time=%d size=%d  ISO=%d",
+                            img.getWidth(), img.getHeight(), timestamp, buffer.remaining(), mLastIso));
+                    // Free the request slot and, if bursting, refill it right away. Posted
+                    // before the callback, so a shot it fires finds the slot free.
+                    mOpsHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onReprocessingDone(timestamp, returnNanos);
+                        }
+                    });
+                    BurstContainer container = mBurstContainer;
+                    if (container != null) {
+                        container.append(SessionRecorder.STREAM_JPEG, img.getWidth(), img.getHeight(),
+                                timestamp, buffer);
+                        img.close();
+                    } else if (ZERO_COPY_JPEG && mJpegImagesHeld.incrementAndGet() <= JPEG_MAX_HELD) {
+                        // Saver writes straight from the Image plane and closes it when done.
+                        mMyCameraCallback.jpegBufferAvailable(buffer, img.getWidth(), img.getHeight(),
+                                timestamp, new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        img.close();
+                                        mJpegImagesHeld.decrementAndGet();
+                                        maybeCloseJpegReader();
+                                    }
+                                });
                     } else {
-                        jpegBuf = new byte[buffer.capacity()];
+                        if (ZERO_COPY_JPEG) {
+                            mJpegImagesHeld.decrementAndGet();
+                            Log.v(TAG, "Saver holds " + JPEG_MAX_HELD + " JPEG images, copying.");
+                        }
+                        byte[] jpegBuf = new byte[buffer.remaining()];
                         buffer.get(jpegBuf);
-                    }
-                    mMyCameraCallback.jpegAvailable(jpegBuf, img.getWidth(), img.getHeight());
-                    img.close();
-
-                    // take (reprocess) another picture right away if bursting.
-                    if (mIsBursting) {
-                        takePicture();
+                        mMyCameraCallback.jpegAvailable(jpegBuf, img.getWidth(), img.getHeight(), timestamp);
+                        img.close();
                     }
                 }
             };
@@ -693,12 +1529,26 @@ public class Api2Camera implements CameraInterface, SurfaceTexture.OnFrameAvaila
             new ImageReader.OnImageAvailableListener() {
                 @Override
                 public void onImageAvailable(ImageReader reader) {
-                    Image img = reader.acquireLatestImage();
+                    Image img = acquireLatestImage(reader, FrameDropTracker.STREAM_YUV2);
                     if (img == null) {
                         Log.e(TAG, "Null image returned YUV2");
                     } else {
+                        mYuv2Timing.addFrame(img.getTimestamp());
                         if (++mYuv2ImageCounter % LOG_NTH_FRAME == 0) {
-                            Log.v(TAG, "YUV2 buffer available, Frame #=" + mYuv2ImageCounter + " w=" + img.getWidth() + " h=" + img.getHeight() + " time=" + img.getTimestamp());
+                            Log.v(TAG, "YUV2 buffer available, Frame #=" + mYuv2ImageCounter + " w=" + img.getWidth() + " h=" + img.getHeight() + " time=" + img.getTimestamp() + mYuv2Timing.fpsString());
+                        }
+                        if (mSessionRecorder != null) {
+                            mSessionRecorder.writeImage(SessionRecorder.STREAM_YUV2, img.getTimestamp());
+                            mSessionRecorder.writeYuv2(img);
+                        }
+                        if (BENCHMARK_YUV_TO_ARGB) {
+                            if (mYuv2Benchmark == null) {
+                                mYuv2Benchmark = new YuvConversionBenchmark("YUV2", LOG_NTH_FRAME);
+                            }
+                            mYuv2Benchmark.run(img);
+                        }
+                        if (mGyroLatencyEstimator != null) {
+                            addGyroLatencyFrame(img);
                         }
                         img.close();
                     }
@@ -706,14 +1556,44 @@ public class Api2Camera implements CameraInterface, SurfaceTexture.OnFrameAvaila
             };
 
 
+    // Only RAW and depth frames taken while bursting or in a bracket go to the burst container;
+    // the rest of the session would fill it within seconds.
+    private boolean isBurstOrBracketFrame(long timestamp) {
+        return mIsBursting || mBracketTracker.contains(timestamp);
+    }
+
+    // Hand the image motion since the previous YUV2 frame to the gyro latency estimator.
+    private void addGyroLatencyFrame(Image img) {
+        long timestamp = img.getTimestamp();
+        long cameraNow = mCameraInfoCache.sensorTimestampNow();
+        // Gyro events use the elapsedRealtimeNanos() base, which the camera may not.
+        long toGyroTime = SystemClock.elapsedRealtimeNanos() - cameraNow;
+        if (timestamp - mYuv2MotionTimestamp > YUV2_MAX_MOTION_INTERVAL_NANOS) {
+            mYuv2Motion.reset();
+        }
+        Image.Plane y = img.getPlanes()[0];
+        if (mYuv2Motion.addFrame(y.getBuffer(), img.getWidth(), img.getHeight(),
+                y.getRowStride(), y.getPixelStride())) {
+            float motion = (float) Math.hypot(mYuv2Motion.getDx(), mYuv2Motion.getDy());
+            mGyroLatencyEstimator.addFrame(mYuv2MotionTimestamp + toGyroTime,
+                    timestamp + toGyroTime, motion, cameraNow - timestamp);
+            mGyroOffsetNanos = mGyroLatencyEstimator.getOffsetNanos();
+        }
+        mYuv2MotionTimestamp = timestamp;
+    }
+
     ImageReader.OnImageAvailableListener mRawImageListener =
             new ImageReader.OnImageAvailableListener() {
                 @Override
                 public void onImageAvailable(ImageReader reader) {
-                    final Image img = reader.acquireLatestImage();
+                    final Image img = acquireLatestImage(reader, FrameDropTracker.STREAM_RAW);
                     if (img == null) {
                         Log.e(TAG, "Null image returned RAW");
                     } else {
+                        mRawTiming.addFrame(img.getTimestamp());
+                        boolean keep = isBurstOrBracketFrame(img.getTimestamp());
+                        mBracketTracker.onImage(FrameDropTracker.STREAM_RAW, img.getTimestamp(), System.nanoTime());
+                        pumpBracket();
                         if (++mRawImageCounter % LOG_NTH_FRAME == 0) {
                             Image.Plane plane0 = img.getPlanes()[0];
                             final ByteBuffer buffer = plane0.getBuffer();
@@ -722,7 +1602,15 @@ public class Api2Camera implements CameraInterface, SurfaceTexture.OnFrameAvaila
                                     + " format=" + CameraDeviceReport.getFormatName(img.getFormat())
                                     + " time=" + img.getTimestamp()
                                     + " size=" + buffer.capacity()
-                                    + " getRowStride()=" + plane0.getRowStride());
+                                    + " getRowStride()=" + plane0.getRowStride()
+                                    + mRawTiming.fpsString());
+                        }
+                        if (mSessionRecorder != null) {
+                            mSessionRecorder.writeImage(SessionRecorder.STREAM_RAW, img.getTimestamp());
+                        }
+                        if (mBurstContainer != null && mBurstContainerRaw && keep) {
+                            mBurstContainer.append(SessionRecorder.STREAM_RAW, img.getWidth(), img.getHeight(),
+                                    img.getTimestamp(), img.getPlanes()[0].getBuffer());
                         }
                         img.close();
                     }
@@ -733,116 +1621,221 @@ public class Api2Camera implements CameraInterface, SurfaceTexture.OnFrameAvaila
      * CaptureResult metadata processing *
      *************************************/
 
+    // acquireLatestImage(), but tells mDropTracker about the images it skips. Bracket frames
+    // are never skipped; the newer images wait for the next onImageAvailable().
+    private Image acquireLatestImage(ImageReader reader, int stream) {
+        Image img = reader.acquireNextImage();
+        if (img == null) {
+            return null;
+        }
+        while (!mBracketTracker.contains(img.getTimestamp())) {
+            Image next;
+            try {
+                next = reader.acquireNextImage();
+            } catch (IllegalStateException e) {
+                // All maxImages are acquired; keep what we have.
+                break;
+            }
+            if (next == null) {
+                break;
+            }
+            mDropTracker.onImageDiscarded(stream, img.getTimestamp());
+            img.close();
+            img = next;
+        }
+        mDropTracker.onImage(stream, img.getTimestamp());
+        return img;
+    }
+
+    // Output streams of a repeating request, from its tag.
+    private static int streamsOf(CaptureRequest request) {
+        Object tag = request.getTag();
+        return tag instanceof Integer ? (Integer) tag : 0;
+    }
+
+    private int streamOf(Surface surface) {
+        if (mYuv1ImageReader != null && surface.equals(mYuv1ImageReader.getSurface())) {
+            return FrameDropTracker.STREAM_YUV1;
+        } else if (mYuv2ImageReader != null && surface.equals(mYuv2ImageReader.getSurface())) {
+            return FrameDropTracker.STREAM_YUV2;
+        } else if (mRawImageReader != null && surface.equals(mRawImageReader.getSurface())) {
+            return FrameDropTracker.STREAM_RAW;
+        } else if (mDepthCloudImageReader != null && surface.equals(mDepthCloudImageReader.getSurface())) {
+            return FrameDropTracker.STREAM_DEPTH;
+        }
+        return FrameDropTracker.STREAM_PREVIEW;
+    }
+
     private CameraCaptureSession.CaptureCallback mCaptureCallback = new LoggingCallbacks.SessionCaptureCallback() {
+        @Override
+        public void onCaptureStarted(CameraCaptureSession session, CaptureRequest request, long timestamp, long frameNumber) {
+            mDropTracker.onCaptureStarted(frameNumber, timestamp, streamsOf(request));
+            mLastStartedFrameNumber = Math.max(mLastStartedFrameNumber, frameNumber);
+            int bracketIndex = mBracketTracker.indexOf(request);
+            if (bracketIndex >= 0) {
+                mBracketTracker.onStarted(bracketIndex, timestamp, frameNumber);
+            }
+            if (!mFirstFrameArrived) {
+                CameraTimer.end(CameraTimer.FIRST_REQUEST);
+                CameraTimer.begin(CameraTimer.FIRST_RESULT);
+            }
+            super.onCaptureStarted(session, request, timestamp, frameNumber);
+        }
+
+        @Override
+        public void onCaptureFailed(CameraCaptureSession session, CaptureRequest request, CaptureFailure failure) {
+            Log.e(TAG, "Capture failed, frame " + failure.getFrameNumber() + " reason " + failure.getReason());
+            mDropTracker.onCaptureFailed(failure.getFrameNumber(), streamsOf(request));
+            int bracketIndex = mBracketTracker.indexOf(request);
+            if (bracketIndex >= 0) {
+                mBracketTracker.onFailed(bracketIndex, System.nanoTime());
+            }
+            super.onCaptureFailed(session, request, failure);
+        }
+
+        @Override
+        public void onCaptureBufferLost(CameraCaptureSession session, CaptureRequest request, Surface target, long frameNumber) {
+            mDropTracker.onBufferLost(frameNumber, streamOf(target));
+            int bracketIndex = mBracketTracker.indexOf(request);
+            if (bracketIndex >= 0) {
+                mBracketTracker.onBufferLost(bracketIndex, streamOf(target), System.nanoTime());
+            }
+            super.onCaptureBufferLost(session, request, target, frameNumber);
+        }
+
         @Override
         public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request, TotalCaptureResult result) {
             if (!mFirstFrameArrived) {
                 mFirstFrameArrived = true;
-                long now = SystemClock.elapsedRealtime();
-                long dt = now - CameraTimer.t0;
-                long camera_dt = now - CameraTimer.t_session_go + CameraTimer.t_open_end - CameraTimer.t_open_start;
-                long repeating_req_dt = now - CameraTimer.t_burst;
+                CameraTimer.end(CameraTimer.FIRST_RESULT);
+                long dt = CameraTimer.sinceLaunchMillis();
+                long camera_dt = CameraTimer.halWaitMillis();
                 Log.v(TAG, "App control to first frame: (" + dt + " ms)");
-                Log.v(TAG, "HAL request to first frame: (" + repeating_req_dt + " ms) " + " Total HAL wait: (" + camera_dt + " ms)");
+                Log.v(TAG, "Total HAL wait: (" + camera_dt + " ms)");
+                CameraTimer.logLaunch();
                 mMyCameraCallback.receivedFirstFrame();
                 mMyCameraCallback.performanceDataAvailable((int) dt, (int) camera_dt, null);
             }
             publishFrameData(result);
+            if (mSessionRecorder != null) {
+                mSessionRecorder.writeFrame(mFrameMetadata);
+            }
             // Used for reprocessing.
-            mLastTotalCaptureResult = result;
+            if (mCaptureYuv1) {
+                long exposureSpan = mFrameMetadata.rollingShutterSkew + mFrameMetadata.exposureTime;
+                int bracketIndex = mBracketTracker.indexOf(request);
+                // A bracket frame goes with its image, which is normally not here yet.
+                if (bracketIndex >= 0 && !mZslBuffer.hasImage(mFrameMetadata.timestamp)) {
+                    mBracketFrames.addResult(result, mFrameMetadata.motion, exposureSpan);
+                } else {
+                    mZslBuffer.addResult(result, mFrameMetadata.motion, exposureSpan);
+                }
+                if (bracketIndex >= 0) {
+                    mBracketTracker.onResult(bracketIndex, System.nanoTime());
+                    pumpBracket();
+                }
+                if (mIsBursting) {
+                    pumpBurst();
+                }
+            }
             super.onCaptureCompleted(session, request, result);
         }
     };
 
+    private void onReprocessingDone(long timestamp, long returnNanos) {
+        if (mSessionRecorder != null) {
+            mSessionRecorder.writeImage(SessionRecorder.STREAM_JPEG, timestamp);
+        }
+        long dt = mReprocessScheduler.onCompleted(timestamp, returnNanos);
+        Log.v(TAG, String.format("Reprocess round trip %.1f ms, %d in flight, %.2f shots/s",
+                0.000001 * dt, mReprocessScheduler.inFlight(), mReprocessScheduler.shotsPerSecond()));
+        pumpMerge();
+        pumpBracket();
+        if (mIsBursting) {
+            pumpBurst();
+        }
+    }
+
     // Reprocessing capture completed.
     private CameraCaptureSession.CaptureCallback mReprocessingCaptureCallback = new LoggingCallbacks.SessionCaptureCallback() {
         @Override
         public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request, TotalCaptureResult result) {
             Log.v(TAG, "Reprocessing onCaptureCompleted()");
-        }
-    };
-
-    private static double SHORT_LOG_EXPOSURE = Math.log10(1000000000 / 10000); // 1/10000 second
-    private static double LONG_LOG_EXPOSURE = Math.log10(1000000000 / 10); // 1/10 second
-    public int FPS_CALC_LOOKBACK = 15;
-    private LinkedList<Long> mFrameTimes = new LinkedList<Long>();
-
-    private void publishFrameData(TotalCaptureResult result) {
-        // Faces.
-        final Face[] faces = result.get(CaptureResult.STATISTICS_FACES);
-        NormalizedFace[] newFaces = new NormalizedFace[faces.length];
-        if (faces.length > 0) {
-            int offX = mCameraInfoCache.faceOffsetX();
-            int offY = mCameraInfoCache.faceOffsetY();
-            int dX = mCameraInfoCache.activeAreaWidth() - 2 * offX;
-            int dY = mCameraInfoCache.activeAreaHeight() - 2 * offY;
-            if (mCameraInfoCache.IS_NEXUS_6 && mCameraIsFront) {
-                // Front camera on Nexus 6 is currently 16 x 9 cropped to 4 x 3.
-                // TODO: Generalize this.
-                int cropOffset = dX / 8;
-                dX -= 2 * cropOffset;
-                offX += cropOffset;
-            }
-            int orientation = mCameraInfoCache.sensorOrientation();
-            for (int i = 0; i < faces.length; ++i) {
-                newFaces[i] = new NormalizedFace(faces[i], dX, dY, offX, offY);
-                if (mCameraIsFront && orientation == 90) {
-                    newFaces[i].mirrorInY();
-                }
-                if (mCameraIsFront && orientation == 270) {
-                    newFaces[i].mirrorInX();
-                }
-                if (!mCameraIsFront && orientation == 270) {
-                    newFaces[i].mirrorInX();
-                    newFaces[i].mirrorInY();
-                }
+            ShotLatencyTracker tracker = mShotTracker;
+            Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+            if (tracker != null && timestamp != null) {
+                tracker.onStage(timestamp, ShotLatencyTracker.STAGE_REPROCESSED, System.nanoTime());
             }
         }
 
-        // Normalized lens and exposure coordinates.
-        double rm = Math.log10(result.get(CaptureResult.SENSOR_EXPOSURE_TIME));
-        float normExposure = (float) ((rm - SHORT_LOG_EXPOSURE) / (LONG_LOG_EXPOSURE - SHORT_LOG_EXPOSURE));
-        float normLensPos = (mCameraInfoCache.getDiopterHi() - result.get(CaptureResult.LENS_FOCUS_DISTANCE)) / (mCameraInfoCache.getDiopterHi() - mCameraInfoCache.getDiopterLow());
-        mLastIso = result.get(CaptureResult.SENSOR_SENSITIVITY);
-
-        // Update frame arrival history.
-        mFrameTimes.add(result.get(CaptureResult.SENSOR_TIMESTAMP));
-        if (mFrameTimes.size() > FPS_CALC_LOOKBACK) {
-            mFrameTimes.removeFirst();
+        @Override
+        public void onCaptureFailed(CameraCaptureSession session, CaptureRequest request, CaptureFailure failure) {
+            Log.e(TAG, "Reprocessing onCaptureFailed(), reason " + failure.getReason());
+            onReprocessingFailed(request);
         }
 
-        // Frame drop detector
-        {
-            float frameDuration = result.get(CaptureResult.SENSOR_FRAME_DURATION);
-            if (mFrameTimes.size() > 1) {
-                long dt = result.get(CaptureResult.SENSOR_TIMESTAMP) - mFrameTimes.get(mFrameTimes.size()-2);
-                if (dt > 3 * frameDuration / 2 && LOG_DROPPED_FRAMES) {
-                    float drops = (dt * 1f / frameDuration) - 1f;
-                    Log.e(TAG, String.format("dropped %.2f frames", drops));
-                    mMyCameraCallback.performanceDataAvailable(null, null, drops);
-                }
-            }
+        @Override
+        public void onCaptureBufferLost(CameraCaptureSession session, CaptureRequest request, Surface target, long frameNumber) {
+            Log.e(TAG, "Reprocessing JPEG buffer lost");
+            onReprocessingFailed(request);
         }
+    };
 
-        // FPS calc.
-        float fps = 0;
-        if (mFrameTimes.size() > 1) {
-            long dt = mFrameTimes.getLast() - mFrameTimes.getFirst();
-            fps = (mFrameTimes.size() - 1) * 1000000000f / dt;
-            fps = (float) Math.floor(fps + 0.1); // round to nearest whole number, ish.
+    // No JPEG is coming for this reprocess request: free its slot and, if bursting, refill it.
+    private void onReprocessingFailed(CaptureRequest request) {
+        Object tag = request.getTag();
+        if (!(tag instanceof Long) || !mReprocessScheduler.onFailed((Long) tag)) {
+            return;
+        }
+        pumpMerge();
+        pumpBracket();
+        if (mIsBursting) {
+            pumpBurst();
         }
+    }
 
-        // Do callback.
-        if (mMyCameraCallback != null) {
-            mMyCameraCallback.frameDataAvailable(newFaces, normExposure, normLensPos, fps,
-                    (int) mLastIso, result.get(CaptureResult.CONTROL_AF_STATE), result.get(CaptureResult.CONTROL_AE_STATE), result.get(CaptureResult.CONTROL_AWB_STATE));
-        } else {
-            Log.v(TAG, "mMyCameraCallbacks is null!!.");
+    // Reused for every repeating request result.
+    private FrameMetadata mFrameMetadata = new FrameMetadata();
+    // Non-null while recording the session.
+    private SessionRecorder mSessionRecorder;
+    // Non-null while saving to a burst container. Also read on the JPEG listener thread.
+    private volatile BurstContainer mBurstContainer;
+    // Non-null while timing shots. Also read on the JPEG listener thread.
+    private volatile ShotLatencyTracker mShotTracker;
+    private boolean mBurstContainerRaw;
+
+    private void publishFrameData(TotalCaptureResult result) {
+        mFrameMetadata.set(result);
+        if (mGyroHistory != null) {
+            mFrameMetadata.motion = exposureMotion(mFrameMetadata);
+        }
+        mLastIso = mFrameMetadata.iso;
+        mResultTiming.addFrame(mFrameMetadata.timestamp);
+        if (mFrameMetadata.frameNumber % TIMING_WINDOW_FRAMES == 0) {
+            mDropTracker.logAndReset();
         }
+        if (mBurstContainer != null) {
+            mBurstContainer.addMetadata(mFrameMetadata);
+        }
+        mFrameDataPublisher.publish(mFrameMetadata, mMyCameraCallback);
     }
 
     long mLastIso = 0;
 
+    // Angle turned through from the first row starting exposure to the last row finishing.
+    // Results come a few frames after exposure, so the gyro has normally caught up by then;
+    // if not (long exposures), the ZSL ring looks it up again when the shutter picks a frame.
+    private float exposureMotion(FrameMetadata m) {
+        long start = m.timestamp + sensorToGyroTime();
+        return mGyroHistory.motion(start, start + m.rollingShutterSkew + m.exposureTime);
+    }
+
+    // Offset from the sensor time base to gyro time, including the measured gyro delay.
+    private long sensorToGyroTime() {
+        return SystemClock.elapsedRealtimeNanos() - mCameraInfoCache.sensorTimestampNow()
+                + mGyroOffsetNanos;
+    }
+
     /*********************
      * UTILITY FUNCTIONS *
      *********************/
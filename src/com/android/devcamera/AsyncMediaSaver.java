@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Saves JPEGs with MediaSaver on a pool of writer threads fed by a bounded queue.
+ *
+ * When the queue is full the Backpressure policy decides what happens to a new JPEG.
+ * Keeps per-file latency (submit to saved) and overall throughput counters.
+ */
+public class AsyncMediaSaver {
+    private static final String TAG = "DevCamera_SAVER";
+
+    public enum Backpressure {
+        // Submitting thread waits for room in the queue.
+        BLOCK,
+        // JPEG is discarded and counted.
+        DROP,
+        // Submitting thread saves the JPEG itself, so work spills back onto the producer.
+        SPILL
+    }
+
+    /**
+     * Called on a writer thread (or the submitting thread for SPILL) after each save.
+     */
+    public interface Listener {
+        void onSaved(String filename, int bytes, long latencyNanos);
+    }
+
+    private final Context mContext;
+    private final MediaStoreIndexer mIndexer;
+    private final Backpressure mBackpressure;
+    private final ThreadPoolExecutor mExecutor;
+
+    private final AtomicInteger mSaved = new AtomicInteger();
+    private final AtomicInteger mDropped = new AtomicInteger();
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicLong mTotalLatencyNanos = new AtomicLong();
+    private final AtomicLong mMaxLatencyNanos = new AtomicLong();
+    private final AtomicLong mFirstSubmitNanos = new AtomicLong();
+    private final AtomicLong mLastSavedNanos = new AtomicLong();
+
+    /**
+     * @param indexer Adds saved JPEGs to the MediaStore, or null to not index them.
+     * @param threads Number of writer threads.
+     * @param queueSize Max JPEGs waiting for a writer thread.
+     */
+    public AsyncMediaSaver(Context context, MediaStoreIndexer indexer, int threads, int queueSize,
+            Backpressure backpressure) {
+        mContext = context;
+        mIndexer = indexer;
+        mBackpressure = backpressure;
+        mExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), mThreadFactory, mRejectedHandler);
+        // Scan for existing files on a writer thread instead of during the first save.
+        // The queue is empty here, so this can't reach mRejectedHandler.
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                MediaSaver.prepare(mContext);
+            }
+        });
+    }
+
+    /**
+     * Queue a JPEG for saving. Returns false if it was dropped.
+     */
+    public boolean saveJpeg(byte[] jpegData, Listener listener) {
+        return submit(new SaveJob(jpegData, null, null, listener));
+    }
+
+    /**
+     * Queue a JPEG that is still in someone else's buffer, e.g. an Image plane. It is written
+     * without being copied, and release is run once the buffer is no longer needed, whether
+     * the save succeeded or the JPEG was dropped. Returns false if it was dropped.
+     */
+    public boolean saveJpeg(ByteBuffer jpegData, Runnable release, Listener listener) {
+        return submit(new SaveJob(null, jpegData, release, listener));
+    }
+
+    /**
+     * Finish queued saves on the writer threads, then stop them.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+        Log.v(TAG, "Shutting down. " + getStats());
+    }
+
+    public int getQueueDepth() {
+        return mExecutor.getQueue().size();
+    }
+
+    public String getStats() {
+        int saved = mSaved.get();
+        long span = mLastSavedNanos.get() - mFirstSubmitNanos.get();
+        double seconds = span > 0 ? span * 0.000000001 : 0;
+        return String.format("saved=%d dropped=%d queued=%d avg=%.1f ms max=%.1f ms %.2f files/s %.2f MB/s",
+                saved, mDropped.get(), getQueueDepth(),
+                saved > 0 ? mTotalLatencyNanos.get() * 0.000001 / saved : 0,
+                mMaxLatencyNanos.get() * 0.000001,
+                seconds > 0 ? saved / seconds : 0,
+                seconds > 0 ? mBytes.get() / seconds / (1024 * 1024) : 0);
+    }
+
+    private boolean submit(SaveJob job) {
+        mFirstSubmitNanos.compareAndSet(0, job.mSubmitNanos);
+        mExecutor.execute(job);
+        return !job.mDropped;
+    }
+
+    private void drop(SaveJob job) {
+        job.mDropped = true;
+        mDropped.incrementAndGet();
+        job.release();
+    }
+
+    private void recordSave(int bytes, long latency, long now) {
+        mSaved.incrementAndGet();
+        mBytes.addAndGet(bytes);
+        mTotalLatencyNanos.addAndGet(latency);
+        long max;
+        do {
+            max = mMaxLatencyNanos.get();
+        } while (latency > max && !mMaxLatencyNanos.compareAndSet(max, latency));
+        mLastSavedNanos.set(now);
+    }
+
+    // Saves either a byte array or a buffer owned by someone else.
+    private class SaveJob implements Runnable {
+        final byte[] mJpegArray;
+        final ByteBuffer mJpegBuffer;
+        final Runnable mRelease;
+        final Listener mListener;
+        final long mSubmitNanos = System.nanoTime();
+        // Set by the rejected execution handler on the submitting thread.
+        boolean mDropped = false;
+
+        SaveJob(byte[] jpegArray, ByteBuffer jpegBuffer, Runnable release, Listener listener) {
+            mJpegArray = jpegArray;
+            mJpegBuffer = jpegBuffer;
+            mRelease = release;
+            mListener = listener;
+        }
+
+        @Override
+        public void run() {
+            String filename;
+            int bytes;
+            if (mJpegArray != null) {
+                bytes = mJpegArray.length;
+                filename = MediaSaver.saveJpeg(mContext, mJpegArray, null);
+            } else {
+                bytes = mJpegBuffer.remaining();
+                try {
+                    filename = MediaSaver.saveJpeg(mContext, mJpegBuffer, null);
+                } finally {
+                    release();
+                }
+            }
+            if (mIndexer != null && !filename.isEmpty()) {
+                mIndexer.add(new File(filename));
+            }
+            long now = System.nanoTime();
+            long latency = now - mSubmitNanos;
+            recordSave(bytes, latency, now);
+            Log.v(TAG, String.format("Saved %s, %.1f ms after submit. %s",
+                    filename, latency * 0.000001, getStats()));
+            if (mListener != null) {
+                mListener.onSaved(filename, bytes, latency);
+            }
+        }
+
+        void release() {
+            if (mRelease != null) {
+                mRelease.run();
+            }
+        }
+    }
+
+    private final ThreadFactory mThreadFactory = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "JpegSaverThread" + mCount.incrementAndGet());
+        }
+    };
+
+    // Only called when the queue is full (or the pool is shut down).
+    private final RejectedExecutionHandler mRejectedHandler = new RejectedExecutionHandler() {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            SaveJob job = (SaveJob) r;
+            if (executor.isShutdown()) {
+                Log.e(TAG, "Saver is shut down, JPEG dropped.");
+                drop(job);
+                return;
+            }
+            switch (mBackpressure) {
+                case BLOCK:
+                    try {
+                        executor.getQueue().put(r);
+                        // A shutdown() while we waited leaves no worker to take r.
+                        if (executor.isShutdown() && executor.remove(r)) {
+                            Log.e(TAG, "Saver shut down while queued, JPEG dropped.");
+                            drop(job);
+                        }
+                    } catch (InterruptedException e) {
+                        Log.e(TAG, "Interrupted waiting for saver queue, JPEG dropped.");
+                        drop(job);
+                        Thread.currentThread().interrupt();
+                    }
+                    break;
+                case DROP:
+                    Log.e(TAG, "Saver queue full, JPEG dropped.");
+                    drop(job);
+                    break;
+                case SPILL:
+                    r.run();
+                    break;
+            }
+        }
+    };
+}
@@ -16,54 +16,67 @@
 package com.android.devcamera;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Matrix;
 import android.media.Image;
 
-import java.nio.ByteBuffer;
-
 /**
  * Some Bitmap utility functions.
  */
 public class BitmapUtility {
+    // Shared by the convenience methods; single threaded.
+    private static final YuvToArgbConverter sYuvConverter = new YuvToArgbConverter(1);
+    // About 200 pixels on the short side, rotated 90 degrees.
+    private static final ThumbnailDecoder sThumbnailDecoder = new ThumbnailDecoder(200, 90);
 
+    /**
+     * Thumbnail of a JPEG; hand it to recycleThumbnail() once it is no longer shown.
+     */
     public static Bitmap bitmapFromJpeg(byte[] data) {
-        // 32K buffer.
-        byte[] decodeBuffer = new byte[32 * 1024]; // 32K buffer.
+        return sThumbnailDecoder.decode(data);
+    }
 
-        BitmapFactory.Options opts = new BitmapFactory.Options();
-        opts.inSampleSize = 16; // 3264 / 16 = 204.
-        opts.inTempStorage = decodeBuffer;
-        Bitmap b = BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+    /**
+     * Same, for a JPEG in the first length bytes of data.
+     */
+    public static Bitmap bitmapFromJpeg(byte[] data, int length) {
+        return sThumbnailDecoder.decode(data, length);
+    }
 
-        return rotatedBitmap(b);
+    /**
+     * Give a Bitmap from bitmapFromJpeg() back, to decode the next thumbnail into.
+     */
+    public static void recycleThumbnail(Bitmap b) {
+        sThumbnailDecoder.recycle(b);
     }
 
     public static Bitmap bitmapFromYuvImage(Image img) {
+        return bitmapFromYuvImage(img, sYuvConverter, null);
+    }
+
+    /**
+     * Full colour Bitmap of a YUV_420_888 image, rotated 90 degrees.
+     * @param reuse Bitmap to draw into if it is mutable and the right size, or null.
+     */
+    public static Bitmap bitmapFromYuvImage(Image img, YuvToArgbConverter converter, Bitmap reuse) {
         int w = img.getWidth();
         int h = img.getHeight();
-        ByteBuffer buf0 = img.getPlanes()[0].getBuffer();
-        int len = buf0.capacity();
-        int[] colors = new int[len];
-        int alpha = 255 << 24;
-        int green;
-        for (int i = 0; i < len; i++) {
-            green = ((int) buf0.get(i)) & 255;
-            colors[i] = green << 16 | green << 8 | green | alpha;
+        int[] colors = convertYuvImage(img, converter, true);
+        Bitmap b = reuse;
+        if (b == null || !b.isMutable() || b.getWidth() != h || b.getHeight() != w) {
+            b = Bitmap.createBitmap(h, w, Bitmap.Config.ARGB_8888);
         }
-        Bitmap b = Bitmap.createBitmap(colors, w, h, Bitmap.Config.ARGB_8888);
-
-        return rotatedBitmap(b);
+        b.setPixels(colors, 0, h, 0, 0, h, w);
+        converter.recycle(colors);
+        return b;
     }
 
     /**
-     * Returns parameter bitmap rotated 90 degrees
+     * ARGB pixels of a YUV_420_888 image, in an array from converter; recycle() it when done.
      */
-    private static Bitmap rotatedBitmap(Bitmap b) {
-        Matrix mat = new Matrix();
-        mat.postRotate(90);
-        Bitmap b2 = Bitmap.createBitmap(b, 0, 0,b.getWidth(),b.getHeight(), mat, true);
-        return b2;
+    public static int[] convertYuvImage(Image img, YuvToArgbConverter converter, boolean rotate90) {
+        Image.Plane[] planes = img.getPlanes();
+        return converter.convert(planes[0].getBuffer(), planes[0].getRowStride(), planes[0].getPixelStride(),
+                planes[1].getBuffer(), planes[2].getBuffer(), planes[1].getRowStride(), planes[1].getPixelStride(),
+                img.getWidth(), img.getHeight(), rotate90);
     }
 
 }
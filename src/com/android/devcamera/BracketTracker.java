@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera;
+
+import android.hardware.camera2.CaptureRequest;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * Follows one exposure bracket, sent as a single captureBurst() on top of the repeating
+ * request, from submission until every frame has its capture result and images.
+ *
+ * Bracket requests are recognized by identity in the shared capture callbacks; images are
+ * matched to them by sensor timestamp, as everywhere else. Completed YUV frames are queued
+ * for reprocessing in bracket order.
+ *
+ * Per bracket it measures:
+ *   latency            submission to the last result or image.
+ *   start delay        repeating frames that started between submission and the first
+ *                      bracket frame, i.e. how deep the HAL pipeline was.
+ *   frames to complete start delay plus the bracket frames, up to the last one. A burst
+ *                      keeps its frames back to back; capture() per frame adds bubbles.
+ *
+ * Not thread safe: only use this from the camera operations thread.
+ */
+public class BracketTracker {
+    private static final String TAG = "DevCamera_BRACKET";
+
+    public static final int MAX_FRAMES = 9;
+    private static final long HIGHEST_TRACKABLE_NANOS = 10000000000L;
+    // A bracket still unsettled after this long is given up, e.g. when an image was starved.
+    private static final long TIMEOUT_NANOS = 3000000000L;
+
+    private List<CaptureRequest> mRequests;
+    private int mFrames = 0;
+    private boolean mExpectRaw;
+    private long mSubmitNanos;
+    private long mFrameNumberAtSubmit;
+
+    private final long[] mTimestamps = new long[MAX_FRAMES];
+    private final long[] mFrameNumbers = new long[MAX_FRAMES];
+    private final boolean[] mHaveResult = new boolean[MAX_FRAMES];
+    private final boolean[] mHaveYuv = new boolean[MAX_FRAMES];
+    private final boolean[] mHaveRaw = new boolean[MAX_FRAMES];
+    private final boolean[] mFailed = new boolean[MAX_FRAMES];
+    private final boolean[] mQueued = new boolean[MAX_FRAMES];
+    private int mSettled = 0;
+
+    // Timestamps of complete YUV frames waiting to be reprocessed, oldest first.
+    private final long[] mReprocessQueue = new long[MAX_FRAMES];
+    private int mReprocessHead = 0;
+    private int mReprocessCount = 0;
+
+    private final LatencyHistogram mLatency = new LatencyHistogram(HIGHEST_TRACKABLE_NANOS);
+    private final LatencyHistogram mFramesToComplete = new LatencyHistogram(HIGHEST_TRACKABLE_NANOS);
+    private final LatencyHistogram mStartDelay = new LatencyHistogram(HIGHEST_TRACKABLE_NANOS);
+
+    /**
+     * Whether a bracket is still in progress; one that timed out is dropped.
+     */
+    public boolean isActive(long nowNanos) {
+        if (mRequests != null && nowNanos - mSubmitNanos > TIMEOUT_NANOS) {
+            Log.e(TAG, "Bracket timed out with " + mSettled + " of " + mFrames + " frames settled");
+            mRequests = null;
+        }
+        return mRequests != null;
+    }
+
+    /**
+     * A bracket of these requests was just submitted.
+     *
+     * @param expectRaw Whether each frame also goes to the RAW stream.
+     * @param lastFrameNumber Frame number of the last capture started before submission.
+     */
+    public void begin(List<CaptureRequest> requests, boolean expectRaw, long lastFrameNumber,
+            long nowNanos) {
+        mRequests = requests;
+        mFrames = Math.min(requests.size(), MAX_FRAMES);
+        mExpectRaw = expectRaw;
+        mSubmitNanos = nowNanos;
+        mFrameNumberAtSubmit = lastFrameNumber;
+        for (int i = 0; i < mFrames; i++) {
+            mTimestamps[i] = 0;
+            mFrameNumbers[i] = -1;
+            mHaveResult[i] = false;
+            mHaveYuv[i] = false;
+            mHaveRaw[i] = false;
+            mFailed[i] = false;
+            mQueued[i] = false;
+        }
+        mSettled = 0;
+    }
+
+    /**
+     * Index of request in the active bracket, or -1.
+     */
+    public int indexOf(CaptureRequest request) {
+        if (mRequests == null) {
+            return -1;
+        }
+        for (int i = 0; i < mFrames; i++) {
+            if (mRequests.get(i) == request) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Whether timestamp is a frame of the active or the last finished bracket; images can
+     * still arrive after their bracket settled.
+     */
+    public boolean contains(long timestamp) {
+        for (int i = 0; i < mFrames; i++) {
+            if (mTimestamps[i] == timestamp) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void onStarted(int index, long timestamp, long frameNumber) {
+        mTimestamps[index] = timestamp;
+        mFrameNumbers[index] = frameNumber;
+    }
+
+    public void onResult(int index, long nowNanos) {
+        mHaveResult[index] = true;
+        update(index, nowNanos);
+    }
+
+    public void onFailed(int index, long nowNanos) {
+        mFailed[index] = true;
+        update(index, nowNanos);
+    }
+
+    /**
+     * An image arrived on stream (FrameDropTracker.STREAM_YUV1 or STREAM_RAW); ignored unless
+     * it belongs to the active bracket.
+     */
+    public void onImage(int stream, long timestamp, long nowNanos) {
+        if (mRequests == null) {
+            return;
+        }
+        for (int i = 0; i < mFrames; i++) {
+            if (mTimestamps[i] == timestamp) {
+                if (stream == FrameDropTracker.STREAM_RAW) {
+                    mHaveRaw[i] = true;
+                } else if (stream == FrameDropTracker.STREAM_YUV1) {
+                    mHaveYuv[i] = true;
+                }
+                update(i, nowNanos);
+                return;
+            }
+        }
+    }
+
+    /**
+     * The buffer of bracket frame index on stream was lost; don't wait for it.
+     */
+    public void onBufferLost(int index, int stream, long nowNanos) {
+        if (stream == FrameDropTracker.STREAM_RAW) {
+            mHaveRaw[index] = true;
+        } else if (stream == FrameDropTracker.STREAM_YUV1) {
+            // Nothing to reprocess.
+            mFailed[index] = true;
+        }
+        update(index, nowNanos);
+    }
+
+    /**
+     * Timestamp of the next complete bracket frame to reprocess, or 0 if none is waiting.
+     */
+    public long peekReprocess() {
+        return mReprocessCount > 0 ? mReprocessQueue[mReprocessHead] : 0;
+    }
+
+    public void popReprocess() {
+        if (mReprocessCount > 0) {
+            mReprocessHead = (mReprocessHead + 1) % MAX_FRAMES;
+            mReprocessCount--;
+        }
+    }
+
+    /**
+     * Log percentiles over all brackets so far.
+     */
+    public void logSummary() {
+        if (mLatency.getCount() == 0) {
+            return;
+        }
+        Log.v(TAG, "Bracket latency    " + mLatency.summary());
+        Log.v(TAG, String.format("Frames to complete mean %.1f max %d, start delay mean %.1f max %d",
+                mFramesToComplete.getMean(), mFramesToComplete.getMax(),
+                mStartDelay.getMean(), mStartDelay.getMax()));
+    }
+
+    private void update(int i, long nowNanos) {
+        if (mQueued[i]) {
+            return;
+        }
+        boolean yuvDone = mHaveResult[i] && mHaveYuv[i];
+        if (!mFailed[i] && !(yuvDone && (!mExpectRaw || mHaveRaw[i]))) {
+            return;
+        }
+        mQueued[i] = true;
+        if (yuvDone && mReprocessCount < MAX_FRAMES) {
+            mReprocessQueue[(mReprocessHead + mReprocessCount) % MAX_FRAMES] = mTimestamps[i];
+            mReprocessCount++;
+        }
+        if (++mSettled == mFrames) {
+            finish(nowNanos);
+        }
+    }
+
+    private void finish(long nowNanos) {
+        long first = Long.MAX_VALUE;
+        long last = -1;
+        int failed = 0;
+        for (int i = 0; i < mFrames; i++) {
+            if (mFrameNumbers[i] >= 0) {
+                first = Math.min(first, mFrameNumbers[i]);
+                last = Math.max(last, mFrameNumbers[i]);
+            }
+            if (mFailed[i]) {
+                failed++;
+            }
+        }
+        long latency = nowNanos - mSubmitNanos;
+        mLatency.record(latency);
+        if (last >= 0) {
+            long startDelay = first - mFrameNumberAtSubmit - 1;
+            long framesToComplete = last - mFrameNumberAtSubmit;
+            mStartDelay.record(startDelay);
+            mFramesToComplete.record(framesToComplete);
+            Log.v(TAG, String.format("Bracket of %d done in %.1f ms: %d frames to complete, " +
+                    "started after %d frames, %d frames apart, %d failed", mFrames,
+                    latency * 0.000001, framesToComplete, startDelay, last - first + 1, failed));
+        } else {
+            Log.e(TAG, "Bracket of " + mFrames + " failed entirely");
+        }
+        mRequests = null;
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends burst images to one container file instead of one file per shot.
+ *
+ * File layout, all big endian:
+ *   header: MAGIC, VERSION.
+ *   image data, back to back.
+ *   index: one INDEX_ENTRY_SIZE entry per image: stream id, width, height, size, offset,
+ *          sensor timestamp, frame duration, exposure time, ISO, focus distance.
+ *   footer: entry count, index offset, MAGIC.
+ * The file is extended to the preallocated size up front and truncated on close(). The index
+ * is only written by close(), so a container that was not closed can't be extracted.
+ *
+ * Stream ids are the SessionRecorder STREAM_ constants. Capture metadata is matched to
+ * images by sensor timestamp from the last METADATA_HISTORY addMetadata() calls.
+ * Thread safe.
+ */
+public class BurstContainer {
+    private static final String TAG = "DevCamera_BURST";
+
+    public static final int MAGIC = 0x44434243; // "DCBC"
+    public static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int INDEX_ENTRY_SIZE = 56;
+    private static final int FOOTER_SIZE = 16;
+    private static final int METADATA_HISTORY = 32;
+
+    private final File mFile;
+    private RandomAccessFile mRaf;
+    private FileChannel mChannel;
+    private long mPosition;
+    private int mCount = 0;
+    private int mUnmatched = 0;
+    private ByteBuffer mIndex = ByteBuffer.allocate(64 * INDEX_ENTRY_SIZE);
+
+    // Recent capture metadata, oldest overwritten first.
+    private final long[] mMetaTimestamps = new long[METADATA_HISTORY];
+    private final long[] mMetaFrameDurations = new long[METADATA_HISTORY];
+    private final long[] mMetaExposureTimes = new long[METADATA_HISTORY];
+    private final int[] mMetaIsos = new int[METADATA_HISTORY];
+    private final float[] mMetaFocusDistances = new float[METADATA_HISTORY];
+    private int mMetaHead = 0;
+
+    public BurstContainer(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Create the file and extend it to preallocateBytes. Returns false if that failed.
+     */
+    public synchronized boolean open(long preallocateBytes) {
+        try {
+            mRaf = new RandomAccessFile(mFile, "rw");
+            mRaf.setLength(Math.max(preallocateBytes, HEADER_SIZE));
+            mChannel = mRaf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.flip();
+            writeFully(header, 0);
+            mPosition = HEADER_SIZE;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not create burst container " + mFile, e);
+            closeFile();
+            return false;
+        }
+        Log.v(TAG, String.format("Burst container %s, %d MB preallocated",
+                mFile, preallocateBytes / (1024 * 1024)));
+        return true;
+    }
+
+    public synchronized boolean isOpen() {
+        return mChannel != null;
+    }
+
+    /**
+     * Remember capture metadata, to go into the index of the image with the same timestamp.
+     */
+    public synchronized void addMetadata(FrameMetadata m) {
+        int i = mMetaHead;
+        mMetaTimestamps[i] = m.timestamp;
+        mMetaFrameDurations[i] = m.frameDuration;
+        mMetaExposureTimes[i] = m.exposureTime;
+        mMetaIsos[i] = m.iso;
+        mMetaFocusDistances[i] = m.focusDistance;
+        mMetaHead = (i + 1) % METADATA_HISTORY;
+    }
+
+    /**
+     * Append an image, from position to limit of data. Returns false if it was not written.
+     */
+    public synchronized boolean append(int stream, int width, int height, long timestamp, ByteBuffer data) {
+        if (mChannel == null) {
+            return false;
+        }
+        long offset = mPosition;
+        int size = data.remaining();
+        try {
+            writeFully(data, offset);
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing burst container " + mFile + ", stopped.", e);
+            close();
+            return false;
+        }
+        mPosition += size;
+
+        if (mIndex.remaining() < INDEX_ENTRY_SIZE) {
+            ByteBuffer bigger = ByteBuffer.allocate(mIndex.capacity() * 2);
+            mIndex.flip();
+            bigger.put(mIndex);
+            mIndex = bigger;
+        }
+        int meta = findMetadata(timestamp);
+        if (meta < 0) {
+            mUnmatched++;
+        }
+        mIndex.putInt(stream);
+        mIndex.putInt(width);
+        mIndex.putInt(height);
+        mIndex.putInt(size);
+        mIndex.putLong(offset);
+        mIndex.putLong(timestamp);
+        mIndex.putLong(meta < 0 ? 0 : mMetaFrameDurations[meta]);
+        mIndex.putLong(meta < 0 ? 0 : mMetaExposureTimes[meta]);
+        mIndex.putInt(meta < 0 ? 0 : mMetaIsos[meta]);
+        mIndex.putFloat(meta < 0 ? 0 : mMetaFocusDistances[meta]);
+        mCount++;
+        return true;
+    }
+
+    /**
+     * Write the index and footer, and trim the preallocated space that was not used.
+     */
+    public synchronized void close() {
+        if (mChannel == null) return;
+        try {
+            long indexOffset = mPosition;
+            mIndex.flip();
+            writeFully(mIndex, indexOffset);
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+            footer.putInt(mCount);
+            footer.putLong(indexOffset);
+            footer.putInt(MAGIC);
+            footer.flip();
+            long end = indexOffset + mIndex.limit();
+            writeFully(footer, end);
+            mRaf.setLength(end + FOOTER_SIZE);
+            Log.v(TAG, String.format("Closed %s: %d images, %d MB, %d without metadata",
+                    mFile, mCount, mPosition / (1024 * 1024), mUnmatched));
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing burst container index " + mFile, e);
+        }
+        closeFile();
+    }
+
+    /**
+     * Split a closed container into one file per image in outDir, plus index.csv with the
+     * capture metadata. Returns the number of images extracted.
+     */
+    public static int extract(File container, File outDir) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(container, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long length = raf.length();
+            if (length < HEADER_SIZE + FOOTER_SIZE) {
+                throw new IOException("Too short for a burst container: " + container);
+            }
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+            readFully(channel, footer, length - FOOTER_SIZE);
+            int count = footer.getInt();
+            long indexOffset = footer.getLong();
+            if (footer.getInt() != MAGIC) {
+                throw new IOException("No index, container was not closed: " + container);
+            }
+            ByteBuffer index = ByteBuffer.allocate(count * INDEX_ENTRY_SIZE);
+            readFully(channel, index, indexOffset);
+
+            if (!outDir.isDirectory() && !outDir.mkdirs()) {
+                throw new IOException("Could not create " + outDir);
+            }
+            PrintWriter csv = new PrintWriter(new File(outDir, "index.csv"));
+            csv.println("file,stream,width,height,size,timestamp,frame_duration,exposure_time,iso,focus_distance");
+            try {
+                for (int i = 0; i < count; i++) {
+                    int stream = index.getInt();
+                    int width = index.getInt();
+                    int height = index.getInt();
+                    int size = index.getInt();
+                    long offset = index.getLong();
+                    long timestamp = index.getLong();
+                    long frameDuration = index.getLong();
+                    long exposureTime = index.getLong();
+                    int iso = index.getInt();
+                    float focusDistance = index.getFloat();
+
+                    String name = String.format("BURST_%05d.%s", i, extension(stream));
+                    FileOutputStream fos = new FileOutputStream(new File(outDir, name));
+                    try {
+                        long done = 0;
+                        while (done < size) {
+                            long n = channel.transferTo(offset + done, size - done, fos.getChannel());
+                            if (n <= 0) {
+                                throw new IOException("Image " + i + " runs past the end of " + container);
+                            }
+                            done += n;
+                        }
+                    } finally {
+                        fos.close();
+                    }
+                    csv.println(String.format("%s,%d,%d,%d,%d,%d,%d,%d,%d,%f", name, stream, width,
+                            height, size, timestamp, frameDuration, exposureTime, iso, focusDistance));
+                }
+            } finally {
+                csv.close();
+            }
+            Log.v(TAG, "Extracted " + count + " images from " + container + " to " + outDir);
+            return count;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static String extension(int stream) {
+        switch (stream) {
+            case SessionRecorder.STREAM_JPEG:
+                return "jpg";
+            case SessionRecorder.STREAM_RAW:
+                return "raw";
+            case SessionRecorder.STREAM_DEPTH:
+                return "depth";
+            default:
+                return "yuv";
+        }
+    }
+
+    // Index of metadata with this timestamp in the history, or -1.
+    private int findMetadata(long timestamp) {
+        for (int i = 0; i < METADATA_HISTORY; i++) {
+            if (mMetaTimestamps[i] == timestamp && timestamp != 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void writeFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += mChannel.write(buf, position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of burst container");
+            }
+            position += n;
+        }
+        buf.flip();
+    }
+
+    private void closeFile() {
+        try {
+            if (mRaf != null) {
+                mRaf.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing burst container " + mFile, e);
+        }
+        mRaf = null;
+        mChannel = null;
+    }
+}
@@ -247,23 +247,11 @@ public class CameraDeviceReport {
     }
 
     public static String sizesToString(Size[] sizes) {
-        String result = "";
-        if (sizes != null) {
-            for (int j = 0; j < sizes.length; j++) {
-                result += sizes[j].toString() + " ";
-            }
-        }
-        return result;
+        return ReportStrings.join(sizes);
     }
 
     public static String intsToString(int[] modes) {
-        String result = "";
-        if (modes != null) {
-            for (int j = 0; j < modes.length; j++) {
-                result += modes[j] + " ";
-            }
-        }
-        return result;
+        return ReportStrings.join(modes);
     }
 
     public static String getTimestampSourceName(Integer level) {
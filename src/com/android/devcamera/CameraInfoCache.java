@@ -22,7 +22,9 @@ import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
 import android.hardware.camera2.params.StreamConfigurationMap;
 import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.Range;
 import android.util.Size;
 import android.util.SizeF;
 
@@ -50,6 +52,9 @@ public class CameraInfoCache {
     private int mBestFaceMode;
     private int mHardwareLevel;
     private Size mDepthCloudSize = null;
+    private int mTimestampSource;
+    private Range<Long> mExposureTimeRange;
+    private Range<Integer> mSensitivityRange;
 
     /**
      * Constructor.
@@ -118,6 +123,9 @@ public class CameraInfoCache {
         mHardwareLevel = mCameraCharacteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
 
         mSensorOrientation = mCameraCharacteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+        mTimestampSource = mCameraCharacteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+        mExposureTimeRange = mCameraCharacteristics.get(CameraCharacteristics.SENSOR_INFO_EXPOSURE_TIME_RANGE);
+        mSensitivityRange = mCameraCharacteristics.get(CameraCharacteristics.SENSOR_INFO_SENSITIVITY_RANGE);
     }
 
     boolean supportedModesContains(int[] modes, int mode) {
@@ -157,6 +165,25 @@ public class CameraInfoCache {
         return false;
     }
 
+    public boolean isManualSensorAvailable() {
+        return isCapabilitySupported(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES_MANUAL_SENSOR)
+                && mExposureTimeRange != null && mSensitivityRange != null;
+    }
+
+    /**
+     * Exposure time range in ns; null without MANUAL_SENSOR.
+     */
+    public Range<Long> getExposureTimeRange() {
+        return mExposureTimeRange;
+    }
+
+    /**
+     * ISO range; null without MANUAL_SENSOR.
+     */
+    public Range<Integer> getSensitivityRange() {
+        return mSensitivityRange;
+    }
+
     public float getDiopterLow() {
         return 0f; // Infinity
     }
@@ -296,4 +323,15 @@ public class CameraInfoCache {
     public Size getDepthCloudSize() {
         return mDepthCloudSize;
     }
+
+    /**
+     * Current time in the same time base as SENSOR_TIMESTAMP.
+     * UNKNOWN sources are monotonic, which matches System.nanoTime() on Android.
+     */
+    public long sensorTimestampNow() {
+        if (mTimestampSource == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME) {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+        return System.nanoTime();
+    }
 }
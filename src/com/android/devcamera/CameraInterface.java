@@ -18,6 +18,8 @@ package com.android.devcamera;
 import android.util.Size;
 import android.view.Surface;
 
+import java.nio.ByteBuffer;
+
 /**
  * This is a simple camera interface not specific to API1 or API2.
  */
@@ -82,6 +84,17 @@ public interface CameraInterface {
      */
     boolean isReprocessingAvailable();
 
+    /**
+     * Can takePicture() make a JPEG, by reprocessing or otherwise.
+     */
+    boolean canTakePicture();
+
+    /**
+     * Most takePicture() shots that can be in progress at once; a shot beyond that is
+     * dropped. A slot is free again by the time its JPEG reaches the callback.
+     */
+    int maxShotsInFlight();
+
     /**
      * Triggers an AF scan. Leaves camera in AUTO.
      */
@@ -111,8 +124,20 @@ public interface CameraInterface {
          * @param jpegData
          * @param x
          * @param y
+         * @param timestamp Sensor timestamp of the frame the JPEG was made from.
+         */
+        void jpegAvailable(byte[] jpegData, int x, int y, long timestamp);
+
+        /**
+         * Full size JPEG is available, still in the camera's buffer.
+         * The receiver must run release once it no longer reads jpegData, on any thread.
+         * @param jpegData JPEG bytes from position to limit.
+         * @param x
+         * @param y
+         * @param timestamp Sensor timestamp of the frame the JPEG was made from.
+         * @param release Returns the buffer to the camera.
          */
-        void jpegAvailable(byte[] jpegData, int x, int y);
+        void jpegBufferAvailable(ByteBuffer jpegData, int x, int y, long timestamp, Runnable release);
 
         /**
          * Metadata from an image frame.
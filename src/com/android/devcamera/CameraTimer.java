@@ -15,19 +15,321 @@
  */
 package com.android.devcamera;
 
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+
 /**
- * A global spot to store some times.
+ * A global spot to trace app startup.
+ *
+ * Each camera launch (activity create or restart, camera switch or reopen) starts a new record
+ * with newLaunch().
+ * Within a launch, named spans are timed with begin() and end(), which may be called from
+ * different threads, and instants with mark(). Only the first begin() and end() of each name
+ * count, so calls on paths that run again later (e.g. new repeating requests) are harmless.
+ * Spans also show up as async sections in systrace/perfetto on API 29+.
+ *
+ * The last MAX_LAUNCHES records are kept and can be exported as JSON, or in Chrome trace
+ * format (one process row per launch, one thread row per thread) for chrome://tracing or
+ * ui.perfetto.dev.
  */
 public class CameraTimer {
-    // Got control in onCreate()
-    public static long t0;
-    // Sent open() to camera.
-    public static long t_open_start;
-    // Open from camera done.
-    public static long t_open_end;
-    // Told camera to configure capture session.
-    public static long t_session_go;
-    // Told session to do repeating request.
-    public static long t_burst;
+    private static final String TAG = "DevCamera_TIMER";
+
+    // Span names, in the order they normally start.
+    public static final String ACTIVITY_CREATE = "activity_create";
+    public static final String PERMISSION = "permission";
+    public static final String CAMERA_INFO = "camera_info";
+    public static final String HAL_OPEN = "hal_open";
+    public static final String INIT_READERS = "init_readers";
+    public static final String SESSION_CONFIGURE = "session_configure";
+    public static final String FIRST_REQUEST = "first_request";
+    public static final String FIRST_RESULT = "first_result";
+    // Instant: first frame handed to the UI thread.
+    public static final String FIRST_PREVIEW_FRAME = "first_preview_frame";
+
+    private static final int MAX_LAUNCHES = 20;
+
+    private static class Span {
+        final String name;
+        final long threadId;
+        final String threadName;
+        final long startNanos;
+        long endNanos = -1;
+        final boolean instant;
+
+        Span(String name, long startNanos, boolean instant) {
+            this.name = name;
+            Thread t = Thread.currentThread();
+            threadId = t.getId();
+            threadName = t.getName();
+            this.startNanos = startNanos;
+            this.instant = instant;
+            if (instant) {
+                endNanos = startNanos;
+            }
+        }
+    }
+
+    private static class Launch {
+        final int number;
+        final String label;
+        final long wallTimeMillis = System.currentTimeMillis();
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        final ArrayList<Span> spans = new ArrayList<Span>();
+
+        Launch(int number, String label) {
+            this.number = number;
+            this.label = label;
+        }
+
+        Span find(String name) {
+            for (int i = 0; i < spans.size(); i++) {
+                if (spans.get(i).name.equals(name)) {
+                    return spans.get(i);
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final ArrayList<Launch> sLaunches = new ArrayList<Launch>();
+    private static Launch sCurrent = new Launch(0, "none");
+    private static int sLaunchCount = 0;
+
+    /**
+     * Start a new launch record; times are relative to now.
+     */
+    public static synchronized void newLaunch(String label) {
+        // Spans left open belong to the old launch; close their trace sections.
+        for (Span s : sCurrent.spans) {
+            if (s.endNanos < 0) {
+                endTraceSection(s.name, sCurrent.number);
+            }
+        }
+        sCurrent = new Launch(++sLaunchCount, label);
+        sLaunches.add(sCurrent);
+        if (sLaunches.size() > MAX_LAUNCHES) {
+            sLaunches.remove(0);
+        }
+    }
+
+    public static synchronized void begin(String name) {
+        if (sCurrent.find(name) != null) {
+            return;
+        }
+        sCurrent.spans.add(new Span(name, SystemClock.elapsedRealtimeNanos(), false));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.beginAsyncSection(name, sCurrent.number);
+        }
+    }
+
+    public static synchronized void end(String name) {
+        Span s = sCurrent.find(name);
+        if (s == null || s.endNanos >= 0) {
+            return;
+        }
+        s.endNanos = SystemClock.elapsedRealtimeNanos();
+        endTraceSection(name, sCurrent.number);
+    }
+
+    public static synchronized void mark(String name) {
+        if (sCurrent.find(name) != null) {
+            return;
+        }
+        sCurrent.spans.add(new Span(name, SystemClock.elapsedRealtimeNanos(), true));
+        Trace.beginSection(name);
+        Trace.endSection();
+    }
+
+    /**
+     * Duration of a finished span in this launch, in ms, or -1.
+     */
+    public static synchronized long durationMillis(String name) {
+        long d = durationNanos(name);
+        return d >= 0 ? d / 1000000 : -1;
+    }
+
+    /**
+     * Duration of a finished span in this launch, in ns, or -1.
+     */
+    public static synchronized long durationNanos(String name) {
+        Span s = sCurrent.find(name);
+        return s != null && s.endNanos >= 0 ? s.endNanos - s.startNanos : -1;
+    }
+
+    /**
+     * Nanoseconds from the start of this launch to the start of a span or mark, or -1.
+     */
+    public static synchronized long startNanos(String name) {
+        Span s = sCurrent.find(name);
+        return s != null ? s.startNanos - sCurrent.startNanos : -1;
+    }
+
+    /**
+     * Nanoseconds from the start of this process to the start of this launch, or -1 where the
+     * process start time is not available (before API 24).
+     */
+    public static synchronized long sinceProcessStartNanos() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return -1;
+        }
+        return sCurrent.startNanos - Process.getStartElapsedRealtime() * 1000000;
+    }
+
+    /**
+     * 1 for the first launch in this process, i.e. a cold start.
+     */
+    public static synchronized int launchNumber() {
+        return sCurrent.number;
+    }
+
+    /**
+     * Milliseconds since this launch started.
+     */
+    public static synchronized long sinceLaunchMillis() {
+        return (SystemClock.elapsedRealtimeNanos() - sCurrent.startNanos) / 1000000;
+    }
+
+    /**
+     * Milliseconds spent waiting on the camera so far: HAL open, plus everything since the
+     * capture session was configured.
+     */
+    public static synchronized long halWaitMillis() {
+        Span session = sCurrent.find(SESSION_CONFIGURE);
+        if (session == null) {
+            return 0;
+        }
+        return Math.max(0, durationMillis(HAL_OPEN))
+                + (SystemClock.elapsedRealtimeNanos() - session.startNanos) / 1000000;
+    }
+
+    /**
+     * Log every span of this launch, in start order.
+     */
+    public static synchronized void logLaunch() {
+        Log.v(TAG, "Launch " + sCurrent.number + " (" + sCurrent.label + "):");
+        for (Span s : sCurrent.spans) {
+            long start = (s.startNanos - sCurrent.startNanos) / 1000000;
+            if (s.instant) {
+                Log.v(TAG, String.format("  %-20s at %5d ms", s.name, start));
+            } else if (s.endNanos >= 0) {
+                Log.v(TAG, String.format("  %-20s at %5d ms took %5d ms on %s", s.name, start,
+                        (s.endNanos - s.startNanos) / 1000000, s.threadName));
+            } else {
+                Log.v(TAG, String.format("  %-20s at %5d ms not finished", s.name, start));
+            }
+        }
+    }
+
+    /**
+     * All kept launches as JSON, times in microseconds from the start of each launch.
+     */
+    public static synchronized String toJson() {
+        StringBuilder sb = new StringBuilder("{\"launches\":[");
+        for (int i = 0; i < sLaunches.size(); i++) {
+            Launch l = sLaunches.get(i);
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"number\":").append(l.number)
+                    .append(",\"label\":\"").append(l.label)
+                    .append("\",\"wallTimeMillis\":").append(l.wallTimeMillis)
+                    .append(",\"spans\":[");
+            for (int j = 0; j < l.spans.size(); j++) {
+                Span s = l.spans.get(j);
+                if (j > 0) {
+                    sb.append(',');
+                }
+                sb.append("{\"name\":\"").append(s.name)
+                        .append("\",\"thread\":\"").append(s.threadName)
+                        .append("\",\"startUs\":").append((s.startNanos - l.startNanos) / 1000)
+                        .append(",\"durationUs\":")
+                        .append(s.endNanos >= 0 ? (s.endNanos - s.startNanos) / 1000 : -1)
+                        .append('}');
+            }
+            sb.append("]}");
+        }
+        return sb.append("]}").toString();
+    }
+
+    /**
+     * All kept launches in Chrome trace event format. Unfinished spans are left out.
+     */
+    public static synchronized String toChromeTrace() {
+        StringBuilder sb = new StringBuilder("{\"traceEvents\":[");
+        boolean first = true;
+        for (Launch l : sLaunches) {
+            first = appendEvent(sb, first, String.format(
+                    "{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":%d,\"args\":{\"name\":\"Launch %d %s\"}}",
+                    l.number, l.number, l.label));
+            ArrayList<Long> threads = new ArrayList<Long>();
+            for (Span s : l.spans) {
+                if (!threads.contains(s.threadId)) {
+                    threads.add(s.threadId);
+                    first = appendEvent(sb, first, String.format(
+                            "{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":%d,\"tid\":%d,\"args\":{\"name\":\"%s\"}}",
+                            l.number, s.threadId, s.threadName));
+                }
+                long ts = (s.startNanos - l.startNanos) / 1000;
+                if (s.instant) {
+                    first = appendEvent(sb, first, String.format(
+                            "{\"name\":\"%s\",\"ph\":\"i\",\"s\":\"p\",\"ts\":%d,\"pid\":%d,\"tid\":%d}",
+                            s.name, ts, l.number, s.threadId));
+                } else if (s.endNanos >= 0) {
+                    first = appendEvent(sb, first, String.format(
+                            "{\"name\":\"%s\",\"ph\":\"X\",\"ts\":%d,\"dur\":%d,\"pid\":%d,\"tid\":%d}",
+                            s.name, ts, (s.endNanos - s.startNanos) / 1000, l.number, s.threadId));
+                }
+            }
+        }
+        return sb.append("]}").toString();
+    }
+
+    /**
+     * Write toChromeTrace() to file, replacing it.
+     */
+    public static boolean writeTrace(File file) {
+        String trace = toChromeTrace();
+        Writer w = null;
+        try {
+            w = new FileWriter(file);
+            w.write(trace);
+            Log.v(TAG, "Wrote startup trace to " + file);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write startup trace to " + file, e);
+            return false;
+        } finally {
+            if (w != null) {
+                try {
+                    w.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+
+    private static boolean appendEvent(StringBuilder sb, boolean first, String event) {
+        if (!first) {
+            sb.append(',');
+        }
+        sb.append(event);
+        return false;
+    }
 
+    private static void endTraceSection(String name, int cookie) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.endAsyncSection(name, cookie);
+        }
+    }
 }
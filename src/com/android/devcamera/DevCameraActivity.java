@@ -18,6 +18,7 @@ package com.android.devcamera;
 import android.Manifest;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CaptureResult;
@@ -37,11 +38,17 @@ import android.view.View;
 import android.view.WindowManager;
 import android.widget.Button;
 import android.widget.FrameLayout;
+import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 import android.widget.Toast;
 import android.widget.ToggleButton;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 
 /**
  * A minimum camera app.
@@ -56,7 +63,76 @@ public class DevCameraActivity extends Activity implements CameraInterface.MyCam
     private static final boolean START_WITH_FRONT_CAMERA = false;
 
     private static final int PERMISSIONS_REQUEST_CAMERA = 1;
+
+    // JPEG saving: writer threads, JPEGs waiting for a writer, and what to do when full.
+    private static final int JPEG_SAVER_THREADS = 2;
+    private static final int JPEG_SAVER_QUEUE_SIZE = 8;
+    private static final AsyncMediaSaver.Backpressure JPEG_SAVER_BACKPRESSURE =
+            AsyncMediaSaver.Backpressure.BLOCK;
+    // MediaStore indexing: images per bulkInsert(), and max time an image waits for one.
+    private static final int MEDIA_STORE_BATCH_SIZE = 10;
+    private static final long MEDIA_STORE_BATCH_DELAY_MS = 1000;
+
+    // Intent extras to run against SyntheticCamera instead of real camera hardware, e.g.
+    // adb shell am start -n com.android.devcamera/.DevCameraActivity --ez synthetic_camera true
+    private static final String EXTRA_SYNTHETIC_CAMERA = "synthetic_camera";
+    private static final String EXTRA_SYNTHETIC_WIDTH = "synthetic_width";
+    private static final String EXTRA_SYNTHETIC_HEIGHT = "synthetic_height";
+    private static final String EXTRA_SYNTHETIC_FPS = "synthetic_fps";
+    // Intent extras to record a session to, or replay a session from, a file in the app's
+    // external files directory. Replay is as fast as possible unless replay_realtime is set.
+    private static final String EXTRA_RECORD_SESSION = "record_session";
+    private static final String EXTRA_RECORD_YUV2_DOWNSAMPLE = "record_yuv2_downsample";
+    private static final String EXTRA_REPLAY_SESSION = "replay_session";
+    private static final String EXTRA_REPLAY_REALTIME = "replay_realtime";
+    // Intent extras to append JPEGs (and RAW/depth with burst_container_raw) to one container
+    // file in the external files directory, instead of saving each one, and to split a
+    // container back into single files in a directory next to it.
+    private static final String EXTRA_BURST_CONTAINER = "burst_container";
+    private static final String EXTRA_BURST_CONTAINER_RAW = "burst_container_raw";
+    private static final String EXTRA_BURST_CONTAINER_MB = "burst_container_mb";
+    private static final String EXTRA_EXTRACT_BURST = "extract_burst";
+    // Intent extra to write the startup trace of each launch, in Chrome trace format, to a file
+    // in the external files directory once the first preview frame arrives.
+    private static final String EXTRA_STARTUP_TRACE = "startup_trace";
+    // Intent extras to benchmark startup: after the first preview frame, close and reopen the
+    // camera startup_benchmark more times, waiting startup_benchmark_delay_ms after each first
+    // frame. Samples go to STARTUP_BENCHMARK_SAMPLES, percentiles to STARTUP_BENCHMARK_SUMMARY.
+    private static final String EXTRA_STARTUP_BENCHMARK = "startup_benchmark";
+    private static final String EXTRA_STARTUP_BENCHMARK_DELAY_MS = "startup_benchmark_delay_ms";
+    private static final String STARTUP_BENCHMARK_SAMPLES = "startup_benchmark.csv";
+    private static final String STARTUP_BENCHMARK_SUMMARY = "startup_benchmark_summary.txt";
+    // Intent extras to benchmark capture: once preview runs, take shot_benchmark pictures,
+    // one every shot_benchmark_interval_ms, or with 0 as fast as possible: as many at once as
+    // the camera can have in flight, and the next as soon as a JPEG is back. Per-stage
+    // latency histograms and shots/s are logged when done.
+    private static final String EXTRA_SHOT_BENCHMARK = "shot_benchmark";
+    private static final String EXTRA_SHOT_BENCHMARK_INTERVAL_MS = "shot_benchmark_interval_ms";
+    // Let 3A converge and the ZSL ring fill before the first shot.
+    private static final long SHOT_BENCHMARK_SETTLE_MS = 2000;
+    // Give up waiting for a JPEG after this long and take the next shot anyway.
+    private static final long SHOT_BENCHMARK_TIMEOUT_MS = 3000;
+    // Time for the last shots to be saved and indexed before logging.
+    private static final long SHOT_BENCHMARK_DRAIN_MS = 3000;
+    // Intent extra to merge this many consecutive ZSL frames into each shot, for less noise
+    // in low light; needs YUV reprocessing.
+    private static final String EXTRA_MERGE_FRAMES = "merge_frames";
+    // Intent extras to take an exposure bracket of this many frames per shot instead, spaced
+    // this many stops apart around auto exposure; needs MANUAL_SENSOR. At most
+    // Api2Camera.MAX_BRACKET_FRAMES frames.
+    private static final String EXTRA_BRACKET = "bracket";
+    private static final String EXTRA_BRACKET_EV_STEP = "bracket_ev_step";
+    // Intent extras to JPEG encode shots in software even with YUV reprocessing, to compare,
+    // and the threads to encode on (all cores by default). Without reprocessing this is the
+    // only way to take a picture.
+    private static final String EXTRA_SOFTWARE_JPEG = "software_jpeg";
+    private static final String EXTRA_SOFTWARE_JPEG_THREADS = "software_jpeg_threads";
+    // Intent extra to run the gyro while the camera is open, so the sharpest-frame ZSL pick
+    // can pass over frames blurred by hand shake. Off by default to save the sensor's power.
+    private static final String EXTRA_GYRO_MOTION_SCORES = "gyro_motion_scores";
     private boolean mPermissionCheckActive = false;
+    // Set by onStop(), so that onStart() times the reopened camera as a new launch.
+    private boolean mWasStopped = false;
 
     private SurfaceView mPreviewView;
     private SurfaceHolder mPreviewHolder;
@@ -83,8 +159,18 @@ public class DevCameraActivity extends Activity implements CameraInterface.MyCam
     private CameraInterface mCamera;
 
     // Used for saving JPEGs.
-    private HandlerThread mUtilityThread;
-    private Handler mUtilityHandler;
+    private AsyncMediaSaver mJpegSaver;
+    private MediaStoreIndexer mMediaStoreIndexer;
+
+    // Thumbnail of the newest shot, decoded on its own thread. Shots that arrive while one is
+    // decoding get no thumbnail, so bursts never queue decodes up behind each other.
+    private ImageView mLastShotView;
+    private Bitmap mLastShotBitmap; // Only touched on the main thread.
+    private HandlerThread mThumbnailThread;
+    private Handler mThumbnailHandler;
+    private final AtomicBoolean mThumbnailBusy = new AtomicBoolean(false);
+    // Copy of the JPEG being decoded; the camera buffer may be released before then.
+    private byte[] mThumbnailJpeg = new byte[0];
 
     // send null for initialization
     View.OnClickListener mTransferUiStateToCameraState = new View.OnClickListener() {
@@ -105,9 +191,13 @@ public class DevCameraActivity extends Activity implements CameraInterface.MyCam
             if (view == mButtonNoiseModeReprocess || view == mButtonEdgeModeReprocess || view == null) {
                 mCamera.setReprocessingFlow(view == mButtonNoiseModeReprocess, view == mButtonEdgeModeReprocess);
             }
-            // set visibility of cluster of reprocessing controls.
-            int reprocessingViz = mToggleYuvFull.isChecked() && mCamera.isReprocessingAvailable() ? View.VISIBLE : View.GONE;
-            mReprocessingGroup.setVisibility(reprocessingViz);
+            // set visibility of cluster of capture controls; the NR and edge buttons only
+            // apply to real reprocessing.
+            int captureViz = mToggleYuvFull.isChecked() && mCamera.canTakePicture() ? View.VISIBLE : View.GONE;
+            mReprocessingGroup.setVisibility(captureViz);
+            int reprocessingViz = mCamera.isReprocessingAvailable() ? View.VISIBLE : View.GONE;
+            mButtonNoiseModeReprocess.setVisibility(reprocessingViz);
+            mButtonEdgeModeReprocess.setVisibility(reprocessingViz);
 
             // if just turned off YUV1 stream, end burst.
             if (view == mToggleYuvFull && !mToggleYuvFull.isChecked()) {
@@ -135,7 +225,12 @@ public class DevCameraActivity extends Activity implements CameraInterface.MyCam
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         Log.v(TAG, "onCreate");
-        CameraTimer.t0 = SystemClock.elapsedRealtime();
+        CameraTimer.newLaunch("create");
+        CameraTimer.begin(CameraTimer.ACTIVITY_CREATE);
+        if (getIntent().hasExtra(EXTRA_SHOT_BENCHMARK)) {
+            mShotTracker = new ShotLatencyTracker();
+            mShotIntervalMs = getIntent().getIntExtra(EXTRA_SHOT_BENCHMARK_INTERVAL_MS, 0);
+        }
 
         if (checkPermissions()) {
             // Go speed racer.
@@ -166,6 +261,7 @@ public class DevCameraActivity extends Activity implements CameraInterface.MyCam
         Button mGalleryButton = (Button) findViewById(R.id.gallery);
 
         mToggleBurstJpeg = (ToggleButton) findViewById(R.id.toggle_burst_jpeg);
+        mLastShotView = (ImageView) findViewById(R.id.last_shot);
         mToggleSaveSdCard = (ToggleButton) findViewById(R.id.toggle_save_sdcard);
         mReprocessingGroup = (LinearLayout) findViewById(R.id.reprocessing_controls);
         mPreviewView = (SurfaceView) findViewById(R.id.preview_view);
@@ -197,7 +293,7 @@ public class DevCameraActivity extends Activity implements CameraInterface.MyCam
             @Override
             public void onClick(View view) {
                 Log.v(TAG, "switchCamera()");
-                CameraTimer.t0 = SystemClock.elapsedRealtime();
+                CameraTimer.newLaunch("switch");
                 // ToggleButton isChecked state will determine which camera is started.
                 openCamera(mToggleFrontCam.isChecked());
                 startCamera();
@@ -219,14 +315,57 @@ public class DevCameraActivity extends Activity implements CameraInterface.MyCam
 
         mMainHandler = new Handler(this.getApplicationContext().getMainLooper());
 
-        // General utility thread for e.g. saving JPEGs.
-        mUtilityThread = new HandlerThread("UtilityThread");
-        mUtilityThread.start();
-        mUtilityHandler = new Handler(mUtilityThread.getLooper());
+        // Writer threads for saving JPEGs.
+        if (MediaSaver.UDPATE_MEDIA_STORE) {
+            mMediaStoreIndexer = new MediaStoreIndexer(getContentResolver(),
+                    MEDIA_STORE_BATCH_SIZE, MEDIA_STORE_BATCH_DELAY_MS);
+            if (mShotTracker != null) {
+                mMediaStoreIndexer.setListener(new MediaStoreIndexer.Listener() {
+                    @Override
+                    public void onIndexed(File file) {
+                        mShotTracker.onIndexed(file.getPath(), System.nanoTime());
+                    }
+                });
+            }
+        }
+        mJpegSaver = new AsyncMediaSaver(getApplicationContext(), mMediaStoreIndexer,
+                JPEG_SAVER_THREADS, JPEG_SAVER_QUEUE_SIZE, JPEG_SAVER_BACKPRESSURE);
+        mThumbnailThread = new HandlerThread("ThumbnailThread");
+        mThumbnailThread.start();
+        mThumbnailHandler = new Handler(mThumbnailThread.getLooper());
+
+        if (getIntent().hasExtra(EXTRA_STARTUP_BENCHMARK)) {
+            mStartupBenchmark = new StartupBenchmark(
+                    new File(getExternalFilesDir(null), STARTUP_BENCHMARK_SAMPLES),
+                    new File(getExternalFilesDir(null), STARTUP_BENCHMARK_SUMMARY),
+                    getIntent().getIntExtra(EXTRA_STARTUP_BENCHMARK, 0));
+        }
+
+        if (getIntent().getStringExtra(EXTRA_EXTRACT_BURST) != null) {
+            extractBurst(new File(getExternalFilesDir(null), getIntent().getStringExtra(EXTRA_EXTRACT_BURST)));
+        }
 
         // --- PRINT REPORT ---
         //CameraDeviceReport.printReport(this, false);
         super.onCreate(savedInstanceState);
+        CameraTimer.end(CameraTimer.ACTIVITY_CREATE);
+    }
+
+    // Split a burst container into single files, off the main thread.
+    private void extractBurst(final File container) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                String name = container.getName();
+                File outDir = new File(container.getParentFile(),
+                        name.endsWith(".dcb") ? name.substring(0, name.length() - 4) : name + "_files");
+                try {
+                    BurstContainer.extract(container, outDir);
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not extract " + container, e);
+                }
+            }
+        }, "BurstExtractThread").start();
     }
 
     // Open camera. No UI required.
@@ -236,7 +375,45 @@ public class DevCameraActivity extends Activity implements CameraInterface.MyCam
             mCamera.closeCamera();
         }
         // --- SET UP CAMERA ---
-        mCamera = new Api2Camera(this, frontCamera);
+        Intent intent = getIntent();
+        if (intent.getBooleanExtra(EXTRA_SYNTHETIC_CAMERA, false)) {
+            Size size = new Size(intent.getIntExtra(EXTRA_SYNTHETIC_WIDTH, 640),
+                    intent.getIntExtra(EXTRA_SYNTHETIC_HEIGHT, 480));
+            mCamera = new SyntheticCamera(size, intent.getIntExtra(EXTRA_SYNTHETIC_FPS, 30));
+        } else if (intent.getStringExtra(EXTRA_REPLAY_SESSION) != null) {
+            File file = new File(getExternalFilesDir(null), intent.getStringExtra(EXTRA_REPLAY_SESSION));
+            mCamera = new SessionReplayCamera(file, intent.getBooleanExtra(EXTRA_REPLAY_REALTIME, false));
+        } else {
+            Api2Camera camera = new Api2Camera(this, frontCamera);
+            if (intent.getStringExtra(EXTRA_RECORD_SESSION) != null) {
+                File file = new File(getExternalFilesDir(null), intent.getStringExtra(EXTRA_RECORD_SESSION));
+                camera.setSessionRecorder(new SessionRecorder(file,
+                        intent.getIntExtra(EXTRA_RECORD_YUV2_DOWNSAMPLE, 0)));
+            }
+            if (intent.getBooleanExtra(EXTRA_BURST_CONTAINER, false)) {
+                File file = new File(getExternalFilesDir(null),
+                        String.format("burst_%d.dcb", System.currentTimeMillis()));
+                BurstContainer container = new BurstContainer(file);
+                if (container.open(intent.getIntExtra(EXTRA_BURST_CONTAINER_MB, 256) * 1024L * 1024L)) {
+                    camera.setBurstContainer(container,
+                            intent.getBooleanExtra(EXTRA_BURST_CONTAINER_RAW, false));
+                }
+            }
+            camera.setShotTracker(mShotTracker);
+            if (intent.getIntExtra(EXTRA_MERGE_FRAMES, 1) > 1) {
+                camera.setMergeFrames(intent.getIntExtra(EXTRA_MERGE_FRAMES, 1));
+            }
+            camera.setSoftwareJpeg(intent.getBooleanExtra(EXTRA_SOFTWARE_JPEG, false),
+                    intent.getIntExtra(EXTRA_SOFTWARE_JPEG_THREADS, Runtime.getRuntime().availableProcessors()));
+            if (mGyroLatencyEstimator != null) {
+                camera.setGyroLatencyEstimator(mGyroLatencyEstimator);
+            }
+            if (intent.getBooleanExtra(EXTRA_GYRO_MOTION_SCORES, false)) {
+                camera.setGyroHistory(gyroOperations().getHistory());
+                mGyroOperations.startRecording();
+            }
+            mCamera = camera;
+        }
         mCamera.setCallback(this);
         mCamera.openCamera();
     }
@@ -316,6 +493,10 @@ public class DevCameraActivity extends Activity implements CameraInterface.MyCam
 
         // Can start camera now that we have the above initialized.
         if (mCamera == null) {
+            if (mWasStopped) {
+                CameraTimer.newLaunch("start");
+                mWasStopped = false;
+            }
             openCamera(mToggleFrontCam.isChecked());
         }
         startCamera();
@@ -332,6 +513,7 @@ public class DevCameraActivity extends Activity implements CameraInterface.MyCam
             || (checkSelfPermission(Manifest.permission.WRITE_EXTERNAL_STORAGE)
                 != PackageManager.PERMISSION_GRANTED)) {
             Log.i(TAG, "Requested camera/video permissions");
+            CameraTimer.begin(CameraTimer.PERMISSION);
             requestPermissions(new String[] {
                         Manifest.permission.CAMERA,
                         Manifest.permission.RECORD_AUDIO,
@@ -349,6 +531,7 @@ public class DevCameraActivity extends Activity implements CameraInterface.MyCam
             int[] grantResults) {
         mPermissionCheckActive = false;
         if (requestCode == PERMISSIONS_REQUEST_CAMERA) {
+            CameraTimer.end(CameraTimer.PERMISSION);
             for (int i = 0; i < grantResults.length; i++) {
                 if (grantResults[i] == PackageManager.PERMISSION_DENIED) {
                     Log.i(TAG, "At least one permission denied, can't continue: " + permissions[i]);
@@ -370,13 +553,40 @@ public class DevCameraActivity extends Activity implements CameraInterface.MyCam
             mCamera.closeCamera();
             mCamera = null;
         }
+        mWasStopped = true;
 
         // Cancel any pending AF operations.
         mMainHandler.removeCallbacks(mReturnToCafRunnable);
+        mMainHandler.removeCallbacks(mReopenCameraRunnable);
+        mMainHandler.removeCallbacks(mFireShotRunnable);
+        mMainHandler.removeCallbacks(mShotReturnedRunnable);
+        mMainHandler.removeCallbacks(mShotBenchmarkDoneRunnable);
+        if (mStartupBenchmark != null) {
+            mStartupBenchmark.cancel();
+            mStartupBenchmark = null;
+        }
         stopGyroDisplay(); // No-op if not running.
+        if (mGyroOperations != null) {
+            mGyroOperations.stopRecording();
+        }
+        // Make photos taken so far show up in the gallery.
+        if (mMediaStoreIndexer != null) {
+            mMediaStoreIndexer.flush();
+        }
         super.onStop();
     }
 
+    @Override
+    protected void onDestroy() {
+        Log.v(TAG, "onDestroy");
+        mJpegSaver.shutdown();
+        mThumbnailThread.quitSafely();
+        if (mMediaStoreIndexer != null) {
+            mMediaStoreIndexer.quit();
+        }
+        super.onDestroy();
+    }
+
     public void noCamera2Full() {
         Toast toast = Toast.makeText(this, "WARNING: this camera does not support camera2 HARDWARE_LEVEL_FULL.", Toast.LENGTH_LONG);
         toast.setGravity(Gravity.TOP, 0, 0);
@@ -409,46 +619,240 @@ public class DevCameraActivity extends Activity implements CameraInterface.MyCam
     long mJpegMillis = 0;
 
     @Override
-    public void jpegAvailable(final byte[] jpegData, final int x, final int y) {
+    public void jpegAvailable(final byte[] jpegData, final int x, final int y, long timestamp) {
         Log.v(TAG, "JPEG returned, size = " + jpegData.length);
-        long now = SystemClock.elapsedRealtime();
-        final long dt = mJpegMillis > 0 ? now - mJpegMillis : 0;
-        mJpegMillis = now;
+        long dt = jpegInterval();
+        nextBenchmarkShot();
+        if (mThumbnailBusy.compareAndSet(false, true)) {
+            mThumbnailJpeg = copyForThumbnail(jpegData.length);
+            System.arraycopy(jpegData, 0, mThumbnailJpeg, 0, jpegData.length);
+            decodeThumbnail(jpegData.length);
+        }
 
         if (mToggleSaveSdCard.isChecked()) {
-            mUtilityHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    final String result = MediaSaver.saveJpeg(getApplicationContext(), jpegData, getContentResolver());
-                    mMainHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            fileNameToast(String.format("Saved %dx%d and %d bytes JPEG to %s in %d ms.", x, y, jpegData.length, result, dt));
-                        }
-                    });
+            mJpegSaver.saveJpeg(jpegData, savedToastListener(x, y, dt, timestamp));
+        } else {
+            processingToast(x, y, jpegData.length, dt);
+        }
+    }
 
-                }
-            });
+    @Override
+    public void jpegBufferAvailable(ByteBuffer jpegData, int x, int y, long timestamp, Runnable release) {
+        int size = jpegData.remaining();
+        Log.v(TAG, "JPEG returned in camera buffer, size = " + size);
+        long dt = jpegInterval();
+        nextBenchmarkShot();
+        if (mThumbnailBusy.compareAndSet(false, true)) {
+            mThumbnailJpeg = copyForThumbnail(size);
+            jpegData.duplicate().get(mThumbnailJpeg, 0, size);
+            decodeThumbnail(size);
+        }
+
+        if (mToggleSaveSdCard.isChecked()) {
+            mJpegSaver.saveJpeg(jpegData, release, savedToastListener(x, y, dt, timestamp));
         } else {
-            mMainHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    fileNameToast(String.format("Processing JPEG #%d %dx%d and %d bytes in %d ms.", ++mJpegCounter, x, y, jpegData.length, dt));
-                }
-            });
+            release.run();
+            processingToast(x, y, size, dt);
         }
     }
 
+    // mThumbnailJpeg, grown to hold size bytes; only call while holding mThumbnailBusy.
+    private byte[] copyForThumbnail(int size) {
+        return mThumbnailJpeg.length >= size ? mThumbnailJpeg : new byte[size];
+    }
+
+    // Decode mThumbnailJpeg and show it, giving the previous thumbnail back to the pool.
+    private void decodeThumbnail(final int size) {
+        mThumbnailHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap thumbnail = BitmapUtility.bitmapFromJpeg(mThumbnailJpeg, size);
+                mThumbnailBusy.set(false);
+                if (thumbnail == null) {
+                    return;
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mLastShotView.setImageBitmap(thumbnail);
+                        mLastShotView.setVisibility(View.VISIBLE);
+                        if (mLastShotBitmap != null) {
+                            BitmapUtility.recycleThumbnail(mLastShotBitmap);
+                        }
+                        mLastShotBitmap = thumbnail;
+                    }
+                });
+            }
+        });
+    }
+
+    // Milliseconds since the previous JPEG, or 0 for the first one.
+    private long jpegInterval() {
+        long now = SystemClock.elapsedRealtime();
+        long dt = mJpegMillis > 0 ? now - mJpegMillis : 0;
+        mJpegMillis = now;
+        return dt;
+    }
+
+    private AsyncMediaSaver.Listener savedToastListener(final int x, final int y, final long dt,
+            final long timestamp) {
+        return new AsyncMediaSaver.Listener() {
+            @Override
+            public void onSaved(final String result, final int bytes, long latencyNanos) {
+                if (mShotTracker != null && !result.isEmpty()) {
+                    mShotTracker.onWritten(timestamp, result, System.nanoTime());
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        fileNameToast(String.format("Saved %dx%d and %d bytes JPEG to %s in %d ms.", x, y, bytes, result, dt));
+                    }
+                });
+            }
+        };
+    }
+
+    private void processingToast(final int x, final int y, final int bytes, final long dt) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                fileNameToast(String.format("Processing JPEG #%d %dx%d and %d bytes in %d ms.", ++mJpegCounter, x, y, bytes, dt));
+            }
+        });
+    }
+
     @Override
     public void receivedFirstFrame() {
         mMainHandler.post(new Runnable() {
             @Override
             public void run() {
+                CameraTimer.mark(CameraTimer.FIRST_PREVIEW_FRAME);
                 mPreviewView.setBackgroundColor(Color.TRANSPARENT);
+                if (getIntent().getStringExtra(EXTRA_STARTUP_TRACE) != null) {
+                    writeStartupTrace(new File(getExternalFilesDir(null),
+                            getIntent().getStringExtra(EXTRA_STARTUP_TRACE)));
+                }
+                if (mShotTracker != null && !mShotBenchmarkStarted) {
+                    mShotBenchmarkStarted = true;
+                    mShotsLeft = getIntent().getIntExtra(EXTRA_SHOT_BENCHMARK, 0);
+                    mMainHandler.postDelayed(mFireShotRunnable, SHOT_BENCHMARK_SETTLE_MS);
+                }
+                if (mStartupBenchmark != null) {
+                    if (mStartupBenchmark.onFirstFrame()) {
+                        mMainHandler.postDelayed(mReopenCameraRunnable,
+                                getIntent().getIntExtra(EXTRA_STARTUP_BENCHMARK_DELAY_MS, 1000));
+                    } else {
+                        mStartupBenchmark = null;
+                    }
+                }
             }
         });
     }
 
+    StartupBenchmark mStartupBenchmark;
+
+    ShotLatencyTracker mShotTracker;
+    int mShotIntervalMs;
+    boolean mShotBenchmarkStarted = false;
+    // Written on the main thread, read on the JPEG thread.
+    volatile int mShotsLeft = 0;
+    // As fast as possible: JPEGs still to come back for the shots fired. Main thread only.
+    int mShotJpegsPending = 0;
+
+    // Take the next benchmark shot, or fill the pipeline when going as fast as possible. Also
+    // runs as a timeout when a JPEG never comes back; pending ones are then given up.
+    Runnable mFireShotRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mMainHandler.removeCallbacks(this);
+            if (mShotIntervalMs == 0) {
+                mShotJpegsPending = 0;
+                fillShotPipeline();
+            } else if (fireBenchmarkShot()) {
+                mMainHandler.postDelayed(this, mShotIntervalMs);
+            }
+        }
+    };
+
+    // As fast as possible: a JPEG is back, so there is room for another shot.
+    Runnable mShotReturnedRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mShotJpegsPending > 0) {
+                mShotJpegsPending--;
+            }
+            fillShotPipeline();
+        }
+    };
+
+    Runnable mShotBenchmarkDoneRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mShotTracker.logAndReset();
+        }
+    };
+
+    // Returns false if there was no shot left to take.
+    private boolean fireBenchmarkShot() {
+        if (mCamera == null || mShotsLeft <= 0) {
+            return false;
+        }
+        hitCaptureButton();
+        if (--mShotsLeft == 0) {
+            mMainHandler.postDelayed(mShotBenchmarkDoneRunnable,
+                    MEDIA_STORE_BATCH_DELAY_MS + SHOT_BENCHMARK_DRAIN_MS);
+        }
+        return true;
+    }
+
+    // Keep as many shots in flight as the camera allows, so sustained shots/s reflects the
+    // reprocess pipeline rather than one shot's latency. A bracket is one shot of several
+    // JPEGs, and the next bracket waits for all of them.
+    private void fillShotPipeline() {
+        if (mCamera == null) {
+            return;
+        }
+        int bracket = bracketFrames();
+        int maxPending = bracket > 1 ? bracket : mCamera.maxShotsInFlight();
+        while (mShotJpegsPending + bracket <= maxPending && fireBenchmarkShot()) {
+            mShotJpegsPending += bracket;
+        }
+        mMainHandler.removeCallbacks(mFireShotRunnable);
+        if (mShotsLeft > 0) {
+            mMainHandler.postDelayed(mFireShotRunnable, SHOT_BENCHMARK_TIMEOUT_MS);
+        }
+    }
+
+    // As fast as possible: shoot again as soon as a JPEG is back.
+    private void nextBenchmarkShot() {
+        if (mShotTracker != null && mShotIntervalMs == 0 && mShotsLeft > 0) {
+            mMainHandler.post(mShotReturnedRunnable);
+        }
+    }
+
+    // Close and reopen the camera, as a warm start.
+    Runnable mReopenCameraRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mCamera == null) {
+                return;
+            }
+            CameraTimer.newLaunch("reopen");
+            openCamera(mToggleFrontCam.isChecked());
+            startCamera();
+        }
+    };
+
+    // Write the startup trace of all launches so far, off the main thread.
+    private void writeStartupTrace(final File file) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                CameraTimer.writeTrace(file);
+            }
+        }, "StartupTraceThread").start();
+    }
+
     Toast mToast;
 
     public void fileNameToast(String s) {
@@ -519,9 +923,25 @@ public class DevCameraActivity extends Activity implements CameraInterface.MyCam
         });
     }
 
+    // Frames per bracket asked for, within what the camera can hold; 1 is no bracket.
+    private int bracketFrames() {
+        int bracket = getIntent().getIntExtra(EXTRA_BRACKET, 1);
+        return Math.max(1, Math.min(bracket, Api2Camera.MAX_BRACKET_FRAMES));
+    }
+
     // Hit capture button.
     private void hitCaptureButton() {
         Log.v(TAG, "hitCaptureButton");
+        int bracket = bracketFrames();
+        if (bracket > 1 && mCamera instanceof Api2Camera) {
+            float step = getIntent().getFloatExtra(EXTRA_BRACKET_EV_STEP, 2f);
+            float[] evSteps = new float[bracket];
+            for (int i = 0; i < bracket; i++) {
+                evSteps[i] = (i - (bracket - 1) * 0.5f) * step;
+            }
+            ((Api2Camera) mCamera).takeBracket(evSteps);
+            return;
+        }
         mCamera.takePicture();
     }
 
@@ -537,6 +957,8 @@ public class DevCameraActivity extends Activity implements CameraInterface.MyCam
      * Gyro graphics overlay update. *
      *********************************/
     GyroOperations mGyroOperations;
+    // Measures the gyro delay that matches the viewfinder, while the grid is shown.
+    GyroLatencyEstimator mGyroLatencyEstimator;
 
     private void startGyroDisplay() {
 
@@ -545,11 +967,7 @@ public class DevCameraActivity extends Activity implements CameraInterface.MyCam
         mPreviewOverlay.setFacingAndOrientation(mToggleFrontCam.isChecked() ?
                 CameraCharacteristics.LENS_FACING_FRONT : CameraCharacteristics.LENS_FACING_BACK,
                 mCamera.getOrientation());
-        if (mGyroOperations == null) {
-            SensorManager sensorManager = (SensorManager) getSystemService(this.SENSOR_SERVICE);
-            mGyroOperations = new GyroOperations(sensorManager);
-        }
-        mGyroOperations.startListening(
+        gyroOperations().startListening(
                 new GyroListener() {
                     @Override
                     public void updateGyroAngles(float[] gyroAngles) {
@@ -557,14 +975,37 @@ public class DevCameraActivity extends Activity implements CameraInterface.MyCam
                     }
                 }
         );
+        mGyroLatencyEstimator = new GyroLatencyEstimator(mGyroOperations.getHistory(),
+                new GyroLatencyEstimator.Listener() {
+                    @Override
+                    public void onEstimate(long gyroDelayNanos, long offsetNanos,
+                            long viewfinderLatencyNanos) {
+                        mGyroOperations.setDelayNanos(gyroDelayNanos);
+                    }
+                });
+        if (mCamera instanceof Api2Camera) {
+            ((Api2Camera) mCamera).setGyroLatencyEstimator(mGyroLatencyEstimator);
+        }
 
         mPreviewOverlay.showGyroGrid(true);
     }
 
+    private GyroOperations gyroOperations() {
+        if (mGyroOperations == null) {
+            SensorManager sensorManager = (SensorManager) getSystemService(this.SENSOR_SERVICE);
+            mGyroOperations = new GyroOperations(sensorManager);
+        }
+        return mGyroOperations;
+    }
+
     private void stopGyroDisplay() {
         if (mGyroOperations != null) {
             mGyroOperations.stopListening();
         }
+        if (mGyroLatencyEstimator != null && mCamera instanceof Api2Camera) {
+            ((Api2Camera) mCamera).setGyroLatencyEstimator(null);
+        }
+        mGyroLatencyEstimator = null;
         mPreviewOverlay.showGyroGrid(false);
     }
 
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera;
+
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out file numbers like SNAP_00042.JPG from an atomic counter.
+ *
+ * The directory is scanned once, when the sequence is created, so numbers never collide with
+ * files already there. The counter is persisted ahead of use, RESERVE_BATCH numbers at a time,
+ * with an asynchronous SharedPreferences apply(). next() touches neither the disk nor the heap
+ * except on the call that crosses into a new batch. Safe to use from any thread.
+ */
+public class FileSequence {
+    private static final String TAG = "DevCamera_SEQ";
+
+    // Numbers reserved per SharedPreferences write.
+    private static final int RESERVE_BATCH = 100;
+
+    private final SharedPreferences mPrefs;
+    private final String mKey;
+    private final AtomicInteger mNext;
+    // Numbers below this are covered by the value persisted in mPrefs.
+    private final AtomicInteger mReserved;
+
+    /**
+     * @param prefs Where the counter is persisted.
+     * @param key Preference key of the counter.
+     * @param dir Directory the numbered files go to.
+     * @param prefix File name before the number, e.g. "SNAP_".
+     * @param suffix File name after the number, e.g. ".JPG".
+     */
+    public FileSequence(SharedPreferences prefs, String key, File dir, String prefix, String suffix) {
+        mPrefs = prefs;
+        mKey = key;
+        long t0 = SystemClock.uptimeMillis();
+        int first = Math.max(prefs.getInt(key, 1), highestInDir(dir, prefix, suffix) + 1);
+        mNext = new AtomicInteger(first);
+        mReserved = new AtomicInteger(first);
+        Log.v(TAG, String.format("%s starts at %d, scanned %s in %d ms",
+                key, first, dir, SystemClock.uptimeMillis() - t0));
+    }
+
+    /**
+     * Return the next unused number.
+     */
+    public int next() {
+        int i = mNext.getAndIncrement();
+        int reserved = mReserved.get();
+        // Only the thread that wins the race persists the new batch.
+        if (i >= reserved && mReserved.compareAndSet(reserved, i + RESERVE_BATCH)) {
+            mPrefs.edit().putInt(mKey, i + RESERVE_BATCH).apply();
+        }
+        return i;
+    }
+
+    // Highest number among files named prefix + number + suffix, or 0 if there are none.
+    private static int highestInDir(File dir, String prefix, String suffix) {
+        String[] names = dir.list();
+        if (names == null) {
+            return 0;
+        }
+        int highest = 0;
+        for (String name : names) {
+            if (!name.startsWith(prefix) || !name.endsWith(suffix)
+                    || name.length() <= prefix.length() + suffix.length()) {
+                continue;
+            }
+            try {
+                int n = Integer.parseInt(name.substring(prefix.length(), name.length() - suffix.length()));
+                highest = Math.max(highest, n);
+            } catch (NumberFormatException e) {
+                // Not one of ours.
+            }
+        }
+        return highest;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera;
+
+import android.util.Log;
+
+/**
+ * Turns per-frame metadata into what the UI shows: normalized faces, exposure and lens
+ * position, FPS and dropped frames, and hands it to MyCameraCallback.
+ *
+ * Shared by every CameraInterface implementation so they all drive the callback the same way.
+ */
+public class FrameDataPublisher {
+    private static final String TAG = "DevCamera_FRAME";
+
+    // Log dropped frames. There are a log on Angler MDA32.
+    private static boolean LOG_DROPPED_FRAMES = true;
+
+    public int FPS_CALC_LOOKBACK = 15;
+    private final FrameTimer mFrameTimer = new FrameTimer(FPS_CALC_LOOKBACK);
+
+    // Face coordinate mapping.
+    private final int mFaceOffsetX;
+    private final int mFaceOffsetY;
+    private final int mFaceWidth;
+    private final int mFaceHeight;
+    private final int mSensorOrientation;
+    private final boolean mIsFront;
+    // Lens position normalization.
+    private final float mDiopterHi;
+    private final float mDiopterLo;
+
+    /**
+     * @param faceOffsetX Left edge of the output image within the active array.
+     * @param faceOffsetY Top edge of the output image within the active array.
+     * @param faceWidth Width of the output image within the active array.
+     * @param faceHeight Height of the output image within the active array.
+     */
+    public FrameDataPublisher(int faceOffsetX, int faceOffsetY, int faceWidth, int faceHeight,
+            int sensorOrientation, boolean isFront, float diopterHi, float diopterLo) {
+        mFaceOffsetX = faceOffsetX;
+        mFaceOffsetY = faceOffsetY;
+        mFaceWidth = faceWidth;
+        mFaceHeight = faceHeight;
+        mSensorOrientation = sensorOrientation;
+        mIsFront = isFront;
+        mDiopterHi = diopterHi;
+        mDiopterLo = diopterLo;
+    }
+
+    /**
+     * Publisher for a real camera described by info.
+     */
+    public static FrameDataPublisher forCamera(CameraInfoCache info, boolean isFront) {
+        int offX = info.faceOffsetX();
+        int offY = info.faceOffsetY();
+        int dX = info.activeAreaWidth() - 2 * offX;
+        int dY = info.activeAreaHeight() - 2 * offY;
+        if (info.IS_NEXUS_6 && isFront) {
+            // Front camera on Nexus 6 is currently 16 x 9 cropped to 4 x 3.
+            // TODO: Generalize this.
+            int cropOffset = dX / 8;
+            dX -= 2 * cropOffset;
+            offX += cropOffset;
+        }
+        return new FrameDataPublisher(offX, offY, dX, dY, info.sensorOrientation(), isFront,
+                info.getDiopterHi(), info.getDiopterLow());
+    }
+
+    public int getFaceOffsetX() {
+        return mFaceOffsetX;
+    }
+
+    public int getFaceOffsetY() {
+        return mFaceOffsetY;
+    }
+
+    public int getFaceWidth() {
+        return mFaceWidth;
+    }
+
+    public int getFaceHeight() {
+        return mFaceHeight;
+    }
+
+    public int getSensorOrientation() {
+        return mSensorOrientation;
+    }
+
+    public boolean isFront() {
+        return mIsFront;
+    }
+
+    public float getDiopterHi() {
+        return mDiopterHi;
+    }
+
+    public float getDiopterLo() {
+        return mDiopterLo;
+    }
+
+    /**
+     * Frame timing of the stream passed to publish().
+     */
+    public FrameTimer getFrameTimer() {
+        return mFrameTimer;
+    }
+
+    public void publish(FrameMetadata frame, CameraInterface.MyCameraCallback callback) {
+        // Faces.
+        NormalizedFace[] newFaces = new NormalizedFace[frame.faceCount];
+        for (int i = 0; i < frame.faceCount; ++i) {
+            newFaces[i] = new NormalizedFace(frame.faceCoords, i * FrameMetadata.FACE_STRIDE,
+                    mFaceWidth, mFaceHeight, mFaceOffsetX, mFaceOffsetY);
+            if (mIsFront && mSensorOrientation == 90) {
+                newFaces[i].mirrorInY();
+            }
+            if (mIsFront && mSensorOrientation == 270) {
+                newFaces[i].mirrorInX();
+            }
+            if (!mIsFront && mSensorOrientation == 270) {
+                newFaces[i].mirrorInX();
+                newFaces[i].mirrorInY();
+            }
+        }
+
+        // Normalized lens and exposure coordinates.
+        float normExposure = FrameStats.normalizedExposure(frame.exposureTime);
+        float normLensPos = (mDiopterHi - frame.focusDistance) / (mDiopterHi - mDiopterLo);
+
+        // Update frame arrival history.
+        mFrameTimer.addFrame(frame.timestamp);
+
+        // Frame drop detector
+        float drops = FrameStats.droppedFrames(mFrameTimer, frame.frameDuration);
+        if (drops > 0 && LOG_DROPPED_FRAMES) {
+            Log.e(TAG, String.format("dropped %.2f frames", drops));
+            callback.performanceDataAvailable(null, null, drops);
+        }
+
+        // FPS calc.
+        float fps = FrameStats.displayFps(mFrameTimer);
+
+        // Do callback.
+        if (callback != null) {
+            callback.frameDataAvailable(newFaces, normExposure, normLensPos, fps,
+                    frame.iso, frame.afState, frame.aeState, frame.awbState);
+        } else {
+            Log.v(TAG, "mMyCameraCallbacks is null!!.");
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera;
+
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Follows every capture from onCaptureStarted() to image arrival on each output stream, and
+ * counts the frames each stream did not deliver by cause:
+ *
+ *   CAUSE_HAL_FAILURE  onCaptureFailed() for the whole capture.
+ *   CAUSE_BUFFER_LOST  onCaptureBufferLost() for that stream.
+ *   CAUSE_STARVED      no callback at all; usually the ImageReader had no free buffer.
+ *   CAUSE_DISCARDED    the image arrived but the app dropped it to get a newer one.
+ *
+ * Captures are matched to images by sensor timestamp. A capture is settled SETTLE_FRAMES
+ * frames after it started; whatever it still expects then counts as starved. Streams without
+ * image callbacks (preview) can only be blamed for failures and lost buffers.
+ *
+ * Not thread safe: only use this from the camera operations thread.
+ */
+public class FrameDropTracker {
+    private static final String TAG = "DevCamera_DROPS";
+
+    public static final int STREAM_PREVIEW = 0;
+    public static final int STREAM_YUV1 = 1;
+    public static final int STREAM_YUV2 = 2;
+    public static final int STREAM_RAW = 3;
+    public static final int STREAM_DEPTH = 4;
+    private static final int STREAM_COUNT = 5;
+    private static final String[] STREAM_NAMES = {"Preview", "YUV1", "YUV2", "RAW", "Depth"};
+
+    public static final int CAUSE_HAL_FAILURE = 0;
+    public static final int CAUSE_BUFFER_LOST = 1;
+    public static final int CAUSE_STARVED = 2;
+    public static final int CAUSE_DISCARDED = 3;
+    private static final int CAUSE_COUNT = 4;
+
+    // Captures in flight; must cover the deepest pipeline plus SETTLE_FRAMES.
+    private static final int PENDING_SIZE = 64;
+    private static final int SETTLE_FRAMES = 16;
+
+    // Streams that report image arrival; the others are assumed delivered unless lost.
+    private int mTrackedMask = 0;
+
+    // Pending captures, in a ring indexed by frame number.
+    private final long[] mFrameNumbers = new long[PENDING_SIZE];
+    private final long[] mTimestamps = new long[PENDING_SIZE];
+    // Streams still owed an image, per capture.
+    private final int[] mOwed = new int[PENDING_SIZE];
+    private long mLastStarted = -1;
+
+    private final long[] mExpected = new long[STREAM_COUNT];
+    private final long[][] mDrops = new long[STREAM_COUNT][CAUSE_COUNT];
+
+    public FrameDropTracker() {
+        // No capture in any slot yet; 0 would be taken for frame 0.
+        Arrays.fill(mFrameNumbers, -1);
+    }
+
+    /**
+     * Mark a stream as one whose images are reported with onImage().
+     */
+    public void trackImages(int stream) {
+        mTrackedMask |= 1 << stream;
+    }
+
+    /**
+     * Bit mask for a set of streams, e.g. to tag a CaptureRequest with its outputs.
+     */
+    public static int mask(int stream) {
+        return 1 << stream;
+    }
+
+    public void onCaptureStarted(long frameNumber, long timestamp, int streamMask) {
+        // Settle everything this capture pushes out of the window.
+        for (long f = Math.max(mLastStarted + 1, frameNumber - PENDING_SIZE); f <= frameNumber; f++) {
+            settle(f - SETTLE_FRAMES);
+        }
+        mLastStarted = Math.max(mLastStarted, frameNumber);
+
+        int i = slot(frameNumber);
+        settle(mFrameNumbers[i]);
+        mFrameNumbers[i] = frameNumber;
+        mTimestamps[i] = timestamp;
+        mOwed[i] = streamMask & mTrackedMask;
+        for (int s = 0; s < STREAM_COUNT; s++) {
+            if ((streamMask & (1 << s)) != 0) {
+                mExpected[s]++;
+            }
+        }
+    }
+
+    public void onCaptureFailed(long frameNumber, int streamMask) {
+        for (int s = 0; s < STREAM_COUNT; s++) {
+            if ((streamMask & (1 << s)) != 0) {
+                mDrops[s][CAUSE_HAL_FAILURE]++;
+            }
+        }
+        clearOwed(frameNumber, streamMask);
+    }
+
+    public void onBufferLost(long frameNumber, int stream) {
+        mDrops[stream][CAUSE_BUFFER_LOST]++;
+        clearOwed(frameNumber, 1 << stream);
+    }
+
+    /**
+     * An image was delivered to the app.
+     */
+    public void onImage(int stream, long timestamp) {
+        int i = findByTimestamp(timestamp);
+        if (i >= 0) {
+            mOwed[i] &= ~(1 << stream);
+        }
+    }
+
+    /**
+     * An image was delivered and then closed unused, e.g. skipped to get a newer one.
+     */
+    public void onImageDiscarded(int stream, long timestamp) {
+        onImage(stream, timestamp);
+        mDrops[stream][CAUSE_DISCARDED]++;
+    }
+
+    public long getDrops(int stream, int cause) {
+        return mDrops[stream][cause];
+    }
+
+    public long getExpected(int stream) {
+        return mExpected[stream];
+    }
+
+    /**
+     * Log per-stream counts since the last call and start a new window. Captures that
+     * started within the last SETTLE_FRAMES frames stay pending and count in a later window.
+     */
+    public void logAndReset() {
+        for (int s = 0; s < STREAM_COUNT; s++) {
+            if (mExpected[s] == 0) {
+                continue;
+            }
+            long[] d = mDrops[s];
+            Log.v(TAG, String.format("%s: %d frames, dropped %d HAL failure, %d buffer lost, " +
+                    "%d starved, %d discarded", STREAM_NAMES[s], mExpected[s],
+                    d[CAUSE_HAL_FAILURE], d[CAUSE_BUFFER_LOST], d[CAUSE_STARVED], d[CAUSE_DISCARDED]));
+        }
+        for (int s = 0; s < STREAM_COUNT; s++) {
+            mExpected[s] = 0;
+            for (int c = 0; c < CAUSE_COUNT; c++) {
+                mDrops[s][c] = 0;
+            }
+        }
+    }
+
+    /**
+     * Settle all pending captures, log and start over, e.g. when the session ends.
+     */
+    public void logAndClose() {
+        for (int i = 0; i < PENDING_SIZE; i++) {
+            settle(mFrameNumbers[i]);
+        }
+        logAndReset();
+        Arrays.fill(mFrameNumbers, -1);
+        mLastStarted = -1;
+    }
+
+    // Count whatever capture frameNumber still owes as starved, and forget it.
+    private void settle(long frameNumber) {
+        if (frameNumber < 0) {
+            return;
+        }
+        int i = slot(frameNumber);
+        if (mFrameNumbers[i] != frameNumber || mOwed[i] == 0) {
+            return;
+        }
+        for (int s = 0; s < STREAM_COUNT; s++) {
+            if ((mOwed[i] & (1 << s)) != 0) {
+                mDrops[s][CAUSE_STARVED]++;
+            }
+        }
+        mOwed[i] = 0;
+    }
+
+    private void clearOwed(long frameNumber, int streamMask) {
+        int i = slot(frameNumber);
+        if (mFrameNumbers[i] == frameNumber) {
+            mOwed[i] &= ~streamMask;
+        }
+    }
+
+    private int findByTimestamp(long timestamp) {
+        for (int i = 0; i < PENDING_SIZE; i++) {
+            if (mTimestamps[i] == timestamp && mOwed[i] != 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int slot(long frameNumber) {
+        return (int) (frameNumber % PENDING_SIZE);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera;
+
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.Face;
+
+/**
+ * The per-frame capture result fields the app actually uses, as plain values.
+ *
+ * Filled in from a TotalCaptureResult for a real camera, or directly by synthetic or
+ * replayed sources. Instances are meant to be reused from frame to frame.
+ */
+public class FrameMetadata {
+    // Face coordinates are stored as FACE_STRIDE ints per face, in active array pixels:
+    // bounds left, top, right, bottom, then left eye, right eye and mouth x, y.
+    public static final int FACE_STRIDE = 10;
+    // Value of an optional face landmark that is not reported.
+    public static final int NO_POINT = NormalizedFace.NO_POINT;
+
+    public long frameNumber;
+    public long timestamp;
+    public long frameDuration;
+    public long exposureTime;
+    // Time from the first row to the last row starting exposure; 0 if not reported.
+    public long rollingShutterSkew;
+    // Angle the camera turned through over this frame's exposure, in radians, from the gyro.
+    // NaN if not known.
+    public float motion = Float.NaN;
+    public float focusDistance;
+    public int iso;
+    public int afState;
+    public int aeState;
+    public int awbState;
+    public int faceCount;
+    public int[] faceCoords = new int[0];
+
+    /**
+     * Copy the fields we use out of a capture result.
+     */
+    public FrameMetadata set(TotalCaptureResult result) {
+        frameNumber = result.getFrameNumber();
+        timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        frameDuration = result.get(CaptureResult.SENSOR_FRAME_DURATION);
+        exposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+        Long skew = result.get(CaptureResult.SENSOR_ROLLING_SHUTTER_SKEW);
+        rollingShutterSkew = skew == null ? 0 : skew;
+        motion = Float.NaN;
+        focusDistance = result.get(CaptureResult.LENS_FOCUS_DISTANCE);
+        iso = result.get(CaptureResult.SENSOR_SENSITIVITY);
+        afState = result.get(CaptureResult.CONTROL_AF_STATE);
+        aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+        awbState = result.get(CaptureResult.CONTROL_AWB_STATE);
+
+        Face[] faces = result.get(CaptureResult.STATISTICS_FACES);
+        setFaceCount(faces == null ? 0 : faces.length);
+        for (int i = 0; i < faceCount; i++) {
+            int o = i * FACE_STRIDE;
+            Rect bounds = faces[i].getBounds();
+            faceCoords[o] = bounds.left;
+            faceCoords[o + 1] = bounds.top;
+            faceCoords[o + 2] = bounds.right;
+            faceCoords[o + 3] = bounds.bottom;
+            setPoint(o + 4, faces[i].getLeftEyePosition());
+            setPoint(o + 6, faces[i].getRightEyePosition());
+            setPoint(o + 8, faces[i].getMouthPosition());
+        }
+        return this;
+    }
+
+    /**
+     * Set number of faces, growing storage if required. Coordinates must then be filled in.
+     */
+    public void setFaceCount(int count) {
+        faceCount = count;
+        if (faceCoords.length < count * FACE_STRIDE) {
+            faceCoords = new int[count * FACE_STRIDE];
+        }
+    }
+
+    private void setPoint(int offset, Point p) {
+        faceCoords[offset] = p == null ? NO_POINT : p.x;
+        faceCoords[offset + 1] = p == null ? NO_POINT : p.y;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera;
+
+/**
+ * The per-frame numbers FrameDataPublisher shows: normalized exposure, dropped frames and
+ * FPS. Kept free of Android types so the host benchmarks run this exact code.
+ */
+public class FrameStats {
+    private static final double SHORT_LOG_EXPOSURE = Math.log10(1000000000 / 10000); // 1/10000 second
+    private static final double LONG_LOG_EXPOSURE = Math.log10(1000000000 / 10); // 1/10 second
+
+    /**
+     * Exposure time on a log scale, 0 at 1/10000 second and 1 at 1/10 second.
+     */
+    public static float normalizedExposure(long exposureTime) {
+        double rm = Math.log10(exposureTime);
+        return (float) ((rm - SHORT_LOG_EXPOSURE) / (LONG_LOG_EXPOSURE - SHORT_LOG_EXPOSURE));
+    }
+
+    /**
+     * Frames missing before the last frame added to timer, or 0 if it came within 1.5 frame
+     * durations of the one before.
+     */
+    public static float droppedFrames(FrameTimer timer, long frameDuration) {
+        if (timer.getCount() < 2 || frameDuration <= 0) {
+            return 0;
+        }
+        long dt = timer.getLastInterval();
+        if (dt <= 3 * frameDuration / 2) {
+            return 0;
+        }
+        return (dt * 1f / frameDuration) - 1f;
+    }
+
+    /**
+     * FPS over the timer's window, rounded to the nearest whole number, ish.
+     */
+    public static float displayFps(FrameTimer timer) {
+        return (float) Math.floor(timer.getFps() + 0.1);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera;
+
+/**
+ * Tracks frame rate and frame interval jitter over the last few frames of one stream.
+ *
+ * Keeps timestamps in a fixed long[] ring and running sums of the intervals between them, so
+ * addFrame() and every getter are O(1) and allocation free. Not thread safe.
+ */
+public class FrameTimer {
+    private final long[] mTimes;
+    // Next slot to write, and number of valid slots.
+    private int mHead = 0;
+    private int mCount = 0;
+    private long mLastInterval = 0;
+    // Sums over the mCount - 1 intervals between the timestamps in the ring.
+    private double mIntervalSum = 0;
+    private double mIntervalSumSq = 0;
+
+    /**
+     * @param window Number of frames to average over, at least 2.
+     */
+    public FrameTimer(int window) {
+        mTimes = new long[Math.max(2, window)];
+    }
+
+    /**
+     * Add a frame timestamp, in nanoseconds. Timestamps must not go backwards.
+     */
+    public void addFrame(long timestamp) {
+        int capacity = mTimes.length;
+        if (mCount > 0) {
+            mLastInterval = timestamp - mTimes[(mHead + capacity - 1) % capacity];
+            if (mCount == capacity) {
+                // Oldest timestamp is overwritten, so its interval leaves the window.
+                long gone = mTimes[(mHead + 1) % capacity] - mTimes[mHead];
+                mIntervalSum -= gone;
+                mIntervalSumSq -= (double) gone * gone;
+            }
+            mIntervalSum += mLastInterval;
+            mIntervalSumSq += (double) mLastInterval * mLastInterval;
+        }
+        mTimes[mHead] = timestamp;
+        mHead = (mHead + 1) % capacity;
+        if (mCount < capacity) {
+            mCount++;
+        }
+    }
+
+    /**
+     * Forget all frames, e.g. when the stream restarts.
+     */
+    public void reset() {
+        mHead = 0;
+        mCount = 0;
+        mLastInterval = 0;
+        mIntervalSum = 0;
+        mIntervalSumSq = 0;
+    }
+
+    /**
+     * Number of frames in the window.
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Nanoseconds between the last two frames, or 0 before the second frame.
+     */
+    public long getLastInterval() {
+        return mLastInterval;
+    }
+
+    /**
+     * Mean nanoseconds between frames over the window, or 0 before the second frame.
+     */
+    public double getMeanInterval() {
+        return mCount > 1 ? mIntervalSum / (mCount - 1) : 0;
+    }
+
+    /**
+     * Frames per second over the window, or 0 before the second frame.
+     */
+    public float getFps() {
+        double mean = getMeanInterval();
+        return mean > 0 ? (float) (1000000000.0 / mean) : 0;
+    }
+
+    /**
+     * Standard deviation of the frame interval over the window, in nanoseconds.
+     */
+    public double getJitter() {
+        if (mCount < 2) {
+            return 0;
+        }
+        int n = mCount - 1;
+        double mean = mIntervalSum / n;
+        // Running sums can round slightly below zero when all intervals are equal.
+        return Math.sqrt(Math.max(0, mIntervalSumSq / n - mean * mean));
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera;
+
+/**
+ * The last few seconds of gyro samples, with the X and Y angles integrated up to each one, so
+ * that the rotation between any two recent times can be looked up. The total angle turned
+ * through is integrated too, so shake that cancels out still counts as motion, e.g. to score
+ * frames for motion blur over their exposure.
+ *
+ * Thread safe: samples come in on the sensor thread and are read on the camera thread.
+ */
+public class GyroHistory {
+    // Samples kept: about 9 seconds at 230 Hz. A power of two.
+    private static final int RING_SIZE = 2048;
+    private static final int RING_MASK = RING_SIZE - 1;
+    // Don't integrate across gaps longer than this, e.g. after the sensor was off.
+    private static final long MAX_GAP_NANOS = 100000000L;
+
+    private final long[] mTimes = new long[RING_SIZE];
+    private final float[] mRatesX = new float[RING_SIZE];
+    private final float[] mRatesY = new float[RING_SIZE];
+    // Angle integrated from the first sample up to each sample, in radians.
+    private final double[] mAnglesX = new double[RING_SIZE];
+    private final double[] mAnglesY = new double[RING_SIZE];
+    // Integral of the X/Y rotation speed up to each sample, in radians.
+    private final double[] mPaths = new double[RING_SIZE];
+    private long mCount = 0;
+
+    /**
+     * Add a gyro sample: timestamp in ns, X and Y rates in rad/s.
+     */
+    public synchronized void addSample(long timestamp, float x, float y) {
+        int i = (int) (mCount & RING_MASK);
+        if (mCount == 0) {
+            mAnglesX[i] = 0;
+            mAnglesY[i] = 0;
+            mPaths[i] = 0;
+        } else {
+            int p = (int) ((mCount - 1) & RING_MASK);
+            long dt = timestamp - mTimes[p];
+            if (dt <= 0) {
+                return;
+            }
+            double seconds = dt <= MAX_GAP_NANOS ? dt * 1e-9 : 0;
+            mAnglesX[i] = mAnglesX[p] + (mRatesX[p] + x) * 0.5 * seconds;
+            mAnglesY[i] = mAnglesY[p] + (mRatesY[p] + y) * 0.5 * seconds;
+            mPaths[i] = mPaths[p] + (Math.hypot(mRatesX[p], mRatesY[p]) + Math.hypot(x, y))
+                    * 0.5 * seconds;
+        }
+        mTimes[i] = timestamp;
+        mRatesX[i] = x;
+        mRatesY[i] = y;
+        mCount++;
+    }
+
+    public synchronized void clear() {
+        mCount = 0;
+    }
+
+    /**
+     * Angles at times[k] + offset for k < count, into anglesX and anglesY.
+     *
+     * @return false if any of the times is outside the history.
+     */
+    public synchronized boolean anglesAt(long[] times, int count, long offset,
+            double[] anglesX, double[] anglesY) {
+        for (int k = 0; k < count; k++) {
+            int j = find(times[k] + offset);
+            if (j < 0) {
+                return false;
+            }
+            interpolate(j, times[k] + offset, anglesX, anglesY, k);
+        }
+        return true;
+    }
+
+    /**
+     * Total angle turned through, panning and tilting, between start and end, in radians; NaN
+     * if the history doesn't cover the interval (yet).
+     */
+    public synchronized float motion(long start, long end) {
+        int i = find(start);
+        int j = find(end);
+        if (i < 0 || j < 0) {
+            return Float.NaN;
+        }
+        return (float) (pathAt(j, end) - pathAt(i, start));
+    }
+
+    // Index into the ring of the last sample at or before t, with a sample after it;
+    // -1 if t is outside the history.
+    private int find(long t) {
+        long lo = Math.max(0, mCount - RING_SIZE);
+        long hi = mCount - 1;
+        if (hi <= lo || t < mTimes[(int) (lo & RING_MASK)] || t >= mTimes[(int) (hi & RING_MASK)]) {
+            return -1;
+        }
+        // Invariant: time(lo) <= t < time(hi).
+        while (hi - lo > 1) {
+            long mid = (lo + hi) >>> 1;
+            if (mTimes[(int) (mid & RING_MASK)] <= t) {
+                lo = mid;
+            } else {
+                hi = mid;
+            }
+        }
+        return (int) (lo & RING_MASK);
+    }
+
+    private double pathAt(int j, long t) {
+        int j1 = (j + 1) & RING_MASK;
+        double f = (double) (t - mTimes[j]) / (mTimes[j1] - mTimes[j]);
+        return mPaths[j] + (mPaths[j1] - mPaths[j]) * f;
+    }
+
+    private void interpolate(int j, long t, double[] outX, double[] outY, int k) {
+        int j1 = (j + 1) & RING_MASK;
+        double f = (double) (t - mTimes[j]) / (mTimes[j1] - mTimes[j]);
+        outX[k] = mAnglesX[j] + (mAnglesX[j1] - mAnglesX[j]) * f;
+        outY[k] = mAnglesY[j] + (mAnglesY[j1] - mAnglesY[j]) * f;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera;
+
+import android.util.Log;
+
+/**
+ * Integrates gyro rates into X and Y angles, delayed by a fixed time so that the angles line
+ * up with what the viewfinder shows.
+ *
+ * Samples go into a primitive ring buffer, so addSample() doesn't allocate. The angle is
+ * integrated up to exactly (newest sample time - delay): the rate is interpolated linearly
+ * between samples and integrated with the trapezoid rule, so the compensation is the same
+ * whatever the gyro rate. The delay can be changed at any time from any thread.
+ *
+ * Takes plain values rather than SensorEvents, so it can run off device. addSample() must be
+ * called from one thread.
+ */
+public class GyroIntegrator {
+    private static final String TAG = "DevCamera_GYRO";
+
+    // Viewfinder latency on N6 is about 70 ms.
+    public static final long DEFAULT_DELAY_NANOS = 70000000L;
+    // Longest delay the ring can serve at gyro rates up to about 1 kHz.
+    public static final long MAX_DELAY_NANOS = 500000000L;
+    // Samples kept: a power of two.
+    private static final int RING_SIZE = 1024;
+    private static final int RING_MASK = RING_SIZE - 1;
+    // Below 100 Hz: log a stall.
+    private static final long STALL_NANOS = 10000000L;
+    // Don't integrate across gaps longer than this, e.g. after the sensor was off.
+    private static final long MAX_GAP_NANOS = 100000000L;
+
+    private final GyroListener mListener;
+    private volatile long mDelayNanos = DEFAULT_DELAY_NANOS;
+
+    private final long[] mTimes = new long[RING_SIZE];
+    private final float[] mRatesX = new float[RING_SIZE];
+    private final float[] mRatesY = new float[RING_SIZE];
+    // Samples ever added; the newest is at (mCount - 1) & RING_MASK.
+    private long mCount = 0;
+    // Sample at the start of the segment being integrated, and the time integrated up to.
+    private long mSegment = 0;
+    private long mIntegratedTo = 0;
+
+    private double mAngleX = 0; // radians
+    private double mAngleY = 0;
+    private final float[] mGyroAngle = new float[]{0f, 0f};
+
+    public GyroIntegrator(GyroListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * How far behind the newest sample to report the angle.
+     */
+    public void setDelayNanos(long delayNanos) {
+        mDelayNanos = Math.max(0, Math.min(MAX_DELAY_NANOS, delayNanos));
+    }
+
+    public long getDelayNanos() {
+        return mDelayNanos;
+    }
+
+    /**
+     * Add a gyro sample: timestamp in ns, X and Y rates in rad/s.
+     */
+    public void addSample(long timestamp, float x, float y) {
+        if (mCount > 0) {
+            long last = mTimes[(int) ((mCount - 1) & RING_MASK)];
+            if (timestamp <= last) {
+                // Out of order or repeated; the ring must stay sorted.
+                return;
+            }
+            if (timestamp - last > STALL_NANOS) {
+                Log.v(TAG, " ===============> GYRO STALL <==============");
+            }
+        }
+        int i = (int) (mCount & RING_MASK);
+        mTimes[i] = timestamp;
+        mRatesX[i] = x;
+        mRatesY[i] = y;
+        mCount++;
+
+        if (integrateTo(timestamp - mDelayNanos)) {
+            mGyroAngle[0] = (float) mAngleX;
+            mGyroAngle[1] = (float) mAngleY;
+            mListener.updateGyroAngles(mGyroAngle);
+        }
+    }
+
+    // Advance the integral to target, as far as samples allow. Returns true if it moved.
+    private boolean integrateTo(long target) {
+        long oldest = Math.max(0, mCount - RING_SIZE);
+        if (mSegment < oldest) {
+            // Fell behind the ring; restart from the oldest sample still in it.
+            mSegment = oldest;
+            mIntegratedTo = 0;
+        }
+        if (mIntegratedTo == 0) {
+            long first = mTimes[(int) (mSegment & RING_MASK)];
+            if (target < first) {
+                return false;
+            }
+            mIntegratedTo = first;
+        }
+
+        long start = mIntegratedTo;
+        while (mIntegratedTo < target && mSegment + 1 < mCount) {
+            int i0 = (int) (mSegment & RING_MASK);
+            int i1 = (int) ((mSegment + 1) & RING_MASK);
+            long t0 = mTimes[i0];
+            long t1 = mTimes[i1];
+            long end = Math.min(t1, target);
+            if (t1 - t0 <= MAX_GAP_NANOS) {
+                // Trapezoid between the interpolated rates at mIntegratedTo and end.
+                double span = t1 - t0;
+                double a = (mIntegratedTo - t0) / span;
+                double b = (end - t0) / span;
+                double dx = mRatesX[i1] - mRatesX[i0];
+                double dy = mRatesY[i1] - mRatesY[i0];
+                double seconds = (end - mIntegratedTo) * 1e-9;
+                mAngleX += (mRatesX[i0] + dx * (a + b) / 2) * seconds;
+                mAngleY += (mRatesY[i0] + dy * (a + b) / 2) * seconds;
+            }
+            mIntegratedTo = end;
+            if (end == t1) {
+                mSegment++;
+            }
+        }
+        return mIntegratedTo != start;
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera;
+
+import android.util.Log;
+
+/**
+ * Measures how far the gyro has to be delayed to line up with the viewfinder.
+ *
+ * For each pair of frames it is given the image motion between them (from an
+ * ImageMotionEstimator) and their sensor timestamps, already converted to the gyro time base.
+ * Every ESTIMATE_EVERY frames, the rotation the gyro saw over each frame interval is
+ * correlated with the image motion for clock offsets of +-MAX_OFFSET_NANOS; the peak is the
+ * offset between gyro and camera timestamps for the same instant. Magnitudes are compared, so
+ * the sensor axes and sign don't need to match the image. Estimates need enough motion in the
+ * window and a clear correlation, and are smoothed.
+ *
+ * The viewfinder latency is the measured time from SENSOR_TIMESTAMP to the frame reaching
+ * the app, plus DISPLAY_LATENCY_NANOS for the preview to reach the screen, which can't be
+ * seen from here. The gyro delay is that latency minus the clock offset.
+ *
+ * Not thread safe: only use this from the camera operations thread.
+ */
+public class GyroLatencyEstimator {
+    private static final String TAG = "DevCamera_GYROSYNC";
+
+    public interface Listener {
+        /**
+         * New estimate; all times in ns.
+         *
+         * @param gyroDelayNanos Delay to give GyroOperations.setDelayNanos().
+         * @param offsetNanos Gyro timestamp minus camera timestamp of the same instant.
+         * @param viewfinderLatencyNanos Exposure to display, estimated.
+         */
+        void onEstimate(long gyroDelayNanos, long offsetNanos, long viewfinderLatencyNanos);
+    }
+
+    // Frame pairs correlated per estimate: 4 seconds at 30 fps.
+    private static final int WINDOW = 120;
+    private static final int ESTIMATE_EVERY = 30;
+    private static final long MAX_OFFSET_NANOS = 100000000L;
+    private static final long OFFSET_STEP_NANOS = 1000000L;
+    private static final int OFFSETS = (int) (2 * MAX_OFFSET_NANOS / OFFSET_STEP_NANOS) + 1;
+    // SurfaceView buffer queue plus composition: about 2 vsyncs at 60 Hz.
+    public static final long DISPLAY_LATENCY_NANOS = 33000000L;
+    // Need some real motion in the window, in pixels per frame (standard deviation).
+    private static final float MIN_MOTION_STDDEV = 1.0f;
+    private static final double MIN_CORRELATION = 0.6;
+    private static final double SMOOTHING = 0.3;
+
+    private final GyroHistory mHistory;
+    private final Listener mListener;
+
+    // Ring of frame pairs: start and end time (gyro time base), image motion in pixels.
+    private final long[] mStarts = new long[WINDOW];
+    private final long[] mEnds = new long[WINDOW];
+    private final double[] mMotion = new double[WINDOW];
+    private int mCount = 0;
+    private int mSinceEstimate = 0;
+    private double mLatencySum = 0;
+    private int mLatencyCount = 0;
+
+    // Scratch for one correlation pass.
+    private final long[] mTimes = new long[2 * WINDOW];
+    private final double[] mAnglesX = new double[2 * WINDOW];
+    private final double[] mAnglesY = new double[2 * WINDOW];
+    private final double[] mRotation = new double[WINDOW];
+    private final double[] mScores = new double[OFFSETS];
+
+    private boolean mHaveEstimate = false;
+    private double mOffsetNanos = 0;
+    private double mLatencyNanos = 0;
+
+    public GyroLatencyEstimator(GyroHistory history, Listener listener) {
+        mHistory = history;
+        mListener = listener;
+    }
+
+    /**
+     * Add the motion between two frames.
+     *
+     * @param startNanos Timestamp of the earlier frame, in the gyro time base.
+     * @param endNanos Timestamp of the later frame, in the gyro time base.
+     * @param motionPixels Image motion between them.
+     * @param arrivalLatencyNanos Time from the later frame's timestamp to it reaching the app.
+     */
+    public void addFrame(long startNanos, long endNanos, float motionPixels, long arrivalLatencyNanos) {
+        int i = mCount % WINDOW;
+        mStarts[i] = startNanos;
+        mEnds[i] = endNanos;
+        mMotion[i] = motionPixels;
+        mCount++;
+        mLatencySum += arrivalLatencyNanos;
+        mLatencyCount++;
+        if (++mSinceEstimate >= ESTIMATE_EVERY && mCount >= WINDOW) {
+            mSinceEstimate = 0;
+            estimate();
+        }
+    }
+
+    /**
+     * Gyro timestamp minus camera timestamp of the same instant, as last estimated, or 0.
+     */
+    public long getOffsetNanos() {
+        return (long) mOffsetNanos;
+    }
+
+    private void estimate() {
+        double captureLatency = mLatencySum / mLatencyCount;
+        mLatencySum = 0;
+        mLatencyCount = 0;
+
+        double motionMean = 0;
+        for (int i = 0; i < WINDOW; i++) {
+            motionMean += mMotion[i];
+        }
+        motionMean /= WINDOW;
+        double motionVar = 0;
+        for (int i = 0; i < WINDOW; i++) {
+            motionVar += (mMotion[i] - motionMean) * (mMotion[i] - motionMean);
+        }
+        if (Math.sqrt(motionVar / WINDOW) < MIN_MOTION_STDDEV) {
+            return;  // Camera held still; nothing to line up.
+        }
+
+        for (int i = 0; i < WINDOW; i++) {
+            mTimes[2 * i] = mStarts[i];
+            mTimes[2 * i + 1] = mEnds[i];
+        }
+        int best = -1;
+        for (int k = 0; k < OFFSETS; k++) {
+            long offset = -MAX_OFFSET_NANOS + k * OFFSET_STEP_NANOS;
+            if (!mHistory.anglesAt(mTimes, 2 * WINDOW, offset, mAnglesX, mAnglesY)) {
+                mScores[k] = Double.NaN;
+                continue;
+            }
+            for (int i = 0; i < WINDOW; i++) {
+                double dx = mAnglesX[2 * i + 1] - mAnglesX[2 * i];
+                double dy = mAnglesY[2 * i + 1] - mAnglesY[2 * i];
+                mRotation[i] = Math.sqrt(dx * dx + dy * dy);
+            }
+            mScores[k] = correlation(mRotation, mMotion, motionMean, motionVar);
+            if (!Double.isNaN(mScores[k]) && (best < 0 || mScores[k] > mScores[best])) {
+                best = k;
+            }
+        }
+        if (best < 0 || mScores[best] < MIN_CORRELATION) {
+            Log.v(TAG, "No clear gyro/image correlation" + (best < 0 ? "" :
+                    String.format(" (best %.2f)", mScores[best])));
+            return;
+        }
+
+        double peak = best;
+        if (best > 0 && best < OFFSETS - 1
+                && !Double.isNaN(mScores[best - 1]) && !Double.isNaN(mScores[best + 1])) {
+            double denom = mScores[best - 1] - 2 * mScores[best] + mScores[best + 1];
+            if (denom < 0) {
+                peak += 0.5 * (mScores[best - 1] - mScores[best + 1]) / denom;
+            }
+        }
+        double offset = -MAX_OFFSET_NANOS + peak * OFFSET_STEP_NANOS;
+        if (mHaveEstimate) {
+            mOffsetNanos += SMOOTHING * (offset - mOffsetNanos);
+            mLatencyNanos += SMOOTHING * (captureLatency - mLatencyNanos);
+        } else {
+            mOffsetNanos = offset;
+            mLatencyNanos = captureLatency;
+            mHaveEstimate = true;
+        }
+
+        long viewfinderLatency = (long) mLatencyNanos + DISPLAY_LATENCY_NANOS;
+        long gyroDelay = Math.max(0, viewfinderLatency - (long) mOffsetNanos);
+        Log.v(TAG, String.format("Gyro offset %.1f ms (correlation %.2f), viewfinder latency %.1f ms," +
+                " gyro delay %.1f ms", mOffsetNanos * 0.000001, mScores[best],
+                viewfinderLatency * 0.000001, gyroDelay * 0.000001));
+        mListener.onEstimate(gyroDelay, (long) mOffsetNanos, viewfinderLatency);
+    }
+
+    // Pearson correlation of a and b; b's mean and sum of squared deviations are given.
+    private static double correlation(double[] a, double[] b, double bMean, double bVar) {
+        double aMean = 0;
+        for (int i = 0; i < WINDOW; i++) {
+            aMean += a[i];
+        }
+        aMean /= WINDOW;
+        double cov = 0;
+        double aVar = 0;
+        for (int i = 0; i < WINDOW; i++) {
+            double da = a[i] - aMean;
+            cov += da * (b[i] - bMean);
+            aVar += da * da;
+        }
+        return aVar > 0 ? cov / Math.sqrt(aVar * bVar) : Double.NaN;
+    }
+}
@@ -19,23 +19,28 @@ import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
-import android.util.Log;
-
-import java.util.ArrayDeque;
 
 /**
- * Put all the Gyro stuff here.
+ * Put all the Gyro stuff here. Feeds gyro SensorEvents to a GyroIntegrator while listening,
+ * and keeps a GyroHistory of them for matching against camera frames while listening or
+ * recording. The sensor is on while either is.
  */
 public class GyroOperations {
-    private static final String TAG = "DevCamera_GYRO";
-
     private SensorManager mSensorManager;
-    private GyroListener mListener;
+    private volatile GyroIntegrator mIntegrator;
+    private volatile long mDelayNanos = GyroIntegrator.DEFAULT_DELAY_NANOS;
+    private final GyroHistory mHistory = new GyroHistory();
+    private boolean mRecording = false;
+    private boolean mRegistered = false;
 
     private SensorEventListener mSensorEventListener = new SensorEventListener() {
         @Override
         public void onSensorChanged(SensorEvent event) {
-            delayGyroData(event);
+            GyroIntegrator integrator = mIntegrator;
+            if (integrator != null) {
+                integrator.addSample(event.timestamp, event.values[0], event.values[1]);
+            }
+            mHistory.addSample(event.timestamp, event.values[0], event.values[1]);
         }
         @Override
         public void onAccuracyChanged(Sensor sensor, int accuracy) {
@@ -47,59 +52,56 @@ public class GyroOperations {
     }
 
     public void startListening(GyroListener listener) {
-        mSensorManager.registerListener(mSensorEventListener, mSensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE), SensorManager.SENSOR_DELAY_FASTEST);
-        mListener = listener;
+        mIntegrator = new GyroIntegrator(listener);
+        mIntegrator.setDelayNanos(mDelayNanos);
+        updateRegistration();
     }
 
-    public void stopListening() {
-        mSensorManager.unregisterListener(mSensorEventListener);
+    /**
+     * Keep the gyro history up to date even when not listening.
+     */
+    public void startRecording() {
+        mRecording = true;
+        updateRegistration();
     }
 
-    // We need to make a copy of SensorEvent so we can put it in our delay-line.
-    class GyroEvent2D {
-        public long timestamp;
-        public final float[] values = new float[2];
+    public void stopRecording() {
+        mRecording = false;
+        updateRegistration();
+    }
 
-        public GyroEvent2D(SensorEvent event) {
-            this.timestamp = event.timestamp;
-            this.values[0] = event.values[0];
-            this.values[1] = event.values[1];
+    /**
+     * Delay gyro angles by this much to match the viewfinder. Can be called any time.
+     */
+    public void setDelayNanos(long delayNanos) {
+        mDelayNanos = delayNanos;
+        GyroIntegrator integrator = mIntegrator;
+        if (integrator != null) {
+            integrator.setDelayNanos(delayNanos);
         }
     }
 
-    private long mGyroLastTimestamp = 0;
-    private float[] mGyroAngle = new float[]{0f, 0f}; // radians, X and Y axes.
-    // Gyro arrives at 230 Hz on N6: 23 samples in 100 ms.  Viewfinder latency is 70 ms.  Delay about 15 samples.
-    private ArrayDeque<GyroEvent2D> mSensorDelayLine = new ArrayDeque<>();
-    private static final int DELAY_SIZE = 10;
+    /**
+     * Recent gyro samples, in SensorEvent timestamps (the elapsedRealtimeNanos() base).
+     */
+    public GyroHistory getHistory() {
+        return mHistory;
+    }
 
-    void delayGyroData(SensorEvent event) {
-        mSensorDelayLine.addLast(new GyroEvent2D(event));
-        if (mSensorDelayLine.size() < DELAY_SIZE) {
-            return;
-        }
-        GyroEvent2D delayedEvent = mSensorDelayLine.removeFirst();
-        integrateGyroForPosition(delayedEvent);
+    public void stopListening() {
+        mIntegrator = null;
+        updateRegistration();
     }
 
-    void integrateGyroForPosition(GyroEvent2D event) {
-        if (mGyroLastTimestamp == 0) {
-            mGyroLastTimestamp = event.timestamp;
-            return;
-        }
-        long dt = (event.timestamp - mGyroLastTimestamp) / 1000; // microseconds between samples
-        if (dt > 10000) { // below 100 Hz
-            Log.v(TAG, " ===============> GYRO STALL <==============");
+    private void updateRegistration() {
+        boolean want = mRecording || mIntegrator != null;
+        if (want && !mRegistered) {
+            mHistory.clear();
+            mSensorManager.registerListener(mSensorEventListener, mSensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE), SensorManager.SENSOR_DELAY_FASTEST);
+        } else if (!want && mRegistered) {
+            mSensorManager.unregisterListener(mSensorEventListener);
         }
-        mGyroAngle[0] += event.values[0] * 0.000001f * dt;
-        mGyroAngle[1] += event.values[1] * 0.000001f * dt;
-        mGyroLastTimestamp = event.timestamp;
-
-        // TODO: Add UI
-        //updateOrientationUI(mGyroAngle, dt);
-        //Log.v(TAG, String.format("Gyro: theta_x = %.2f  theta_y = %.2f   dt = %d", mGyroAngle[0]*180f/3.14f, mGyroAngle[1]*180f/3.14f, dt));
-
-        mListener.updateGyroAngles(mGyroAngle);
+        mRegistered = want;
     }
 
 }
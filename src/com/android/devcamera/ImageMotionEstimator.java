@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Global translation between consecutive frames, from the luma plane only.
+ *
+ * Each frame is reduced to a row profile and a column profile (sums of luma along each row
+ * and column, on a subsampled grid). The shift between two frames is the offset that best
+ * lines up their profiles, found by a search over +-maxShift pixels. Cheap and good enough to
+ * see how much the image moved, not what moved.
+ *
+ * Allocation free after the first frame of a size. Not thread safe.
+ */
+public class ImageMotionEstimator {
+    // Sample every STEP-th pixel of every STEP-th row.
+    private static final int STEP = 2;
+
+    private final int mMaxShift;
+    private int mWidth = 0;
+    private int mHeight = 0;
+    private int[] mCols;
+    private int[] mRows;
+    private int[] mPrevCols;
+    private int[] mPrevRows;
+    private boolean mHavePrev = false;
+    private float mDx;
+    private float mDy;
+
+    /**
+     * @param maxShift Largest motion to detect, in pixels of the full frame.
+     */
+    public ImageMotionEstimator(int maxShift) {
+        mMaxShift = Math.max(1, maxShift / STEP);
+    }
+
+    /**
+     * Add the next frame.
+     *
+     * @return true if there was a previous frame to compare with; the motion since it is then
+     *     in getDx() and getDy().
+     */
+    public boolean addFrame(ByteBuffer y, int width, int height, int rowStride, int pixelStride) {
+        int w = width / STEP;
+        int h = height / STEP;
+        if (w != mWidth || h != mHeight) {
+            mWidth = w;
+            mHeight = h;
+            mCols = new int[w];
+            mRows = new int[h];
+            mPrevCols = new int[w];
+            mPrevRows = new int[h];
+            mHavePrev = false;
+        }
+
+        int[] cols = mCols;
+        int[] rows = mRows;
+        for (int i = 0; i < w; i++) {
+            cols[i] = 0;
+        }
+        for (int j = 0; j < h; j++) {
+            int rowStart = j * STEP * rowStride;
+            int sum = 0;
+            for (int i = 0; i < w; i++) {
+                int v = y.get(rowStart + i * STEP * pixelStride) & 0xFF;
+                sum += v;
+                cols[i] += v;
+            }
+            rows[j] = sum;
+        }
+
+        boolean havePrev = mHavePrev;
+        if (havePrev) {
+            mDx = bestShift(mPrevCols, cols, w) * STEP;
+            mDy = bestShift(mPrevRows, rows, h) * STEP;
+        }
+        mCols = mPrevCols;
+        mRows = mPrevRows;
+        mPrevCols = cols;
+        mPrevRows = rows;
+        mHavePrev = true;
+        return havePrev;
+    }
+
+    /**
+     * Forget the previous frame, e.g. when frames were skipped.
+     */
+    public void reset() {
+        mHavePrev = false;
+    }
+
+    public float getDx() {
+        return mDx;
+    }
+
+    public float getDy() {
+        return mDy;
+    }
+
+    // Shift s such that cur[k] best matches prev[k - s], with sub-sample refinement. Profiles
+    // are compared after removing their means over the overlap, to ignore exposure changes.
+    private float bestShift(int[] prev, int[] cur, int n) {
+        int maxShift = Math.min(mMaxShift, n / 4);
+        float best = Float.MAX_VALUE;
+        int bestShift = 0;
+        float before = 0;
+        float after = 0;
+        float last = Float.MAX_VALUE;
+        for (int s = -maxShift; s <= maxShift; s++) {
+            float cost = cost(prev, cur, n, s);
+            if (cost < best) {
+                best = cost;
+                bestShift = s;
+                before = last;
+                after = Float.MAX_VALUE;
+            } else if (s == bestShift + 1) {
+                after = cost;
+            }
+            last = cost;
+        }
+        if (bestShift == -maxShift || bestShift == maxShift || after == Float.MAX_VALUE) {
+            return bestShift;
+        }
+        // Parabola through the minimum and its neighbours.
+        float denom = before - 2 * best + after;
+        return denom > 0 ? bestShift + 0.5f * (before - after) / denom : bestShift;
+    }
+
+    // Mean absolute difference of the mean-removed profiles where they overlap at shift s.
+    private static float cost(int[] prev, int[] cur, int n, int s) {
+        int start = Math.max(0, s);
+        int end = Math.min(n, n + s);
+        int count = end - start;
+        long sumPrev = 0;
+        long sumCur = 0;
+        for (int k = start; k < end; k++) {
+            sumPrev += prev[k - s];
+            sumCur += cur[k];
+        }
+        long bias = (sumCur - sumPrev) / count;
+        long diff = 0;
+        for (int k = start; k < end; k++) {
+            diff += Math.abs(cur[k] - prev[k - s] - bias);
+        }
+        return (float) diff / count;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera;
+
+import java.util.Arrays;
+
+/**
+ * Fixed memory histogram of nanosecond durations with percentile queries, in the style of
+ * HdrHistogram.
+ *
+ * Values below SUB_BUCKETS are counted exactly. Above that, each power of two range is split
+ * into SUB_BUCKETS / 2 linear buckets, so a percentile is never off by more than 1/64 (about
+ * 1.6%) of its value. Values above the maximum given to the constructor are counted in the
+ * top bucket; the exact max is kept separately. record() is O(1) and allocation free.
+ *
+ * Not thread safe. Only uses java.* so it can be used off device.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+
+    private final long mHighestTrackable;
+    private final long[] mCounts;
+    private long mTotalCount = 0;
+    private long mTotal = 0;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax = 0;
+
+    /**
+     * @param highestTrackable Largest value to resolve, e.g. 10 seconds in nanoseconds.
+     */
+    public LatencyHistogram(long highestTrackable) {
+        mHighestTrackable = Math.max(highestTrackable, SUB_BUCKETS);
+        mCounts = new long[indexOf(mHighestTrackable) + 1];
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mCounts[indexOf(Math.min(value, mHighestTrackable))]++;
+        mTotalCount++;
+        mTotal += value;
+        mMin = Math.min(mMin, value);
+        mMax = Math.max(mMax, value);
+    }
+
+    /**
+     * Start a new measurement window.
+     */
+    public void reset() {
+        Arrays.fill(mCounts, 0);
+        mTotalCount = 0;
+        mTotal = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = 0;
+    }
+
+    /**
+     * Add the counts of other, which must have the same highest trackable value.
+     */
+    public void add(LatencyHistogram other) {
+        if (other.mCounts.length != mCounts.length) {
+            throw new IllegalArgumentException("Histograms have different ranges");
+        }
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] += other.mCounts[i];
+        }
+        mTotalCount += other.mTotalCount;
+        mTotal += other.mTotal;
+        mMin = Math.min(mMin, other.mMin);
+        mMax = Math.max(mMax, other.mMax);
+    }
+
+    public long getCount() {
+        return mTotalCount;
+    }
+
+    public long getMax() {
+        return mMax;
+    }
+
+    public long getMin() {
+        return mTotalCount > 0 ? mMin : 0;
+    }
+
+    public double getMean() {
+        return mTotalCount > 0 ? (double) mTotal / mTotalCount : 0;
+    }
+
+    /**
+     * Smallest value that percentile percent of recorded values are at or below, to within
+     * the bucket resolution, or 0 if nothing was recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (mTotalCount == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * mTotalCount));
+        long seen = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            seen += mCounts[i];
+            if (seen >= target) {
+                return Math.min(highestValueOf(i), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    /**
+     * One line summary in milliseconds: count, mean, p50, p90, p99 and max.
+     */
+    public String summary() {
+        return String.format("n=%d mean=%.2f p50=%.2f p90=%.2f p99=%.2f max=%.2f ms",
+                mTotalCount, getMean() * 0.000001,
+                getValueAtPercentile(50) * 0.000001, getValueAtPercentile(90) * 0.000001,
+                getValueAtPercentile(99) * 0.000001, mMax * 0.000001);
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // value is in [HALF_SUB_BUCKETS << shift, SUB_BUCKETS << shift) for shift >= 1.
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        int sub = (int) (value >>> shift) - HALF_SUB_BUCKETS;
+        return SUB_BUCKETS + (shift - 1) * HALF_SUB_BUCKETS + sub;
+    }
+
+    // Largest value that lands in bucket index.
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1;
+        long sub = (index - SUB_BUCKETS) % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
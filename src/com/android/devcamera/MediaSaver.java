@@ -41,16 +41,49 @@ public class MediaSaver {
     private static final String MY_PREFS_NAME = "SnappyPrefs";
 
     // MediaStore is slow/broken
-    private static final boolean UDPATE_MEDIA_STORE = true;
+    static final boolean UDPATE_MEDIA_STORE = true;
 
 
-    public static int getNextInt(Context context, String id) {
-        SharedPreferences prefs = context.getSharedPreferences(MY_PREFS_NAME, Context.MODE_PRIVATE);
-        int i = prefs.getInt(id, 1);
-        SharedPreferences.Editor editor = prefs.edit();
-        editor.putInt(id, i+1);
-        editor.commit();
-        return i;
+    private static final File JPEG_DIR = new File("/sdcard/DCIM/Camera");
+    private static final File DEPTH_DIR = new File("/sdcard/DCIM");
+
+    // Created on first use, each with one scan of its directory.
+    private static volatile FileSequence sJpegSequence;
+    private static volatile FileSequence sDepthSequence;
+
+    private static FileSequence jpegSequence(Context context) {
+        if (sJpegSequence == null) {
+            synchronized (MediaSaver.class) {
+                if (sJpegSequence == null) {
+                    sJpegSequence = new FileSequence(getPrefs(context), "counter", JPEG_DIR, "SNAP_", ".JPG");
+                }
+            }
+        }
+        return sJpegSequence;
+    }
+
+    private static FileSequence depthSequence(Context context) {
+        if (sDepthSequence == null) {
+            synchronized (MediaSaver.class) {
+                if (sDepthSequence == null) {
+                    sDepthSequence = new FileSequence(getPrefs(context), "depthCounter", DEPTH_DIR, "Depth_", ".img");
+                }
+            }
+        }
+        return sDepthSequence;
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(MY_PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Scan the output directories now, rather than on the first save.
+     * @param context Application context.
+     */
+    public static void prepare(Context context) {
+        jpegSequence(context);
+        depthSequence(context);
     }
 
     /**
@@ -61,7 +94,7 @@ public class MediaSaver {
         String filename = "";
         try {
             File file;
-            int i = getNextInt(context, "depthCounter");
+            int i = depthSequence(context).next();
             filename = String.format("/sdcard/DCIM/Depth_%05d.img", i);
             file = new File(filename);
             if (!file.createNewFile()) {
@@ -101,15 +134,8 @@ public class MediaSaver {
     public static String saveJpeg(Context context, byte[] jpegData, ContentResolver resolver) {
         String filename = "";
         try {
-            File file;
-            while (true) {
-                int i = getNextInt(context, "counter");
-                filename = String.format("/sdcard/DCIM/Camera/SNAP_%05d.JPG", i);
-                file = new File(filename);
-                if (file.createNewFile()) {
-                    break;
-                }
-            }
+            File file = createJpegFile(context);
+            filename = file.getPath();
 
             long t0 = SystemClock.uptimeMillis();
             OutputStream os = new FileOutputStream(file);
@@ -118,25 +144,93 @@ public class MediaSaver {
             os.close();
             long t1 = SystemClock.uptimeMillis();
 
-            // update MediaStore so photos apps can find photos right away.
-            if (UDPATE_MEDIA_STORE) {
-                // really slow for some reason: MediaStore.Images.Media.insertImage(resolver, file.getAbsolutePath(), file.getName(), file.getName());
-                insertImage(resolver, file);
+            finishJpeg(file, jpegData.length, resolver, t0, t1);
+        } catch (IOException e) {
+            Log.e(TAG, "Error creating new file: ", e);
+        }
+        return filename;
+    }
+
+    /**
+     * Write a JPEG straight from a (typically direct) buffer, without copying it to the heap.
+     *
+     * @param context Application context.
+     * @param jpegData JPEG byte stream, from position to limit.
+     */
+    public static String saveJpeg(Context context, ByteBuffer jpegData, ContentResolver resolver) {
+        String filename = "";
+        try {
+            File file = createJpegFile(context);
+            filename = file.getPath();
+
+            long t0 = SystemClock.uptimeMillis();
+            FileOutputStream fos = new FileOutputStream(file);
+            FileChannel channel = fos.getChannel();
+            int bytesWritten = 0;
+            int byteCount = 0;
+            while (jpegData.hasRemaining()) {
+                byteCount = channel.write(jpegData);
+                if (0 == byteCount) {
+                    throw new IOException(filename);
+                } else {
+                    bytesWritten += byteCount;
+                }
             }
-            long t2 = SystemClock.uptimeMillis();
+            channel.close();
+            fos.close();
+            long t1 = SystemClock.uptimeMillis();
 
-            Log.v(TAG, String.format("Wrote JPEG %d bytes as %s in %.3f seconds; mediastore update = %.3f secs",
-                    jpegData.length, file, (t1 - t0) * 0.001, (t2 - t1) * 0.001)    );
+            finishJpeg(file, bytesWritten, resolver, t0, t1);
         } catch (IOException e) {
             Log.e(TAG, "Error creating new file: ", e);
         }
         return filename;
     }
 
+    private static File createJpegFile(Context context) throws IOException {
+        FileSequence sequence = jpegSequence(context);
+        // The sequence already skips existing files; this only loops if one appeared since.
+        while (true) {
+            int i = sequence.next();
+            File file = new File(String.format("/sdcard/DCIM/Camera/SNAP_%05d.JPG", i));
+            if (file.createNewFile()) {
+                return file;
+            }
+        }
+    }
+
+    // Common tail of saveJpeg(): MediaStore update and logging.
+    private static void finishJpeg(File file, int length, ContentResolver resolver, long t0, long t1) {
+        // update MediaStore so photos apps can find photos right away.
+        // A null resolver means the caller indexes the file itself.
+        if (UDPATE_MEDIA_STORE && resolver != null) {
+            // really slow for some reason: MediaStore.Images.Media.insertImage(resolver, file.getAbsolutePath(), file.getName(), file.getName());
+            insertImage(resolver, file);
+        }
+        long t2 = SystemClock.uptimeMillis();
+
+        Log.v(TAG, String.format("Wrote JPEG %d bytes as %s in %.3f seconds; mediastore update = %.3f secs",
+                length, file, (t1 - t0) * 0.001, (t2 - t1) * 0.001)    );
+    }
+
 
     // We use this instead of MediaStore.Images.Media.insertImage() because we want to add date metadata
     public static void insertImage(ContentResolver cr, File file) {
+        insertImage(cr, imageValues(file), file);
+    }
+
+    static void insertImage(ContentResolver cr, ContentValues values, File file) {
+        try {
+            cr.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
+        } catch (Exception e) {
+            Log.w(TAG, "Error updating media store for  " + file, e);
+        }
+    }
 
+    /**
+     * MediaStore row for a JPEG, for insert() or bulkInsert().
+     */
+    static ContentValues imageValues(File file) {
         ContentValues values = new ContentValues();
         values.put(MediaStore.Images.Media.TITLE, file.getName());
         values.put(MediaStore.Images.Media.DISPLAY_NAME, file.getName());
@@ -146,12 +240,7 @@ public class MediaSaver {
         // Add the date meta data to ensure the image is added at the front of the gallery
         values.put(MediaStore.Images.Media.DATE_ADDED, System.currentTimeMillis());
         values.put(MediaStore.Images.Media.DATE_TAKEN, System.currentTimeMillis());
-
-        try {
-            cr.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
-        } catch (Exception e) {
-            Log.w(TAG, "Error updating media store for  " + file, e);
-        }
+        return values;
     }
 
 }
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+
+/**
+ * Adds saved JPEGs to the MediaStore in batches, with one bulkInsert() per batch.
+ *
+ * A batch is flushed when it holds batchSize images, when its oldest image has waited
+ * maxDelayMillis, or on flush(). Logs the latency of each batch so that batch size can be
+ * traded against how soon photos show up in the gallery.
+ */
+public class MediaStoreIndexer {
+    private static final String TAG = "DevCamera_INDEX";
+
+    public interface Listener {
+        /**
+         * file is in the MediaStore now. Called on the indexer thread.
+         */
+        void onIndexed(File file);
+    }
+
+    private final ContentResolver mResolver;
+    private final int mBatchSize;
+    private final long mMaxDelayMillis;
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    // Guarded by this.
+    private ArrayList<ContentValues> mPending;
+    private ArrayList<File> mPendingFiles;
+    private long mOldestMillis;
+    private boolean mQuit = false;
+    private volatile Listener mListener;
+
+    // Only touched on mThread.
+    private int mBatchCount = 0;
+    private int mImageCount = 0;
+    private long mInsertMillis = 0;
+
+    /**
+     * @param batchSize Flush as soon as this many images are waiting.
+     * @param maxDelayMillis Flush when the oldest waiting image is this old.
+     */
+    public MediaStoreIndexer(ContentResolver resolver, int batchSize, long maxDelayMillis) {
+        mResolver = resolver;
+        mBatchSize = batchSize;
+        mMaxDelayMillis = maxDelayMillis;
+        mPending = new ArrayList<ContentValues>(batchSize);
+        mPendingFiles = new ArrayList<File>(batchSize);
+
+        mThread = new HandlerThread("MediaStoreIndexerThread");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Be told about every image once it is indexed, or pass null to stop.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Queue a JPEG for the MediaStore. Can be called from any thread.
+     */
+    public void add(File file) {
+        ContentValues values = MediaSaver.imageValues(file);
+        synchronized (this) {
+            if (mQuit) {
+                // Too late to batch; don't lose the image.
+                MediaSaver.insertImage(mResolver, values, file);
+                Listener listener = mListener;
+                if (listener != null) {
+                    listener.onIndexed(file);
+                }
+                return;
+            }
+            if (mPending.isEmpty()) {
+                mOldestMillis = SystemClock.uptimeMillis();
+                mHandler.postDelayed(mFlushRunnable, mMaxDelayMillis);
+            }
+            mPending.add(values);
+            mPendingFiles.add(file);
+            if (mPending.size() >= mBatchSize) {
+                mHandler.removeCallbacks(mFlushRunnable);
+                mHandler.post(mFlushRunnable);
+            }
+        }
+    }
+
+    /**
+     * Insert everything waiting now, e.g. when the app goes to the background.
+     */
+    public void flush() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        mHandler.post(mFlushRunnable);
+    }
+
+    /**
+     * Flush and stop the indexer thread. Images added later are inserted one at a time.
+     */
+    public void quit() {
+        synchronized (this) {
+            mQuit = true;
+        }
+        flush();
+        mThread.quitSafely();
+    }
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            ContentValues[] batch;
+            ArrayList<File> files;
+            long oldest;
+            synchronized (MediaStoreIndexer.this) {
+                if (mPending.isEmpty()) {
+                    return;
+                }
+                batch = mPending.toArray(new ContentValues[mPending.size()]);
+                files = mPendingFiles;
+                oldest = mOldestMillis;
+                mPending = new ArrayList<ContentValues>(mBatchSize);
+                mPendingFiles = new ArrayList<File>(mBatchSize);
+            }
+
+            long t0 = SystemClock.uptimeMillis();
+            try {
+                mResolver.bulkInsert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, batch);
+            } catch (Exception e) {
+                Log.w(TAG, "Error updating media store for " + batch.length + " images", e);
+            }
+            long t1 = SystemClock.uptimeMillis();
+            Listener listener = mListener;
+            if (listener != null) {
+                for (File f : files) {
+                    listener.onIndexed(f);
+                }
+            }
+
+            mBatchCount++;
+            mImageCount += batch.length;
+            mInsertMillis += t1 - t0;
+            Log.v(TAG, String.format("Indexed %d images in %d ms (%.1f ms/image), oldest waited %d ms. " +
+                    "Total %d images in %d batches, %.1f ms/image",
+                    batch.length, t1 - t0, (t1 - t0) / (float) batch.length, t1 - oldest,
+                    mImageCount, mBatchCount, mInsertMillis / (float) mImageCount));
+        }
+    };
+}
@@ -0,0 +1,515 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Merges a burst of YUV_420 frames of the same scene into one lower-noise frame.
+ *
+ * Frame 0 is the reference; the others are aligned to it and averaged in:
+ *
+ *   1. Each frame's luma is box-downsampled by 4 and again by 16.
+ *   2. For every TILE x TILE tile and every other frame, an offset is searched for at 1/16
+ *      scale (+-64 pixels), then refined at 1/4 and full scale, by sum of absolute differences.
+ *   3. Each output pixel is a weighted average of the reference and the aligned pixels of the
+ *      other frames. A pixel that differs from the reference by more than the noise threshold
+ *      gets less weight, down to none at twice the threshold, so moving objects and bad
+ *      alignment fall back to the reference instead of ghosting.
+ *
+ * Pyramid building, alignment and merging are split over a ForkJoinPool. Frame, pyramid and
+ * output arrays are kept and reused while the frame size stays the same.
+ *
+ * Use from one thread at a time: begin(), setFrame() for each frame, merge(), writeResult().
+ * Only uses java.* so it can be benchmarked off device.
+ */
+public class MultiFrameMerger {
+    public static final int MAX_FRAMES = 8;
+    // Luma levels; about 3 sigma of the pixel to pixel noise in low light.
+    public static final int DEFAULT_NOISE_THRESHOLD = 12;
+
+    // Alignment and merge tile size, in full resolution pixels.
+    private static final int TILE = 64;
+    // Pyramid scale factors, and the offset search radius at each level, in level pixels.
+    private static final int SCALE1 = 4;
+    private static final int SCALE2 = 16;
+    private static final int SEARCH2 = 4;
+    private static final int SEARCH1 = 2;
+    private static final int SEARCH0 = 2;
+    // Margin around a tile at the coarsest level, where tiles are only 4 pixels across.
+    private static final int MARGIN2 = 2;
+    // Full resolution alignment only looks at every SAMPLE0-th pixel of the tile.
+    private static final int SAMPLE0 = 4;
+    // Weights are fixed point with this scale.
+    private static final int ONE = 256;
+
+    // Work split over the pool, in order.
+    private static final int PHASE_LEVEL1 = 0;
+    private static final int PHASE_LEVEL2 = 1;
+    private static final int PHASE_ALIGN = 2;
+    private static final int PHASE_MERGE = 3;
+
+    private final ForkJoinPool mPool;
+    // Merge weight of a pixel by its absolute difference from the reference.
+    private final int[] mWeights = new int[256];
+
+    private int mWidth = 0;
+    private int mHeight = 0;
+    private int mChromaWidth;
+    private int mChromaHeight;
+    private int mWidth1, mHeight1, mWidth2, mHeight2;
+    private int mTilesX, mTilesY;
+    private int mFrameCount;
+
+    // Planar copies of each frame, and its luma at 1/4 and 1/16 scale.
+    private final byte[][] mY = new byte[MAX_FRAMES][];
+    private final byte[][] mU = new byte[MAX_FRAMES][];
+    private final byte[][] mV = new byte[MAX_FRAMES][];
+    private final int[][] mLevel1 = new int[MAX_FRAMES][];
+    private final int[][] mLevel2 = new int[MAX_FRAMES][];
+    // Per frame, x and y offset of each tile in full resolution pixels.
+    private final int[][] mOffsets = new int[MAX_FRAMES][];
+    // Per tile row, scratch for mergeBlock(): index delta of each frame's block.
+    private int[][] mDeltas;
+    private byte[] mOutY;
+    private byte[] mOutU;
+    private byte[] mOutV;
+
+    /**
+     * @param parallelism Threads to merge with; 1 merges on the calling thread.
+     */
+    public MultiFrameMerger(int parallelism, int noiseThreshold) {
+        mPool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+        int t = Math.max(1, noiseThreshold);
+        for (int d = 0; d < 256; d++) {
+            mWeights[d] = d <= t ? ONE : d >= 2 * t ? 0 : ONE * (2 * t - d) / t;
+        }
+    }
+
+    /**
+     * Start a new merge of frames of this size. Arrays from the last merge are reused if the
+     * size is the same.
+     */
+    public void begin(int width, int height) {
+        mFrameCount = 0;
+        if (width == mWidth && height == mHeight) {
+            return;
+        }
+        mWidth = width;
+        mHeight = height;
+        mChromaWidth = (width + 1) / 2;
+        mChromaHeight = (height + 1) / 2;
+        mWidth1 = Math.max(1, width / SCALE1);
+        mHeight1 = Math.max(1, height / SCALE1);
+        mWidth2 = Math.max(1, mWidth1 / (SCALE2 / SCALE1));
+        mHeight2 = Math.max(1, mHeight1 / (SCALE2 / SCALE1));
+        mTilesX = (width + TILE - 1) / TILE;
+        mTilesY = (height + TILE - 1) / TILE;
+        for (int f = 0; f < MAX_FRAMES; f++) {
+            // Allocated on first use, so short bursts don't hold memory for MAX_FRAMES.
+            mY[f] = null;
+            mU[f] = null;
+            mV[f] = null;
+            mLevel1[f] = null;
+            mLevel2[f] = null;
+            mOffsets[f] = null;
+        }
+        mDeltas = new int[mTilesY][MAX_FRAMES];
+        mOutY = new byte[width * height];
+        mOutU = new byte[mChromaWidth * mChromaHeight];
+        mOutV = new byte[mChromaWidth * mChromaHeight];
+    }
+
+    /**
+     * Copy in the next frame; the first one is the reference. The planes can be released as
+     * soon as this returns.
+     *
+     * @return false if MAX_FRAMES frames have already been set.
+     */
+    public boolean setFrame(ByteBuffer y, int yRowStride, int yPixelStride,
+            ByteBuffer u, ByteBuffer v, int uvRowStride, int uvPixelStride) {
+        if (mFrameCount >= MAX_FRAMES) {
+            return false;
+        }
+        int f = mFrameCount++;
+        if (mY[f] == null) {
+            mY[f] = new byte[mWidth * mHeight];
+            mU[f] = new byte[mChromaWidth * mChromaHeight];
+            mV[f] = new byte[mChromaWidth * mChromaHeight];
+            mLevel1[f] = new int[mWidth1 * mHeight1];
+            mLevel2[f] = new int[mWidth2 * mHeight2];
+            mOffsets[f] = new int[2 * mTilesX * mTilesY];
+        }
+        copyIn(y, yRowStride, yPixelStride, mWidth, mHeight, mY[f]);
+        copyIn(u, uvRowStride, uvPixelStride, mChromaWidth, mChromaHeight, mU[f]);
+        copyIn(v, uvRowStride, uvPixelStride, mChromaWidth, mChromaHeight, mV[f]);
+        return true;
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Align and merge the frames set since begin().
+     */
+    public void merge() {
+        runPhase(PHASE_LEVEL1, mFrameCount * mHeight1, 16);
+        runPhase(PHASE_LEVEL2, mFrameCount * mHeight2, 4);
+        runPhase(PHASE_ALIGN, (mFrameCount - 1) * mTilesX * mTilesY, 8);
+        runPhase(PHASE_MERGE, mTilesY, 1);
+    }
+
+    /**
+     * Full resolution x offset of tile (tx, ty) of frame f from the reference, after merge().
+     */
+    public int getOffsetX(int f, int tx, int ty) {
+        return f == 0 ? 0 : mOffsets[f][2 * (ty * mTilesX + tx)];
+    }
+
+    public int getOffsetY(int f, int tx, int ty) {
+        return f == 0 ? 0 : mOffsets[f][2 * (ty * mTilesX + tx) + 1];
+    }
+
+    /**
+     * Copy the merged frame out, e.g. into an Image dequeued from an ImageWriter.
+     */
+    public void writeResult(ByteBuffer y, int yRowStride, int yPixelStride,
+            ByteBuffer u, ByteBuffer v, int uvRowStride, int uvPixelStride) {
+        copyOut(mOutY, mWidth, mHeight, y, yRowStride, yPixelStride);
+        copyOut(mOutU, mChromaWidth, mChromaHeight, u, uvRowStride, uvPixelStride);
+        copyOut(mOutV, mChromaWidth, mChromaHeight, v, uvRowStride, uvPixelStride);
+    }
+
+    /**
+     * Stop the worker threads, if any.
+     */
+    public void shutdown() {
+        if (mPool != null) {
+            mPool.shutdown();
+        }
+    }
+
+    private void runPhase(int phase, int items, int minItems) {
+        if (items <= 0) {
+            return;
+        }
+        if (mPool == null || items <= minItems) {
+            runItems(phase, 0, items);
+        } else {
+            mPool.invoke(new PhaseTask(phase, 0, items, minItems));
+        }
+    }
+
+    private void runItems(int phase, int start, int end) {
+        for (int i = start; i < end; i++) {
+            switch (phase) {
+                case PHASE_LEVEL1:
+                    downsampleRow(mY[i / mHeight1], mWidth, mLevel1[i / mHeight1],
+                            mWidth1, i % mHeight1, SCALE1);
+                    break;
+                case PHASE_LEVEL2:
+                    downsampleRow(mLevel1[i / mHeight2], mWidth1, mLevel2[i / mHeight2],
+                            mWidth2, i % mHeight2, SCALE2 / SCALE1);
+                    break;
+                case PHASE_ALIGN:
+                    int tiles = mTilesX * mTilesY;
+                    alignTile(1 + i / tiles, i % tiles);
+                    break;
+                case PHASE_MERGE:
+                    mergeTileRow(i);
+                    break;
+            }
+        }
+    }
+
+    // Splits its items in half until there are few enough, then runs them.
+    private class PhaseTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final int mPhase, mStart, mEnd, mMinItems;
+
+        PhaseTask(int phase, int start, int end, int minItems) {
+            mPhase = phase;
+            mStart = start;
+            mEnd = end;
+            mMinItems = minItems;
+        }
+
+        @Override
+        protected void compute() {
+            if (mEnd - mStart <= mMinItems) {
+                runItems(mPhase, mStart, mEnd);
+                return;
+            }
+            int mid = (mStart + mEnd) >>> 1;
+            invokeAll(new PhaseTask(mPhase, mStart, mid, mMinItems),
+                    new PhaseTask(mPhase, mid, mEnd, mMinItems));
+        }
+    }
+
+    // Row dstRow of dst: box average of scale x scale blocks of src.
+    private static void downsampleRow(byte[] src, int srcWidth, int[] dst, int dstWidth,
+            int dstRow, int scale) {
+        int area = scale * scale;
+        for (int x = 0; x < dstWidth; x++) {
+            int sum = 0;
+            for (int j = 0; j < scale; j++) {
+                int o = (dstRow * scale + j) * srcWidth + x * scale;
+                for (int i = 0; i < scale; i++) {
+                    sum += src[o + i] & 0xFF;
+                }
+            }
+            dst[dstRow * dstWidth + x] = sum / area;
+        }
+    }
+
+    private static void downsampleRow(int[] src, int srcWidth, int[] dst, int dstWidth,
+            int dstRow, int scale) {
+        int area = scale * scale;
+        for (int x = 0; x < dstWidth; x++) {
+            int sum = 0;
+            for (int j = 0; j < scale; j++) {
+                int o = (dstRow * scale + j) * srcWidth + x * scale;
+                for (int i = 0; i < scale; i++) {
+                    sum += src[o + i];
+                }
+            }
+            dst[dstRow * dstWidth + x] = sum / area;
+        }
+    }
+
+    // Coarse to fine offset search for one tile of frame f.
+    private void alignTile(int f, int tile) {
+        int tx = tile % mTilesX;
+        int ty = tile / mTilesX;
+
+        // 1/16 scale: tiles are 4 pixels, so match a margin around them too.
+        int t2 = TILE / SCALE2;
+        int best = Integer.MAX_VALUE;
+        int bx = 0;
+        int by = 0;
+        for (int dy = -SEARCH2; dy <= SEARCH2; dy++) {
+            for (int dx = -SEARCH2; dx <= SEARCH2; dx++) {
+                int cost = sad(mLevel2[0], mLevel2[f], mWidth2, mHeight2,
+                        tx * t2 - MARGIN2, ty * t2 - MARGIN2, t2 + 2 * MARGIN2, dx, dy, 1);
+                if (cost < best || (cost == best && Math.abs(dx) + Math.abs(dy) < Math.abs(bx) + Math.abs(by))) {
+                    best = cost;
+                    bx = dx;
+                    by = dy;
+                }
+            }
+        }
+
+        // 1/4 scale.
+        int t1 = TILE / SCALE1;
+        int cx = bx * (SCALE2 / SCALE1);
+        int cy = by * (SCALE2 / SCALE1);
+        best = Integer.MAX_VALUE;
+        for (int dy = cy - SEARCH1; dy <= cy + SEARCH1; dy++) {
+            for (int dx = cx - SEARCH1; dx <= cx + SEARCH1; dx++) {
+                int cost = sad(mLevel1[0], mLevel1[f], mWidth1, mHeight1,
+                        tx * t1, ty * t1, t1, dx, dy, 1);
+                if (cost < best) {
+                    best = cost;
+                    bx = dx;
+                    by = dy;
+                }
+            }
+        }
+
+        // Full scale, on a sparse grid of the tile.
+        cx = bx * SCALE1;
+        cy = by * SCALE1;
+        best = Integer.MAX_VALUE;
+        for (int dy = cy - SEARCH0; dy <= cy + SEARCH0; dy++) {
+            for (int dx = cx - SEARCH0; dx <= cx + SEARCH0; dx++) {
+                int cost = sad(mY[0], mY[f], mWidth, mHeight, tx * TILE, ty * TILE, TILE, dx, dy, SAMPLE0);
+                if (cost < best) {
+                    best = cost;
+                    bx = dx;
+                    by = dy;
+                }
+            }
+        }
+        mOffsets[f][2 * tile] = bx;
+        mOffsets[f][2 * tile + 1] = by;
+    }
+
+    // Sum of absolute differences between the size x size block of ref at (x0, y0) and alt at
+    // (x0 + dx, y0 + dy), sampling every step pixels. Coordinates are clamped to the image.
+    private static int sad(int[] ref, int[] alt, int width, int height,
+            int x0, int y0, int size, int dx, int dy, int step) {
+        int sum = 0;
+        if (inside(x0, y0, size, dx, dy, width, height)) {
+            for (int j = 0; j < size; j += step) {
+                int r = (y0 + j) * width + x0;
+                int a = r + dy * width + dx;
+                for (int i = 0; i < size; i += step) {
+                    sum += Math.abs(ref[r + i] - alt[a + i]);
+                }
+            }
+            return sum;
+        }
+        for (int j = 0; j < size; j += step) {
+            int ry = clamp(y0 + j, height);
+            int ay = clamp(y0 + j + dy, height);
+            for (int i = 0; i < size; i += step) {
+                sum += Math.abs(ref[ry * width + clamp(x0 + i, width)]
+                        - alt[ay * width + clamp(x0 + i + dx, width)]);
+            }
+        }
+        return sum;
+    }
+
+    private static int sad(byte[] ref, byte[] alt, int width, int height,
+            int x0, int y0, int size, int dx, int dy, int step) {
+        int sum = 0;
+        if (inside(x0, y0, size, dx, dy, width, height)) {
+            for (int j = 0; j < size; j += step) {
+                int r = (y0 + j) * width + x0;
+                int a = r + dy * width + dx;
+                for (int i = 0; i < size; i += step) {
+                    sum += Math.abs((ref[r + i] & 0xFF) - (alt[a + i] & 0xFF));
+                }
+            }
+            return sum;
+        }
+        for (int j = 0; j < size; j += step) {
+            int ry = clamp(y0 + j, height);
+            int ay = clamp(y0 + j + dy, height);
+            for (int i = 0; i < size; i += step) {
+                sum += Math.abs((ref[ry * width + clamp(x0 + i, width)] & 0xFF)
+                        - (alt[ay * width + clamp(x0 + i + dx, width)] & 0xFF));
+            }
+        }
+        return sum;
+    }
+
+    // Whether the size x size block at (x0, y0), and at (x0 + dx, y0 + dy), is in the image.
+    private static boolean inside(int x0, int y0, int size, int dx, int dy, int width, int height) {
+        return x0 >= 0 && y0 >= 0 && x0 + size <= width && y0 + size <= height
+                && x0 + dx >= 0 && y0 + dy >= 0 && x0 + dx + size <= width && y0 + dy + size <= height;
+    }
+
+    // Merge every tile in tile row ty, luma and chroma.
+    private void mergeTileRow(int ty) {
+        int[] deltas = mDeltas[ty];
+        for (int tx = 0; tx < mTilesX; tx++) {
+            int tile = ty * mTilesX + tx;
+            mergeBlock(mY, mOutY, mWidth, mHeight, tx * TILE, ty * TILE, TILE, tile, 0, deltas);
+            mergeBlock(mU, mOutU, mChromaWidth, mChromaHeight,
+                    tx * TILE / 2, ty * TILE / 2, TILE / 2, tile, 1, deltas);
+            mergeBlock(mV, mOutV, mChromaWidth, mChromaHeight,
+                    tx * TILE / 2, ty * TILE / 2, TILE / 2, tile, 1, deltas);
+        }
+    }
+
+    // Robust average of a size x size block of plane over all frames; offsets are shifted
+    // right by shift for subsampled planes. deltas is scratch of at least mFrameCount.
+    private void mergeBlock(byte[][] planes, byte[] out, int width, int height,
+            int x0, int y0, int size, int tile, int shift, int[] deltas) {
+        int[] weightOf = mWeights;
+        int xEnd = Math.min(width, x0 + size);
+        int yEnd = Math.min(height, y0 + size);
+        byte[] ref = planes[0];
+
+        // Usually every frame's block is inside the image: index with a fixed delta.
+        boolean inside = xEnd - x0 == size && yEnd - y0 == size;
+        for (int f = 1; f < mFrameCount && inside; f++) {
+            int dx = mOffsets[f][2 * tile] >> shift;
+            int dy = mOffsets[f][2 * tile + 1] >> shift;
+            inside = inside(x0, y0, size, dx, dy, width, height);
+            deltas[f] = dy * width + dx;
+        }
+        if (inside) {
+            for (int y = y0; y < yEnd; y++) {
+                for (int o = y * width + x0, end = y * width + xEnd; o < end; o++) {
+                    int r = ref[o] & 0xFF;
+                    int sum = r * ONE;
+                    int weights = ONE;
+                    for (int f = 1; f < mFrameCount; f++) {
+                        int a = planes[f][o + deltas[f]] & 0xFF;
+                        int w = weightOf[Math.abs(a - r)];
+                        sum += w * a;
+                        weights += w;
+                    }
+                    out[o] = (byte) ((sum + weights / 2) / weights);
+                }
+            }
+            return;
+        }
+
+        for (int y = y0; y < yEnd; y++) {
+            for (int x = x0; x < xEnd; x++) {
+                int r = ref[y * width + x] & 0xFF;
+                int sum = r * ONE;
+                int weights = ONE;
+                for (int f = 1; f < mFrameCount; f++) {
+                    int ax = clamp(x + (mOffsets[f][2 * tile] >> shift), width);
+                    int ay = clamp(y + (mOffsets[f][2 * tile + 1] >> shift), height);
+                    int a = planes[f][ay * width + ax] & 0xFF;
+                    int w = weightOf[Math.abs(a - r)];
+                    sum += w * a;
+                    weights += w;
+                }
+                out[y * width + x] = (byte) ((sum + weights / 2) / weights);
+            }
+        }
+    }
+
+    private static int clamp(int v, int size) {
+        return v < 0 ? 0 : v >= size ? size - 1 : v;
+    }
+
+    private static void copyIn(ByteBuffer src, int rowStride, int pixelStride,
+            int width, int height, byte[] dst) {
+        if (pixelStride == 1) {
+            ByteBuffer b = src.duplicate();
+            for (int y = 0; y < height; y++) {
+                b.position(y * rowStride);
+                b.get(dst, y * width, width);
+            }
+            return;
+        }
+        for (int y = 0; y < height; y++) {
+            int o = y * rowStride;
+            for (int x = 0; x < width; x++) {
+                dst[y * width + x] = src.get(o + x * pixelStride);
+            }
+        }
+    }
+
+    private static void copyOut(byte[] src, int width, int height,
+            ByteBuffer dst, int rowStride, int pixelStride) {
+        if (pixelStride == 1) {
+            ByteBuffer b = dst.duplicate();
+            for (int y = 0; y < height; y++) {
+                b.position(y * rowStride);
+                b.put(src, y * width, width);
+            }
+            return;
+        }
+        for (int y = 0; y < height; y++) {
+            int o = y * rowStride;
+            for (int x = 0; x < width; x++) {
+                dst.put(o + x * pixelStride, src[y * width + x]);
+            }
+        }
+    }
+}
@@ -17,7 +17,6 @@ package com.android.devcamera;
 
 import android.graphics.PointF;
 import android.graphics.RectF;
-import android.hardware.camera2.params.Face;
 
 /**
  *
@@ -26,34 +25,38 @@ import android.hardware.camera2.params.Face;
  *
  */
 public class NormalizedFace {
+    // Coordinate of a face landmark that is not reported. Defined here rather than in
+    // FrameMetadata so that this class has no camera2 dependency.
+    public static final int NO_POINT = Integer.MIN_VALUE;
+
     public RectF bounds;
     public PointF leftEye;
     public PointF rightEye;
     public PointF mouth;
 
-    public NormalizedFace(Face face, int dX, int dY, int offX, int offY) {
-        if (face.getLeftEyePosition() != null) {
-            leftEye = new PointF();
-            leftEye.x = (float) (face.getLeftEyePosition().x - offX) / dX;
-            leftEye.y = (float) (face.getLeftEyePosition().y - offY) / dY;
-        }
-        if (face.getRightEyePosition() != null) {
-            rightEye = new PointF();
-            rightEye.x = (float) (face.getRightEyePosition().x - offX) / dX;
-            rightEye.y = (float) (face.getRightEyePosition().y - offY) / dY;
-        }
-        if (face.getMouthPosition() != null) {
-            mouth = new PointF();
-            mouth.x = (float) (face.getMouthPosition().x - offX) / dX;
-            mouth.y = (float) (face.getMouthPosition().y - offY) / dY;
-        }
-        if (face.getBounds() != null) {
-            bounds = new RectF();
-            bounds.left = (float) (face.getBounds().left - offX) / dX;
-            bounds.top = (float) (face.getBounds().top - offY) / dY;
-            bounds.right = (float) (face.getBounds().right - offX) / dX;
-            bounds.bottom = (float) (face.getBounds().bottom - offY) / dY;
+    /**
+     * @param coords Face coordinates in active array pixels, laid out as in FrameMetadata.
+     * @param offset Index of the first coordinate of this face.
+     */
+    public NormalizedFace(int[] coords, int offset, int dX, int dY, int offX, int offY) {
+        bounds = new RectF();
+        bounds.left = (float) (coords[offset] - offX) / dX;
+        bounds.top = (float) (coords[offset + 1] - offY) / dY;
+        bounds.right = (float) (coords[offset + 2] - offX) / dX;
+        bounds.bottom = (float) (coords[offset + 3] - offY) / dY;
+        leftEye = normalizedPoint(coords, offset + 4, dX, dY, offX, offY);
+        rightEye = normalizedPoint(coords, offset + 6, dX, dY, offX, offY);
+        mouth = normalizedPoint(coords, offset + 8, dX, dY, offX, offY);
+    }
+
+    private static PointF normalizedPoint(int[] coords, int offset, int dX, int dY, int offX, int offY) {
+        if (coords[offset] == NO_POINT) {
+            return null;
         }
+        PointF p = new PointF();
+        p.x = (float) (coords[offset] - offX) / dX;
+        p.y = (float) (coords[offset + 1] - offY) / dY;
+        return p;
     }
 
     public void mirrorInX() {
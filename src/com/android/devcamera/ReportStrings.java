@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera;
+
+/**
+ * String building for CameraDeviceReport, without Android types so it can run off device.
+ */
+public class ReportStrings {
+
+    /**
+     * Each element's toString() followed by a space; empty for null.
+     */
+    public static String join(Object[] items) {
+        if (items == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(items.length * 12);
+        for (Object item : items) {
+            sb.append(item).append(' ');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Each int followed by a space; empty for null.
+     */
+    public static String join(int[] values) {
+        if (values == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(values.length * 4);
+        for (int v : values) {
+            sb.append(v).append(' ');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera;
+
+/**
+ * Book-keeping for reprocess requests that are in flight at the same time.
+ *
+ * Up to a fixed window of requests may be outstanding. Returned JPEGs are matched back to
+ * their request by sensor timestamp (a reprocess output carries the timestamp of its input
+ * image), falling back to the oldest outstanding request. Also measures sustained shots
+ * per second since the last reset().
+ *
+ * Not thread safe: only use this from the camera operations thread.
+ */
+public class ReprocessScheduler {
+    private final int mWindow;
+    private final long[] mTimestamps;
+    private final long[] mSubmitNanos;
+    private int mInFlight = 0;
+
+    private int mCompleted = 0;
+    private long mFirstCompletionNanos = 0;
+    private long mLastCompletionNanos = 0;
+
+    public ReprocessScheduler(int window) {
+        mWindow = window;
+        mTimestamps = new long[window];
+        mSubmitNanos = new long[window];
+    }
+
+    public int window() {
+        return mWindow;
+    }
+
+    public int inFlight() {
+        return mInFlight;
+    }
+
+    public boolean hasCapacity() {
+        return mInFlight < mWindow;
+    }
+
+    /**
+     * Record a newly submitted request for the image with this sensor timestamp.
+     * Returns false if the window is already full.
+     */
+    public boolean onSubmitted(long timestamp, long nowNanos) {
+        if (!hasCapacity()) {
+            return false;
+        }
+        mTimestamps[mInFlight] = timestamp;
+        mSubmitNanos[mInFlight] = nowNanos;
+        mInFlight++;
+        return true;
+    }
+
+    /**
+     * Record a returned JPEG. Returns submit to return latency in ns, or -1 if nothing was
+     * in flight.
+     */
+    public long onCompleted(long timestamp, long nowNanos) {
+        if (mInFlight == 0) {
+            return -1;
+        }
+        // Entries are kept in submit order, so entry 0 is the oldest.
+        int match = 0;
+        for (int i = 0; i < mInFlight; i++) {
+            if (mTimestamps[i] == timestamp) {
+                match = i;
+                break;
+            }
+        }
+        long latency = nowNanos - mSubmitNanos[match];
+        remove(match);
+
+        if (mCompleted == 0) {
+            mFirstCompletionNanos = nowNanos;
+        }
+        mLastCompletionNanos = nowNanos;
+        mCompleted++;
+        return latency;
+    }
+
+    /**
+     * Record a request that will not return a JPEG, freeing its slot without counting it as
+     * a shot. Returns false if no request for this timestamp is in flight.
+     */
+    public boolean onFailed(long timestamp) {
+        for (int i = 0; i < mInFlight; i++) {
+            if (mTimestamps[i] == timestamp) {
+                remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Completed shots since the last reset.
+     */
+    public int completedCount() {
+        return mCompleted;
+    }
+
+    /**
+     * Sustained shots per second, measured between the first and last completion since
+     * the last reset.
+     */
+    public float shotsPerSecond() {
+        if (mCompleted < 2) {
+            return 0f;
+        }
+        return (mCompleted - 1) * 1000000000f / (mLastCompletionNanos - mFirstCompletionNanos);
+    }
+
+    /**
+     * Restart the throughput measurement. Requests in flight are still tracked.
+     */
+    public void reset() {
+        mCompleted = 0;
+        mFirstCompletionNanos = 0;
+        mLastCompletionNanos = 0;
+    }
+
+    /**
+     * Forget all requests in flight, e.g. because the session went away.
+     */
+    public void clear() {
+        mInFlight = 0;
+        reset();
+    }
+
+    // Entries are kept in submit order.
+    private void remove(int index) {
+        for (int i = index; i < mInFlight - 1; i++) {
+            mTimestamps[i] = mTimestamps[i + 1];
+            mSubmitNanos[i] = mSubmitNanos[i + 1];
+        }
+        mInFlight--;
+    }
+}
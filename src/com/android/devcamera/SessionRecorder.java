@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera;
+
+import android.media.Image;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Records a live camera session to a compact binary file for SessionReplayCamera.
+ *
+ * File layout, all big endian:
+ *   header: MAGIC, VERSION, FrameDataPublisher geometry, YUV2 downsample factor.
+ *   records: a one byte tag followed by
+ *     RECORD_FRAME: the FrameMetadata fields, faces as FACE_STRIDE ints each.
+ *     RECORD_IMAGE: stream id byte, image timestamp.
+ *     RECORD_YUV2:  image timestamp, width, height, downsampled luma bytes.
+ *
+ * Not thread safe: only use this from the camera operations thread.
+ */
+public class SessionRecorder {
+    private static final String TAG = "DevCamera_REC";
+
+    public static final int MAGIC = 0x44435352; // "DCSR"
+    public static final int VERSION = 1;
+
+    public static final int RECORD_FRAME = 1;
+    public static final int RECORD_IMAGE = 2;
+    public static final int RECORD_YUV2 = 3;
+
+    public static final int STREAM_YUV1 = 1;
+    public static final int STREAM_YUV2 = 2;
+    public static final int STREAM_RAW = 3;
+    public static final int STREAM_DEPTH = 4;
+    public static final int STREAM_JPEG = 5;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File mFile;
+    private final int mYuv2Downsample;
+    private DataOutputStream mOut;
+    private byte[] mLuma = new byte[0];
+    private int mFrameCount = 0;
+
+    /**
+     * @param file Where to write the recording.
+     * @param yuv2Downsample Keep every Nth YUV2 luma sample in each direction, or 0 to not
+     *                       record YUV2 pixels at all.
+     */
+    public SessionRecorder(File file, int yuv2Downsample) {
+        mFile = file;
+        mYuv2Downsample = yuv2Downsample;
+    }
+
+    /**
+     * Open the file and write the header. Returns false if that failed.
+     */
+    public boolean start(FrameDataPublisher geometry) {
+        try {
+            mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile), BUFFER_SIZE));
+            mOut.writeInt(MAGIC);
+            mOut.writeInt(VERSION);
+            mOut.writeInt(geometry.getFaceOffsetX());
+            mOut.writeInt(geometry.getFaceOffsetY());
+            mOut.writeInt(geometry.getFaceWidth());
+            mOut.writeInt(geometry.getFaceHeight());
+            mOut.writeInt(geometry.getSensorOrientation());
+            mOut.writeBoolean(geometry.isFront());
+            mOut.writeFloat(geometry.getDiopterHi());
+            mOut.writeFloat(geometry.getDiopterLo());
+            mOut.writeInt(mYuv2Downsample);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not start recording to " + mFile, e);
+            close();
+            return false;
+        }
+        Log.v(TAG, "Recording session to " + mFile);
+        return true;
+    }
+
+    public boolean isRecording() {
+        return mOut != null;
+    }
+
+    public boolean wantsYuv2() {
+        return mOut != null && mYuv2Downsample > 0;
+    }
+
+    public void writeFrame(FrameMetadata m) {
+        if (mOut == null) return;
+        try {
+            mOut.writeByte(RECORD_FRAME);
+            mOut.writeLong(m.frameNumber);
+            mOut.writeLong(m.timestamp);
+            mOut.writeLong(m.frameDuration);
+            mOut.writeLong(m.exposureTime);
+            mOut.writeFloat(m.focusDistance);
+            mOut.writeInt(m.iso);
+            mOut.writeByte(m.afState);
+            mOut.writeByte(m.aeState);
+            mOut.writeByte(m.awbState);
+            mOut.writeByte(m.faceCount);
+            for (int i = 0; i < m.faceCount * FrameMetadata.FACE_STRIDE; i++) {
+                mOut.writeInt(m.faceCoords[i]);
+            }
+            mFrameCount++;
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    public void writeImage(int stream, long timestamp) {
+        if (mOut == null) return;
+        try {
+            mOut.writeByte(RECORD_IMAGE);
+            mOut.writeByte(stream);
+            mOut.writeLong(timestamp);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Record a downsampled copy of the luma plane of a YUV2 image.
+     */
+    public void writeYuv2(Image img) {
+        if (!wantsYuv2()) return;
+        Image.Plane plane = img.getPlanes()[0];
+        ByteBuffer buf = plane.getBuffer();
+        int rowStride = plane.getRowStride();
+        int pixelStride = plane.getPixelStride();
+        int w = img.getWidth() / mYuv2Downsample;
+        int h = img.getHeight() / mYuv2Downsample;
+        if (mLuma.length < w * h) {
+            mLuma = new byte[w * h];
+        }
+        for (int y = 0; y < h; y++) {
+            int row = y * mYuv2Downsample * rowStride;
+            for (int x = 0; x < w; x++) {
+                mLuma[y * w + x] = buf.get(row + x * mYuv2Downsample * pixelStride);
+            }
+        }
+        try {
+            mOut.writeByte(RECORD_YUV2);
+            mOut.writeLong(img.getTimestamp());
+            mOut.writeInt(w);
+            mOut.writeInt(h);
+            mOut.write(mLuma, 0, w * h);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    public void close() {
+        if (mOut == null) return;
+        try {
+            mOut.close();
+            Log.v(TAG, "Recorded " + mFrameCount + " frames to " + mFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing recording " + mFile, e);
+        }
+        mOut = null;
+    }
+
+    private void fail(IOException e) {
+        Log.e(TAG, "Error writing recording " + mFile + ", recording stopped.", e);
+        close();
+    }
+}
@@ -0,0 +1,396 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * SessionReplayCamera : a CameraInterface that plays back a SessionRecorder file.
+ *
+ * Every recorded frame goes through FrameDataPublisher to MyCameraCallback, exactly as live
+ * frames do in Api2Camera, either at the recorded cadence or as fast as possible. Recorded
+ * image timestamps feed the per-stream frame interval histograms, and downsampled YUV2 frames
+ * the image motion estimator, as the live image listeners do. Use it to compare the cost of
+ * frame processing and UI code between builds on a real device trace.
+ */
+public class SessionReplayCamera implements CameraInterface {
+    private static final String TAG = "DevCamera_REPLAY";
+
+    // Used only for layout; replay does not render into the preview.
+    private static final Size PREVIEW_SIZE = new Size(1280, 960);
+    private static final float[] FIELD_OF_VIEW = new float[]{66f, 52f};
+    // Same as Api2Camera; the motion range is in full resolution pixels.
+    private static final int LOG_NTH_FRAME = 30;
+    private static final int TIMING_WINDOW_FRAMES = 300;
+    private static final int YUV2_MAX_MOTION_PIXELS = 48;
+    private static final long YUV2_MAX_MOTION_INTERVAL_NANOS = 200000000L;
+
+    private final File mFile;
+    private final boolean mRealtime;
+    private final FrameMetadata mFrameMetadata = new FrameMetadata();
+    private FrameDataPublisher mFrameDataPublisher;
+    private DataInputStream mIn;
+
+    MyCameraCallback mMyCameraCallback;
+
+    // Everything runs on this thread.
+    private HandlerThread mOpsThread;
+    private Handler mOpsHandler;
+
+    private boolean mReplaying = false;
+    private boolean mHavePendingFrame = false;
+    private long mFirstTimestamp;
+    private long mStartUptimeMillis;
+    private long mStartNanos;
+    private int mFrameCount = 0;
+    private int mImageCount = 0;
+    private long mCallbackNanos = 0;
+
+    // Image records, by SessionRecorder stream id.
+    private final StreamTiming[] mImageTiming = new StreamTiming[SessionRecorder.STREAM_JPEG + 1];
+    // Image motion between recorded YUV2 frames, in downsampled pixels.
+    private int mYuv2Downsample = 1;
+    private ImageMotionEstimator mYuv2Motion;
+    private long mYuv2MotionTimestamp;
+    private byte[] mLuma = new byte[0];
+    private int mMotionCount = 0;
+    private double mMotionSum = 0;
+    private long mMotionNanos = 0;
+
+    /**
+     * Constructor.
+     * @param file Recording made by SessionRecorder.
+     * @param realtime Replay at the recorded frame cadence; otherwise as fast as possible.
+     */
+    public SessionReplayCamera(File file, boolean realtime) {
+        mFile = file;
+        mRealtime = realtime;
+
+        mOpsThread = new HandlerThread("ReplayCameraThread");
+        mOpsThread.start();
+        mOpsHandler = new Handler(mOpsThread.getLooper());
+    }
+
+    @Override
+    public Size getPreviewSize() {
+        return PREVIEW_SIZE;
+    }
+
+    @Override
+    public float[] getFieldOfView() {
+        return FIELD_OF_VIEW;
+    }
+
+    @Override
+    public int getOrientation() {
+        return mFrameDataPublisher != null ? mFrameDataPublisher.getSensorOrientation() : 90;
+    }
+
+    @Override
+    public void openCamera() {
+        Log.v(TAG, "Opening recording " + mFile);
+        mOpsHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                CameraTimer.begin(CameraTimer.HAL_OPEN);
+                try {
+                    mIn = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+                    readHeader();
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not open recording " + mFile, e);
+                    closeInput();
+                }
+                CameraTimer.end(CameraTimer.HAL_OPEN);
+            }
+        });
+    }
+
+    @Override
+    public void startPreview(Surface surface) {
+        mOpsHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mReplaying || mIn == null) {
+                    return;
+                }
+                CameraTimer.begin(CameraTimer.SESSION_CONFIGURE);
+                CameraTimer.end(CameraTimer.SESSION_CONFIGURE);
+                mReplaying = true;
+                mStartNanos = System.nanoTime();
+                mHavePendingFrame = readNextFrame();
+                if (mHavePendingFrame) {
+                    mFirstTimestamp = mFrameMetadata.timestamp;
+                    mStartUptimeMillis = SystemClock.uptimeMillis();
+                    mOpsHandler.post(mReplayRunnable);
+                } else {
+                    finishReplay();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void closeCamera() {
+        mOpsHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mReplaying = false;
+                mOpsHandler.removeCallbacks(mReplayRunnable);
+                closeInput();
+                mOpsThread.quitSafely();
+            }
+        });
+    }
+
+    @Override
+    public void takePicture() {
+        Log.v(TAG, "takePicture() ignored during replay.");
+    }
+
+    @Override
+    public void setBurst(boolean go) {
+    }
+
+    @Override
+    public void setCallback(MyCameraCallback callback) {
+        mMyCameraCallback = callback;
+    }
+
+    @Override
+    public boolean isRawAvailable() {
+        return false;
+    }
+
+    @Override
+    public boolean isReprocessingAvailable() {
+        return false;
+    }
+
+    @Override
+    public boolean canTakePicture() {
+        return false;
+    }
+
+    @Override
+    public int maxShotsInFlight() {
+        return 0;
+    }
+
+    @Override
+    public void triggerAFScan() {
+    }
+
+    @Override
+    public void setCAF() {
+    }
+
+    @Override
+    public void setCaptureFlow(Boolean yuv1, Boolean yuv2, Boolean raw10, Boolean nr, Boolean edge, Boolean face) {
+        mMyCameraCallback.setNoiseEdgeText("NR replay", "Edge replay");
+    }
+
+    @Override
+    public void setReprocessingFlow(Boolean nr, Boolean edge) {
+        mMyCameraCallback.setNoiseEdgeTextForReprocessing("NR replay", "Edge replay");
+    }
+
+    // Publish the frame that is due, read ahead to the next one and schedule it.
+    private final Runnable mReplayRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!mReplaying) {
+                return;
+            }
+            if (mHavePendingFrame) {
+                publishFrame();
+            }
+            mHavePendingFrame = readNextFrame();
+            if (!mHavePendingFrame) {
+                finishReplay();
+            } else if (mRealtime) {
+                mOpsHandler.postAtTime(this, mStartUptimeMillis +
+                        (mFrameMetadata.timestamp - mFirstTimestamp) / 1000000);
+            } else {
+                // Go through the looper so that other messages still get handled.
+                mOpsHandler.post(this);
+            }
+        }
+    };
+
+    private void publishFrame() {
+        long t0 = System.nanoTime();
+        if (mFrameCount == 0) {
+            long dt = CameraTimer.sinceLaunchMillis();
+            long camera_dt = CameraTimer.halWaitMillis();
+            CameraTimer.logLaunch();
+            mMyCameraCallback.receivedFirstFrame();
+            mMyCameraCallback.performanceDataAvailable((int) dt, (int) camera_dt, null);
+        }
+        mFrameDataPublisher.publish(mFrameMetadata, mMyCameraCallback);
+        mCallbackNanos += System.nanoTime() - t0;
+        mFrameCount++;
+    }
+
+    private void finishReplay() {
+        mReplaying = false;
+        closeInput();
+        long elapsed = System.nanoTime() - mStartNanos;
+        Log.v(TAG, String.format("Replayed %d frames and %d image records in %.1f ms (%.1f fps), " +
+                "callbacks took %.3f ms/frame",
+                mFrameCount, mImageCount, elapsed * 0.000001, mFrameCount * 1000000000.0 / elapsed,
+                mFrameCount > 0 ? mCallbackNanos * 0.000001 / mFrameCount : 0));
+        for (StreamTiming timing : mImageTiming) {
+            if (timing != null) {
+                timing.logSession();
+            }
+        }
+        if (mMotionCount > 0) {
+            Log.v(TAG, String.format("YUV2 motion: %d frame pairs, mean %.1f pixels, estimate took %.3f ms/frame",
+                    mMotionCount, mMotionSum / mMotionCount, mMotionNanos * 0.000001 / mMotionCount));
+        }
+    }
+
+    private void closeInput() {
+        if (mIn == null) return;
+        try {
+            mIn.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing recording " + mFile, e);
+        }
+        mIn = null;
+    }
+
+    private void readHeader() throws IOException {
+        if (mIn.readInt() != SessionRecorder.MAGIC) {
+            throw new IOException("Not a session recording: " + mFile);
+        }
+        int version = mIn.readInt();
+        if (version != SessionRecorder.VERSION) {
+            throw new IOException("Unsupported recording version " + version);
+        }
+        int offX = mIn.readInt();
+        int offY = mIn.readInt();
+        int dX = mIn.readInt();
+        int dY = mIn.readInt();
+        int orientation = mIn.readInt();
+        boolean isFront = mIn.readBoolean();
+        float diopterHi = mIn.readFloat();
+        float diopterLo = mIn.readFloat();
+        mYuv2Downsample = Math.max(1, mIn.readInt());
+        mYuv2Motion = new ImageMotionEstimator(YUV2_MAX_MOTION_PIXELS / mYuv2Downsample);
+        mFrameDataPublisher = new FrameDataPublisher(offX, offY, dX, dY, orientation, isFront,
+                diopterHi, diopterLo);
+    }
+
+    // Read records up to and including the next frame record. Returns false at end of file.
+    private boolean readNextFrame() {
+        if (mIn == null) return false;
+        try {
+            while (true) {
+                int tag = mIn.readByte();
+                switch (tag) {
+                    case SessionRecorder.RECORD_FRAME:
+                        readFrame(mFrameMetadata);
+                        return true;
+                    case SessionRecorder.RECORD_IMAGE:
+                        replayImage(mIn.readByte(), mIn.readLong());
+                        mImageCount++;
+                        break;
+                    case SessionRecorder.RECORD_YUV2:
+                        replayYuv2(mIn.readLong(), mIn.readInt(), mIn.readInt());
+                        mImageCount++;
+                        break;
+                    default:
+                        Log.e(TAG, "Unknown record " + tag + " in " + mFile);
+                        return false;
+                }
+            }
+        } catch (EOFException e) {
+            return false;
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading recording " + mFile, e);
+            return false;
+        }
+    }
+
+    private void replayImage(int stream, long timestamp) {
+        if (stream <= 0 || stream >= mImageTiming.length) {
+            Log.e(TAG, "Unknown stream " + stream + " in " + mFile);
+            return;
+        }
+        if (mImageTiming[stream] == null) {
+            mImageTiming[stream] = new StreamTiming(streamName(stream), LOG_NTH_FRAME, TIMING_WINDOW_FRAMES);
+        }
+        mImageTiming[stream].addFrame(timestamp);
+    }
+
+    // Read the downsampled luma and measure its motion since the previous YUV2 record.
+    private void replayYuv2(long timestamp, int w, int h) throws IOException {
+        if (mLuma.length < w * h) {
+            mLuma = new byte[w * h];
+        }
+        mIn.readFully(mLuma, 0, w * h);
+        long t0 = System.nanoTime();
+        if (timestamp - mYuv2MotionTimestamp > YUV2_MAX_MOTION_INTERVAL_NANOS) {
+            mYuv2Motion.reset();
+        }
+        if (mYuv2Motion.addFrame(ByteBuffer.wrap(mLuma, 0, w * h), w, h, w, 1)) {
+            mMotionSum += Math.hypot(mYuv2Motion.getDx(), mYuv2Motion.getDy()) * mYuv2Downsample;
+            mMotionCount++;
+        }
+        mYuv2MotionTimestamp = timestamp;
+        mMotionNanos += System.nanoTime() - t0;
+    }
+
+    private static String streamName(int stream) {
+        switch (stream) {
+            case SessionRecorder.STREAM_YUV1: return "YUV1";
+            case SessionRecorder.STREAM_YUV2: return "YUV2";
+            case SessionRecorder.STREAM_RAW: return "RAW";
+            case SessionRecorder.STREAM_DEPTH: return "Depth";
+            default: return "JPEG";
+        }
+    }
+
+    private void readFrame(FrameMetadata m) throws IOException {
+        m.frameNumber = mIn.readLong();
+        m.timestamp = mIn.readLong();
+        m.frameDuration = mIn.readLong();
+        m.exposureTime = mIn.readLong();
+        m.focusDistance = mIn.readFloat();
+        m.iso = mIn.readInt();
+        m.afState = mIn.readByte();
+        m.aeState = mIn.readByte();
+        m.awbState = mIn.readByte();
+        m.setFaceCount(mIn.readByte());
+        for (int i = 0; i < m.faceCount * FrameMetadata.FACE_STRIDE; i++) {
+            m.faceCoords[i] = mIn.readInt();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera;
+
+import android.util.Log;
+
+import java.util.HashMap;
+
+/**
+ * Times every shot through the capture pipeline, stage by stage:
+ *
+ *   STAGE_SHUTTER      shutter pressed (or, when bursting, frame picked)
+ *   STAGE_SELECTED     ZSL frame picked
+ *   STAGE_QUEUED       YUV image queued to the ImageWriter and reprocess request sent
+ *   STAGE_REPROCESSED  reprocess onCaptureCompleted()
+ *   STAGE_JPEG         JPEG Image available
+ *   STAGE_WRITTEN      JPEG file written
+ *   STAGE_INDEXED      file added to the MediaStore
+ *
+ * Shots are keyed by the sensor timestamp of their ZSL frame, which the reprocess result and
+ * the JPEG carry too; after STAGE_WRITTEN they are also found by file name. For each stage
+ * there is a histogram of the time since the previous stage and one of the time since the
+ * shutter. Sustained shots per second is measured over JPEG arrivals.
+ *
+ * Thread safe; stages are reported from the camera, JPEG, saver and indexer threads.
+ */
+public class ShotLatencyTracker {
+    private static final String TAG = "DevCamera_SHOTS";
+
+    public static final int STAGE_SHUTTER = 0;
+    public static final int STAGE_SELECTED = 1;
+    public static final int STAGE_QUEUED = 2;
+    public static final int STAGE_REPROCESSED = 3;
+    public static final int STAGE_JPEG = 4;
+    public static final int STAGE_WRITTEN = 5;
+    public static final int STAGE_INDEXED = 6;
+    private static final int STAGE_COUNT = 7;
+    private static final String[] STAGE_NAMES = {"shutter", "frame selected", "queued",
+            "reprocessed", "JPEG available", "file written", "indexed"};
+
+    // Shots remembered at once; older ones are forgotten and their late stages ignored.
+    private static final int MAX_SHOTS = 64;
+    private static final long HIGHEST_TRACKABLE_NANOS = 10000000000L;
+
+    // Ring of shots: sensor timestamp and System.nanoTime() of each stage, 0 if not reached.
+    private final long[] mTimestamps = new long[MAX_SHOTS];
+    private final long[][] mStageNanos = new long[MAX_SHOTS][STAGE_COUNT];
+    private int mNext = 0;
+    private final HashMap<String, Long> mFileShots = new HashMap<String, Long>();
+    // Files indexed before onWritten() was reported for them, with the time they were indexed.
+    private final HashMap<String, Long> mEarlyIndexed = new HashMap<String, Long>();
+
+    private final LatencyHistogram[] mStepHist = new LatencyHistogram[STAGE_COUNT];
+    private final LatencyHistogram[] mTotalHist = new LatencyHistogram[STAGE_COUNT];
+
+    private int mShots = 0;
+    private int mJpegs = 0;
+    private long mFirstJpegNanos = 0;
+    private long mLastJpegNanos = 0;
+
+    public ShotLatencyTracker() {
+        for (int s = 1; s < STAGE_COUNT; s++) {
+            mStepHist[s] = new LatencyHistogram(HIGHEST_TRACKABLE_NANOS);
+            mTotalHist[s] = new LatencyHistogram(HIGHEST_TRACKABLE_NANOS);
+        }
+    }
+
+    /**
+     * A shot of the frame with this sensor timestamp was started at shutterNanos.
+     */
+    public synchronized void onShutter(long timestamp, long shutterNanos) {
+        int i = mNext;
+        mNext = (mNext + 1) % MAX_SHOTS;
+        if (mStageNanos[i][STAGE_WRITTEN] != 0 && mStageNanos[i][STAGE_INDEXED] == 0) {
+            mFileShots.values().remove(mTimestamps[i]);
+        }
+        mTimestamps[i] = timestamp;
+        for (int s = 0; s < STAGE_COUNT; s++) {
+            mStageNanos[i][s] = 0;
+        }
+        mStageNanos[i][STAGE_SHUTTER] = shutterNanos;
+        mShots++;
+    }
+
+    /**
+     * The shot of the frame with this sensor timestamp reached stage at nowNanos.
+     */
+    public synchronized void onStage(long timestamp, int stage, long nowNanos) {
+        int i = find(timestamp);
+        if (i < 0 || mStageNanos[i][stage] != 0) {
+            return;
+        }
+        long[] t = mStageNanos[i];
+        t[stage] = nowNanos;
+        // Stages can be skipped, e.g. no file is written when saving is off.
+        for (int prev = stage - 1; prev >= 0; prev--) {
+            if (t[prev] != 0) {
+                mStepHist[stage].record(nowNanos - t[prev]);
+                break;
+            }
+        }
+        mTotalHist[stage].record(nowNanos - t[STAGE_SHUTTER]);
+
+        if (stage == STAGE_JPEG) {
+            if (mJpegs == 0) {
+                mFirstJpegNanos = nowNanos;
+            }
+            mLastJpegNanos = nowNanos;
+            mJpegs++;
+        }
+    }
+
+    /**
+     * The JPEG of the shot with this sensor timestamp was written to filename.
+     */
+    public synchronized void onWritten(long timestamp, String filename, long nowNanos) {
+        onStage(timestamp, STAGE_WRITTEN, nowNanos);
+        Long indexedNanos = mEarlyIndexed.remove(filename);
+        if (indexedNanos != null) {
+            onStage(timestamp, STAGE_INDEXED, Math.max(indexedNanos, nowNanos));
+        } else if (find(timestamp) >= 0) {
+            mFileShots.put(filename, timestamp);
+        }
+    }
+
+    /**
+     * filename was added to the MediaStore.
+     */
+    public synchronized void onIndexed(String filename, long nowNanos) {
+        Long timestamp = mFileShots.remove(filename);
+        if (timestamp != null) {
+            onStage(timestamp, STAGE_INDEXED, nowNanos);
+        } else {
+            // The indexer can beat the saver's callback; hold on to it for a while.
+            if (mEarlyIndexed.size() >= MAX_SHOTS) {
+                mEarlyIndexed.clear();
+            }
+            mEarlyIndexed.put(filename, nowNanos);
+        }
+    }
+
+    /**
+     * Sustained shots per second between the first and last JPEG since the last reset.
+     */
+    public synchronized float shotsPerSecond() {
+        if (mJpegs < 2) {
+            return 0f;
+        }
+        return (mJpegs - 1) * 1000000000f / (mLastJpegNanos - mFirstJpegNanos);
+    }
+
+    /**
+     * Log a histogram per stage and the shot rate, then start over.
+     */
+    public synchronized void logAndReset() {
+        Log.v(TAG, String.format("%d shots, %d JPEGs, %.2f shots/s sustained",
+                mShots, mJpegs, shotsPerSecond()));
+        for (int s = 1; s < STAGE_COUNT; s++) {
+            if (mStepHist[s].getCount() == 0) {
+                continue;
+            }
+            Log.v(TAG, String.format("  %-15s step  %s", STAGE_NAMES[s], mStepHist[s].summary()));
+            Log.v(TAG, String.format("  %-15s total %s", "", mTotalHist[s].summary()));
+            mStepHist[s].reset();
+            mTotalHist[s].reset();
+        }
+        mShots = 0;
+        mJpegs = 0;
+        mFirstJpegNanos = 0;
+        mLastJpegNanos = 0;
+    }
+
+    private int find(long timestamp) {
+        // Newest first; a timestamp can repeat if the same frame is shot twice.
+        for (int n = 1; n <= MAX_SHOTS; n++) {
+            int i = (mNext - n + MAX_SHOTS) % MAX_SHOTS;
+            if (mStageNanos[i][STAGE_SHUTTER] != 0 && mTimestamps[i] == timestamp) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
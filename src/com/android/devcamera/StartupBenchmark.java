@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Collects camera startup times over many launches.
+ *
+ * The first launch in a process is a cold start; every reopen after it is warm. Each sample
+ * (time to first preview frame, HAL open and session configure) is appended to a CSV file, so
+ * cold samples pile up across process restarts, e.g.
+ *
+ *   for i in $(seq 20); do
+ *     adb shell am force-stop com.android.devcamera
+ *     adb shell am start -W -n com.android.devcamera/.DevCameraActivity --ei startup_benchmark 10
+ *     sleep 15
+ *   done
+ *
+ * Cold time to first frame counts from process start, so it includes the fork, Application
+ * init and activity launch (before API 24 it can only count from onCreate()). Warm time to
+ * first frame counts from the reopen.
+ *
+ * After the last reopen of each run, a summary of every sample in the CSV so far, with
+ * percentiles per start kind, is written next to it. Launches that had to ask for permissions
+ * are not counted.
+ */
+public class StartupBenchmark {
+    private static final String TAG = "DevCamera_STARTUP";
+
+    private static final String KIND_COLD = "cold";
+    private static final String KIND_WARM = "warm";
+    private static final String[] KINDS = {KIND_COLD, KIND_WARM};
+    private static final String[] METRICS = {"time to first frame", "HAL open", "session configure"};
+    private static final String CSV_HEADER = "kind,ttff_ms,hal_open_ms,session_configure_ms";
+    private static final long HIGHEST_TRACKABLE_NANOS = 30000000000L;
+
+    private final File mSamplesFile;
+    private final File mSummaryFile;
+    private int mReopensLeft;
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    /**
+     * @param reopens Number of warm reopens to do after the launch in progress.
+     */
+    public StartupBenchmark(File samplesFile, File summaryFile, int reopens) {
+        mSamplesFile = samplesFile;
+        mSummaryFile = summaryFile;
+        mReopensLeft = reopens;
+
+        mThread = new HandlerThread("StartupBenchmarkThread");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Record the current launch. Call once its first preview frame is up.
+     *
+     * @return true if the camera should be reopened for another sample, false when done.
+     */
+    public boolean onFirstFrame() {
+        long ttff = CameraTimer.startNanos(CameraTimer.FIRST_PREVIEW_FRAME);
+        long open = CameraTimer.durationNanos(CameraTimer.HAL_OPEN);
+        long session = CameraTimer.durationNanos(CameraTimer.SESSION_CONFIGURE);
+        boolean cold = CameraTimer.launchNumber() == 1;
+        final String kind = cold ? KIND_COLD : KIND_WARM;
+        if (cold && ttff >= 0) {
+            long beforeLaunch = CameraTimer.sinceProcessStartNanos();
+            if (beforeLaunch >= 0) {
+                ttff += beforeLaunch;
+            } else {
+                Log.v(TAG, "No process start time, cold start counted from onCreate()");
+            }
+        }
+        if (CameraTimer.startNanos(CameraTimer.PERMISSION) >= 0) {
+            Log.v(TAG, "Not counting " + kind + " start that asked for permissions");
+        } else if (ttff < 0 || open < 0 || session < 0) {
+            Log.e(TAG, "Startup trace incomplete, not counting " + kind + " start");
+        } else {
+            final String line = String.format("%s,%.3f,%.3f,%.3f", kind,
+                    ttff * 0.000001, open * 0.000001, session * 0.000001);
+            Log.v(TAG, "Sample " + line);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    appendSample(line);
+                }
+            });
+        }
+
+        if (mReopensLeft > 0) {
+            mReopensLeft--;
+            return true;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                writeSummary();
+            }
+        });
+        mThread.quitSafely();
+        return false;
+    }
+
+    /**
+     * Stop early, e.g. when the activity stops; samples so far are kept.
+     */
+    public void cancel() {
+        mReopensLeft = 0;
+        mThread.quitSafely();
+    }
+
+    private void appendSample(String line) {
+        boolean isNew = !mSamplesFile.exists();
+        Writer w = null;
+        try {
+            w = new FileWriter(mSamplesFile, true);
+            if (isNew) {
+                w.write(CSV_HEADER + "\n");
+            }
+            w.write(line + "\n");
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write " + mSamplesFile, e);
+        } finally {
+            closeQuietly(w);
+        }
+    }
+
+    // Summarize every sample in the CSV, one histogram per start kind and metric.
+    private void writeSummary() {
+        LatencyHistogram[][] hist = new LatencyHistogram[KINDS.length][METRICS.length];
+        for (int k = 0; k < KINDS.length; k++) {
+            for (int m = 0; m < METRICS.length; m++) {
+                hist[k][m] = new LatencyHistogram(HIGHEST_TRACKABLE_NANOS);
+            }
+        }
+
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new FileReader(mSamplesFile));
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split(",");
+                int k = fields[0].equals(KIND_COLD) ? 0 : fields[0].equals(KIND_WARM) ? 1 : -1;
+                if (k < 0 || fields.length != METRICS.length + 1) {
+                    continue;
+                }
+                for (int m = 0; m < METRICS.length; m++) {
+                    hist[k][m].record((long) (Double.parseDouble(fields[m + 1]) * 1000000));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.e(TAG, "Could not read " + mSamplesFile, e);
+            return;
+        } finally {
+            closeQuietly(in);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int k = 0; k < KINDS.length; k++) {
+            sb.append(KINDS[k]).append(" start:\n");
+            for (int m = 0; m < METRICS.length; m++) {
+                sb.append(String.format("  %-20s %s\n", METRICS[m], hist[k][m].summary()));
+            }
+        }
+        Log.v(TAG, "Startup summary from " + mSamplesFile + ":\n" + sb);
+
+        Writer w = null;
+        try {
+            w = new FileWriter(mSummaryFile);
+            w.write(sb.toString());
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write " + mSummaryFile, e);
+        } finally {
+            closeQuietly(w);
+        }
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+    }
+}
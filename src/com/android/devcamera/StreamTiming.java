@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera;
+
+import android.util.Log;
+
+/**
+ * Frame timing of one camera stream: FPS and jitter over recent frames, and frame interval
+ * histograms for the current measurement window and for the whole session.
+ *
+ * Logs the window percentiles and starts a new window every windowFrames frames.
+ * Not thread safe.
+ */
+public class StreamTiming {
+    private static final String TAG = "DevCamera_TIMING";
+
+    // Intervals above this all land in the top histogram bucket.
+    private static final long HIGHEST_INTERVAL_NS = 10000000000L;
+
+    private final String mName;
+    private final int mWindowFrames;
+    private final FrameTimer mFrameTimer;
+    private final LatencyHistogram mWindow = new LatencyHistogram(HIGHEST_INTERVAL_NS);
+    private final LatencyHistogram mSession = new LatencyHistogram(HIGHEST_INTERVAL_NS);
+
+    /**
+     * @param name Stream name for the log.
+     * @param fpsFrames Frames to average FPS and jitter over.
+     * @param windowFrames Frames per histogram window.
+     */
+    public StreamTiming(String name, int fpsFrames, int windowFrames) {
+        mName = name;
+        mFrameTimer = new FrameTimer(fpsFrames);
+        mWindowFrames = windowFrames;
+    }
+
+    public void addFrame(long timestamp) {
+        mFrameTimer.addFrame(timestamp);
+        if (mFrameTimer.getCount() < 2) {
+            return;
+        }
+        mWindow.record(mFrameTimer.getLastInterval());
+        if (mWindow.getCount() >= mWindowFrames) {
+            Log.v(TAG, mName + " frame interval " + mWindow.summary());
+            mSession.add(mWindow);
+            mWindow.reset();
+        }
+    }
+
+    public FrameTimer getFrameTimer() {
+        return mFrameTimer;
+    }
+
+    /**
+     * Intervals since the last completed window.
+     */
+    public LatencyHistogram getWindow() {
+        return mWindow;
+    }
+
+    /**
+     * Intervals of all completed windows.
+     */
+    public LatencyHistogram getSession() {
+        return mSession;
+    }
+
+    /**
+     * Fold the partial window into the session and log the session percentiles.
+     */
+    public void logSession() {
+        mSession.add(mWindow);
+        mWindow.reset();
+        if (mSession.getCount() > 0) {
+            Log.v(TAG, mName + " session frame interval " + mSession.summary());
+        }
+    }
+
+    /**
+     * One line with the FPS and jitter over recent frames.
+     */
+    public String fpsString() {
+        return String.format(" fps=%.1f jitter=%.2f ms", mFrameTimer.getFps(),
+                mFrameTimer.getJitter() * 0.000001);
+    }
+}
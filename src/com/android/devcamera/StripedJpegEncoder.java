@@ -0,0 +1,524 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Baseline JPEG encoder for YUV_420 frames, for shots on devices without YUV reprocessing.
+ *
+ * The frame is cut into stripes of STRIPE_MCU_ROWS rows of 16x16 MCUs (4:2:0 chroma). Each
+ * stripe is one restart interval: DC prediction starts over and the entropy coded data ends
+ * on a byte boundary, so stripes are encoded independently on a ForkJoinPool and joined with
+ * RSTn markers. The result is a plain Exif JPEG with the orientation tag set.
+ *
+ * The planar copy of the frame and the stripe buffers are kept and reused while the frame
+ * size stays the same. Use from one thread at a time: setFrame(), encode(), writeTo().
+ * Only uses java.* so it can be benchmarked off device.
+ */
+public class StripedJpegEncoder {
+    public static final int DEFAULT_QUALITY = 95;
+
+    // MCU rows per stripe, i.e. 64 pixel rows; about 50 stripes in a 12 MP frame.
+    private static final int STRIPE_MCU_ROWS = 4;
+    private static final int MCU = 16;
+
+    private static final int[] ZIGZAG = {
+            0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63};
+
+    // ITU T.81 Annex K quantization and Huffman tables, in natural order.
+    private static final int[] LUMA_QUANT = {
+            16, 11, 10, 16, 24, 40, 51, 61, 12, 12, 14, 19, 26, 58, 60, 55,
+            14, 13, 16, 24, 40, 57, 69, 56, 14, 17, 22, 29, 51, 87, 80, 62,
+            18, 22, 37, 56, 68, 109, 103, 77, 24, 35, 55, 64, 81, 104, 113, 92,
+            49, 64, 78, 87, 103, 121, 120, 101, 72, 92, 95, 98, 112, 100, 103, 99};
+    private static final int[] CHROMA_QUANT = {
+            17, 18, 24, 47, 99, 99, 99, 99, 18, 21, 26, 66, 99, 99, 99, 99,
+            24, 26, 56, 99, 99, 99, 99, 99, 47, 66, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99};
+    private static final int[] DC_LUMA_BITS = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+    private static final int[] DC_CHROMA_BITS = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+    private static final int[] DC_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    private static final int[] AC_LUMA_BITS = {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+    private static final int[] AC_LUMA_VALUES = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+            0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+            0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+            0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+            0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+            0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+            0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+            0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa};
+    private static final int[] AC_CHROMA_BITS = {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+    private static final int[] AC_CHROMA_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+            0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+            0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+            0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+            0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+            0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+            0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa};
+
+    private final ForkJoinPool mPool;
+    // Quantization tables in zigzag order, for the header, and FDCT output multipliers.
+    private final int[] mLumaQuant = new int[64];
+    private final int[] mChromaQuant = new int[64];
+    private final float[] mLumaDivisors = new float[64];
+    private final float[] mChromaDivisors = new float[64];
+    // Huffman code and length per symbol: DC luma, DC chroma, AC luma, AC chroma.
+    private final int[][] mCodes = new int[4][256];
+    private final int[][] mLengths = new int[4][256];
+
+    private int mWidth = 0;
+    private int mHeight = 0;
+    private int mChromaWidth;
+    private int mChromaHeight;
+    private int mMcusX;
+    private int mMcusY;
+    private int mStripeCount;
+    private byte[] mY;
+    private byte[] mU;
+    private byte[] mV;
+    private Stripe[] mStripes;
+    private byte[] mHeader = new byte[1024];
+    private int mHeaderLength;
+
+    /**
+     * @param pool Threads to encode stripes on, or null to encode on the calling thread. May
+     *             be shared between encoders.
+     * @param quality 1 to 100, as for CaptureRequest.JPEG_QUALITY.
+     */
+    public StripedJpegEncoder(ForkJoinPool pool, int quality) {
+        mPool = pool;
+        int q = Math.max(1, Math.min(100, quality));
+        int scale = q < 50 ? 5000 / q : 200 - 2 * q;
+        // AAN FDCT output is scaled by 8 times these per row and column.
+        double[] aan = {1.0, 1.387039845, 1.306562965, 1.175875602,
+                1.0, 0.785694958, 0.541196100, 0.275899379};
+        for (int i = 0; i < 64; i++) {
+            int luma = Math.max(1, Math.min(255, (LUMA_QUANT[i] * scale + 50) / 100));
+            int chroma = Math.max(1, Math.min(255, (CHROMA_QUANT[i] * scale + 50) / 100));
+            double f = aan[i / 8] * aan[i % 8] * 8;
+            mLumaDivisors[i] = (float) (1 / (luma * f));
+            mChromaDivisors[i] = (float) (1 / (chroma * f));
+        }
+        for (int k = 0; k < 64; k++) {
+            mLumaQuant[k] = Math.max(1, Math.min(255, (LUMA_QUANT[ZIGZAG[k]] * scale + 50) / 100));
+            mChromaQuant[k] = Math.max(1, Math.min(255, (CHROMA_QUANT[ZIGZAG[k]] * scale + 50) / 100));
+        }
+        buildHuffman(DC_LUMA_BITS, DC_VALUES, mCodes[0], mLengths[0]);
+        buildHuffman(DC_CHROMA_BITS, DC_VALUES, mCodes[1], mLengths[1]);
+        buildHuffman(AC_LUMA_BITS, AC_LUMA_VALUES, mCodes[2], mLengths[2]);
+        buildHuffman(AC_CHROMA_BITS, AC_CHROMA_VALUES, mCodes[3], mLengths[3]);
+    }
+
+    /**
+     * Copy in the frame to encode. The planes can be released as soon as this returns.
+     */
+    public void setFrame(int width, int height, ByteBuffer y, int yRowStride, int yPixelStride,
+            ByteBuffer u, ByteBuffer v, int uvRowStride, int uvPixelStride) {
+        if (width != mWidth || height != mHeight) {
+            mWidth = width;
+            mHeight = height;
+            mChromaWidth = (width + 1) / 2;
+            mChromaHeight = (height + 1) / 2;
+            mMcusX = (width + MCU - 1) / MCU;
+            mMcusY = (height + MCU - 1) / MCU;
+            mStripeCount = (mMcusY + STRIPE_MCU_ROWS - 1) / STRIPE_MCU_ROWS;
+            mY = new byte[width * height];
+            mU = new byte[mChromaWidth * mChromaHeight];
+            mV = new byte[mChromaWidth * mChromaHeight];
+            mStripes = new Stripe[mStripeCount];
+            for (int s = 0; s < mStripeCount; s++) {
+                mStripes[s] = new Stripe();
+            }
+        }
+        copyIn(y, yRowStride, yPixelStride, mWidth, mHeight, mY);
+        copyIn(u, uvRowStride, uvPixelStride, mChromaWidth, mChromaHeight, mU);
+        copyIn(v, uvRowStride, uvPixelStride, mChromaWidth, mChromaHeight, mV);
+    }
+
+    public int getStripeCount() {
+        return mStripeCount;
+    }
+
+    /**
+     * Encode the frame set last.
+     *
+     * @param orientation Clockwise rotation to display it upright: 0, 90, 180 or 270.
+     * @return Size of the JPEG in bytes, for writeTo().
+     */
+    public int encode(int orientation) {
+        writeHeader(orientation);
+        if (mPool == null || mStripeCount == 1) {
+            encodeStripes(0, mStripeCount);
+        } else {
+            mPool.invoke(new StripeTask(0, mStripeCount));
+        }
+        int size = mHeaderLength + 2;
+        for (int s = 0; s < mStripeCount; s++) {
+            size += mStripes[s].mLength + (s > 0 ? 2 : 0);
+        }
+        return size;
+    }
+
+    /**
+     * Write the JPEG from the last encode() to out, which must hold its size.
+     *
+     * @return Size of the JPEG in bytes.
+     */
+    public int writeTo(byte[] out) {
+        System.arraycopy(mHeader, 0, out, 0, mHeaderLength);
+        int n = mHeaderLength;
+        for (int s = 0; s < mStripeCount; s++) {
+            if (s > 0) {
+                out[n++] = (byte) 0xFF;
+                out[n++] = (byte) (0xD0 + (s - 1) % 8);
+            }
+            System.arraycopy(mStripes[s].mBuffer, 0, out, n, mStripes[s].mLength);
+            n += mStripes[s].mLength;
+        }
+        out[n++] = (byte) 0xFF;
+        out[n++] = (byte) 0xD9;
+        return n;
+    }
+
+    // Splits its stripes in half until there is one left, then encodes it.
+    private class StripeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final int mStart, mEnd;
+
+        StripeTask(int start, int end) {
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (mEnd - mStart <= 1) {
+                encodeStripes(mStart, mEnd);
+                return;
+            }
+            int mid = (mStart + mEnd) >>> 1;
+            invokeAll(new StripeTask(mStart, mid), new StripeTask(mid, mEnd));
+        }
+    }
+
+    // Entropy coded data of one stripe, and its scratch blocks.
+    private static class Stripe {
+        byte[] mBuffer = new byte[64 * 1024];
+        int mLength;
+        long mBits;
+        int mBitCount;
+        final float[] mBlock = new float[64];
+        final int[] mCoefficients = new int[64];
+
+        void put(int code, int length) {
+            mBits = (mBits << length) | (code & ((1L << length) - 1));
+            mBitCount += length;
+            while (mBitCount >= 8) {
+                mBitCount -= 8;
+                int b = (int) (mBits >>> mBitCount) & 0xFF;
+                putByte(b);
+                if (b == 0xFF) {
+                    putByte(0);
+                }
+            }
+        }
+
+        // Pad the last byte with ones, as the standard asks before a marker.
+        void flush() {
+            if (mBitCount > 0) {
+                put(0x7F, 8 - mBitCount);
+            }
+            mBits = 0;
+        }
+
+        private void putByte(int b) {
+            if (mLength == mBuffer.length) {
+                byte[] bigger = new byte[mBuffer.length * 2];
+                System.arraycopy(mBuffer, 0, bigger, 0, mLength);
+                mBuffer = bigger;
+            }
+            mBuffer[mLength++] = (byte) b;
+        }
+    }
+
+    private void encodeStripes(int start, int end) {
+        for (int s = start; s < end; s++) {
+            Stripe stripe = mStripes[s];
+            stripe.mLength = 0;
+            stripe.mBits = 0;
+            stripe.mBitCount = 0;
+            int lastY = 0;
+            int lastU = 0;
+            int lastV = 0;
+            int rowEnd = Math.min(mMcusY, (s + 1) * STRIPE_MCU_ROWS);
+            for (int my = s * STRIPE_MCU_ROWS; my < rowEnd; my++) {
+                for (int mx = 0; mx < mMcusX; mx++) {
+                    int x = mx * MCU;
+                    int y = my * MCU;
+                    lastY = encodeBlock(stripe, mY, mWidth, mHeight, x, y, lastY, true);
+                    lastY = encodeBlock(stripe, mY, mWidth, mHeight, x + 8, y, lastY, true);
+                    lastY = encodeBlock(stripe, mY, mWidth, mHeight, x, y + 8, lastY, true);
+                    lastY = encodeBlock(stripe, mY, mWidth, mHeight, x + 8, y + 8, lastY, true);
+                    lastU = encodeBlock(stripe, mU, mChromaWidth, mChromaHeight, x / 2, y / 2, lastU, false);
+                    lastV = encodeBlock(stripe, mV, mChromaWidth, mChromaHeight, x / 2, y / 2, lastV, false);
+                }
+            }
+            stripe.flush();
+        }
+    }
+
+    // Transform, quantize and code the 8x8 block at (x0, y0) of plane, repeating the last
+    // row and column past its edges. Returns the block's DC value, to predict the next one.
+    private int encodeBlock(Stripe stripe, byte[] plane, int width, int height, int x0, int y0,
+            int lastDc, boolean luma) {
+        float[] b = stripe.mBlock;
+        if (x0 + 8 <= width && y0 + 8 <= height) {
+            for (int j = 0; j < 8; j++) {
+                int o = (y0 + j) * width + x0;
+                for (int i = 0; i < 8; i++) {
+                    b[j * 8 + i] = (plane[o + i] & 0xFF) - 128;
+                }
+            }
+        } else {
+            for (int j = 0; j < 8; j++) {
+                int o = Math.min(y0 + j, height - 1) * width;
+                for (int i = 0; i < 8; i++) {
+                    b[j * 8 + i] = (plane[o + Math.min(x0 + i, width - 1)] & 0xFF) - 128;
+                }
+            }
+        }
+        fdct(b);
+
+        float[] divisors = luma ? mLumaDivisors : mChromaDivisors;
+        int[] c = stripe.mCoefficients;
+        for (int k = 0; k < 64; k++) {
+            int i = ZIGZAG[k];
+            c[k] = (int) (b[i] * divisors[i] + 16384.5f) - 16384;
+        }
+
+        int dcTable = luma ? 0 : 1;
+        int acTable = luma ? 2 : 3;
+        putValue(stripe, mCodes[dcTable], mLengths[dcTable], 0, c[0] - lastDc);
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            if (c[k] == 0) {
+                run++;
+                continue;
+            }
+            while (run > 15) {
+                stripe.put(mCodes[acTable][0xF0], mLengths[acTable][0xF0]);
+                run -= 16;
+            }
+            putValue(stripe, mCodes[acTable], mLengths[acTable], run, c[k]);
+            run = 0;
+        }
+        if (run > 0) {
+            stripe.put(mCodes[acTable][0], mLengths[acTable][0]);
+        }
+        return c[0];
+    }
+
+    // Huffman code for (run, size of value), then the value's low bits, ones' complement if
+    // negative.
+    private static void putValue(Stripe stripe, int[] codes, int[] lengths, int run, int value) {
+        int magnitude = value < 0 ? -value : value;
+        int size = magnitude == 0 ? 0 : 32 - Integer.numberOfLeadingZeros(magnitude);
+        int symbol = (run << 4) | size;
+        stripe.put(codes[symbol], lengths[symbol]);
+        if (size > 0) {
+            stripe.put(value < 0 ? value - 1 : value, size);
+        }
+    }
+
+    // Forward DCT of an 8x8 block in place, Arai, Agui and Nakajima's method as in the IJG
+    // jfdctflt.c. Outputs are scaled up by the factors folded into the divisors.
+    private static void fdct(float[] d) {
+        for (int pass = 0; pass < 2; pass++) {
+            // Rows, then columns.
+            int step = pass == 0 ? 1 : 8;
+            int next = pass == 0 ? 8 : 1;
+            for (int n = 0; n < 8; n++) {
+                int o = n * next;
+                float t0 = d[o] + d[o + 7 * step];
+                float t7 = d[o] - d[o + 7 * step];
+                float t1 = d[o + step] + d[o + 6 * step];
+                float t6 = d[o + step] - d[o + 6 * step];
+                float t2 = d[o + 2 * step] + d[o + 5 * step];
+                float t5 = d[o + 2 * step] - d[o + 5 * step];
+                float t3 = d[o + 3 * step] + d[o + 4 * step];
+                float t4 = d[o + 3 * step] - d[o + 4 * step];
+
+                float t10 = t0 + t3;
+                float t13 = t0 - t3;
+                float t11 = t1 + t2;
+                float t12 = t1 - t2;
+                d[o] = t10 + t11;
+                d[o + 4 * step] = t10 - t11;
+                float z1 = (t12 + t13) * 0.707106781f;
+                d[o + 2 * step] = t13 + z1;
+                d[o + 6 * step] = t13 - z1;
+
+                t10 = t4 + t5;
+                t11 = t5 + t6;
+                t12 = t6 + t7;
+                float z5 = (t10 - t12) * 0.382683433f;
+                float z2 = 0.541196100f * t10 + z5;
+                float z4 = 1.306562965f * t12 + z5;
+                float z3 = t11 * 0.707106781f;
+                float z11 = t7 + z3;
+                float z13 = t7 - z3;
+                d[o + 5 * step] = z13 + z2;
+                d[o + 3 * step] = z13 - z2;
+                d[o + step] = z11 + z4;
+                d[o + 7 * step] = z11 - z4;
+            }
+        }
+    }
+
+    private void writeHeader(int orientation) {
+        mHeaderLength = 0;
+        putShort(0xFFD8);
+
+        // APP1 Exif with one IFD0 entry: orientation.
+        int exifOrientation = orientation == 90 ? 6 : orientation == 180 ? 3 : orientation == 270 ? 8 : 1;
+        putShort(0xFFE1);
+        putShort(2 + 6 + 8 + 2 + 12 + 4);
+        putBytes('E', 'x', 'i', 'f', 0, 0);
+        putBytes('M', 'M', 0, 42, 0, 0, 0, 8);
+        putShort(1);
+        putShort(0x0112);
+        putShort(3);
+        putBytes(0, 0, 0, 1);
+        putShort(exifOrientation);
+        putShort(0);
+        putBytes(0, 0, 0, 0);
+
+        putShort(0xFFDB);
+        putShort(2 + 2 * 65);
+        putByte(0);
+        for (int k = 0; k < 64; k++) {
+            putByte(mLumaQuant[k]);
+        }
+        putByte(1);
+        for (int k = 0; k < 64; k++) {
+            putByte(mChromaQuant[k]);
+        }
+
+        putShort(0xFFC0);
+        putShort(8 + 3 * 3);
+        putByte(8);
+        putShort(mHeight);
+        putShort(mWidth);
+        putByte(3);
+        putBytes(1, 0x22, 0);
+        putBytes(2, 0x11, 1);
+        putBytes(3, 0x11, 1);
+
+        putShort(0xFFC4);
+        putShort(2 + 4 * 17 + DC_VALUES.length * 2 + AC_LUMA_VALUES.length + AC_CHROMA_VALUES.length);
+        putTable(0x00, DC_LUMA_BITS, DC_VALUES);
+        putTable(0x01, DC_CHROMA_BITS, DC_VALUES);
+        putTable(0x10, AC_LUMA_BITS, AC_LUMA_VALUES);
+        putTable(0x11, AC_CHROMA_BITS, AC_CHROMA_VALUES);
+
+        // One restart interval per stripe.
+        putShort(0xFFDD);
+        putShort(4);
+        putShort(mMcusX * STRIPE_MCU_ROWS);
+
+        putShort(0xFFDA);
+        putShort(6 + 2 * 3);
+        putByte(3);
+        putBytes(1, 0x00);
+        putBytes(2, 0x11);
+        putBytes(3, 0x11);
+        putBytes(0, 63, 0);
+    }
+
+    private void putTable(int classAndId, int[] bits, int[] values) {
+        putByte(classAndId);
+        for (int i = 0; i < 16; i++) {
+            putByte(bits[i]);
+        }
+        for (int i = 0; i < values.length; i++) {
+            putByte(values[i]);
+        }
+    }
+
+    private void putShort(int v) {
+        putByte(v >> 8);
+        putByte(v);
+    }
+
+    private void putBytes(int... bytes) {
+        for (int b : bytes) {
+            putByte(b);
+        }
+    }
+
+    private void putByte(int b) {
+        mHeader[mHeaderLength++] = (byte) b;
+    }
+
+    // Canonical Huffman codes from the count of codes of each length (ITU T.81 Annex C).
+    private static void buildHuffman(int[] bits, int[] values, int[] codes, int[] lengths) {
+        int code = 0;
+        int k = 0;
+        for (int length = 1; length <= 16; length++) {
+            for (int i = 0; i < bits[length - 1]; i++) {
+                codes[values[k]] = code++;
+                lengths[values[k]] = length;
+                k++;
+            }
+            code <<= 1;
+        }
+    }
+
+    private static void copyIn(ByteBuffer src, int rowStride, int pixelStride,
+            int width, int height, byte[] dst) {
+        if (pixelStride == 1) {
+            ByteBuffer b = src.duplicate();
+            for (int y = 0; y < height; y++) {
+                b.position(y * rowStride);
+                b.get(dst, y * width, width);
+            }
+            return;
+        }
+        for (int y = 0; y < height; y++) {
+            int o = y * rowStride;
+            for (int x = 0; x < width; x++) {
+                dst[y * width + x] = src.get(o + x * pixelStride);
+            }
+        }
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.hardware.camera2.CaptureResult;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * SyntheticCamera : a CameraInterface with no camera behind it.
+ *
+ * Generates YUV frames, fake capture metadata (exposure, ISO, 3A states, a moving face) and
+ * JPEGs at a fixed frame rate and resolution, and drives MyCameraCallback the same way
+ * Api2Camera does. Frame content and metadata depend only on the frame number, so runs are
+ * repeatable: use it to measure callback, UI and saver cost without camera hardware.
+ */
+public class SyntheticCamera implements CameraInterface {
+    private static final String TAG = "DevCamera_SYNTH";
+
+    // Nth frame to log; put 10^6 if you don't want logging.
+    private static int LOG_NTH_FRAME = 30;
+    private static final int JPEG_QUALITY = 95;
+    // Sensor timestamps start here, so that no frame has timestamp 0.
+    private static final long FIRST_TIMESTAMP = 1000000000L;
+    // Made up static camera properties.
+    private static final int SENSOR_ORIENTATION = 90;
+    private static final float DIOPTER_HI = 10f;
+    private static final float[] FIELD_OF_VIEW = new float[]{66f, 52f};
+    // Frames it takes a triggered AF scan to lock.
+    private static final int AF_SCAN_FRAMES = 10;
+
+    private final Size mSize;
+    private final long mFrameDurationNanos;
+    private final FrameDataPublisher mFrameDataPublisher;
+    private final FrameMetadata mFrameMetadata = new FrameMetadata();
+    // Current frame in NV21 layout: Y plane then interleaved V/U plane.
+    private final byte[] mNv21;
+    private final ByteArrayOutputStream mJpegStream = new ByteArrayOutputStream();
+
+    MyCameraCallback mMyCameraCallback;
+
+    // Everything except the volatile flags runs on this thread.
+    private HandlerThread mOpsThread;
+    private Handler mOpsHandler;
+
+    volatile boolean mIsBursting = false;
+    private boolean mCaptureFace = false;
+    private boolean mStreaming = false;
+    private boolean mFirstFrameArrived = false;
+    private long mFrameNumber = 0;
+    private long mStreamStartUptimeMillis;
+    private int mAfState = CaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN;
+    private int mAfScanFramesLeft = 0;
+    // Time spent inside callbacks since the last log line.
+    private long mCallbackNanos = 0;
+
+    /**
+     * Constructor.
+     * @param size Resolution of generated frames and JPEGs.
+     * @param fps Frame rate.
+     */
+    public SyntheticCamera(Size size, float fps) {
+        mSize = size;
+        mFrameDurationNanos = (long) (1000000000L / fps);
+        mNv21 = new byte[size.getWidth() * size.getHeight() * 3 / 2];
+        // Neutral chroma; only luma changes from frame to frame.
+        Arrays.fill(mNv21, size.getWidth() * size.getHeight(), mNv21.length, (byte) 128);
+        // Whole frame is the active array.
+        mFrameDataPublisher = new FrameDataPublisher(0, 0, size.getWidth(), size.getHeight(),
+                SENSOR_ORIENTATION, false, DIOPTER_HI, 0f);
+
+        mOpsThread = new HandlerThread("SyntheticCameraThread");
+        mOpsThread.start();
+        mOpsHandler = new Handler(mOpsThread.getLooper());
+    }
+
+    @Override
+    public Size getPreviewSize() {
+        return mSize;
+    }
+
+    @Override
+    public float[] getFieldOfView() {
+        return FIELD_OF_VIEW;
+    }
+
+    @Override
+    public int getOrientation() {
+        return SENSOR_ORIENTATION;
+    }
+
+    @Override
+    public void openCamera() {
+        Log.v(TAG, "Opening synthetic camera " + mSize.getWidth() + " x " + mSize.getHeight());
+        mOpsHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                CameraTimer.begin(CameraTimer.HAL_OPEN);
+                CameraTimer.end(CameraTimer.HAL_OPEN);
+            }
+        });
+    }
+
+    @Override
+    public void startPreview(Surface surface) {
+        // Nothing is rendered to the surface; frames only go to the callbacks.
+        mOpsHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mStreaming) {
+                    return;
+                }
+                CameraTimer.begin(CameraTimer.SESSION_CONFIGURE);
+                CameraTimer.end(CameraTimer.SESSION_CONFIGURE);
+                mStreaming = true;
+                mStreamStartUptimeMillis = SystemClock.uptimeMillis();
+                mOpsHandler.post(mFrameRunnable);
+            }
+        });
+    }
+
+    @Override
+    public void closeCamera() {
+        Log.v(TAG, "Closing synthetic camera");
+        mOpsHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mStreaming = false;
+                mOpsHandler.removeCallbacks(mFrameRunnable);
+                mOpsThread.quitSafely();
+            }
+        });
+    }
+
+    @Override
+    public void takePicture() {
+        mOpsHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                deliverJpeg();
+            }
+        });
+    }
+
+    @Override
+    public void setBurst(boolean go) {
+        mIsBursting = go;
+    }
+
+    @Override
+    public void setCallback(MyCameraCallback callback) {
+        mMyCameraCallback = callback;
+    }
+
+    @Override
+    public boolean isRawAvailable() {
+        return false;
+    }
+
+    @Override
+    public boolean isReprocessingAvailable() {
+        return false;
+    }
+
+    @Override
+    public boolean canTakePicture() {
+        // takePicture() delivers a synthetic JPEG, so the saver can be driven without a device.
+        return true;
+    }
+
+    @Override
+    public int maxShotsInFlight() {
+        // deliverJpeg() makes one JPEG at a time on the ops thread.
+        return 1;
+    }
+
+    @Override
+    public void triggerAFScan() {
+        mOpsHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mAfState = CaptureResult.CONTROL_AF_STATE_ACTIVE_SCAN;
+                mAfScanFramesLeft = AF_SCAN_FRAMES;
+            }
+        });
+    }
+
+    @Override
+    public void setCAF() {
+        mOpsHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mAfState = CaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN;
+                mAfScanFramesLeft = 0;
+            }
+        });
+    }
+
+    @Override
+    public void setCaptureFlow(Boolean yuv1, Boolean yuv2, Boolean raw10, Boolean nr, Boolean edge, Boolean face) {
+        if (face != null) mCaptureFace = face;
+        mMyCameraCallback.setNoiseEdgeText("NR FAST", "Edge FAST");
+    }
+
+    @Override
+    public void setReprocessingFlow(Boolean nr, Boolean edge) {
+        mMyCameraCallback.setNoiseEdgeTextForReprocessing("NR HiQ", "Edge HiQ");
+    }
+
+    private final Runnable mFrameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!mStreaming) {
+                return;
+            }
+            produceFrame();
+            mFrameNumber++;
+            // Schedule against the stream start so that slow callbacks don't shift the cadence.
+            mOpsHandler.postAtTime(mFrameRunnable,
+                    mStreamStartUptimeMillis + mFrameNumber * mFrameDurationNanos / 1000000);
+        }
+    };
+
+    private void produceFrame() {
+        fillLuma(mFrameNumber);
+        fillMetadata(mFrameNumber);
+
+        long t0 = System.nanoTime();
+        if (!mFirstFrameArrived) {
+            mFirstFrameArrived = true;
+            long dt = CameraTimer.sinceLaunchMillis();
+            long camera_dt = CameraTimer.halWaitMillis();
+            Log.v(TAG, "App control to first frame: (" + dt + " ms)");
+            CameraTimer.logLaunch();
+            mMyCameraCallback.receivedFirstFrame();
+            mMyCameraCallback.performanceDataAvailable((int) dt, (int) camera_dt, null);
+        }
+        mFrameDataPublisher.publish(mFrameMetadata, mMyCameraCallback);
+        if (mIsBursting) {
+            deliverJpeg();
+        }
+        mCallbackNanos += System.nanoTime() - t0;
+
+        if ((mFrameNumber + 1) % LOG_NTH_FRAME == 0) {
+            Log.v(TAG, String.format("Synthetic frame #%d, callbacks took %.2f ms/frame",
+                    mFrameNumber + 1, mCallbackNanos * 0.000001 / LOG_NTH_FRAME));
+            mCallbackNanos = 0;
+        }
+    }
+
+    private void deliverJpeg() {
+        int w = mSize.getWidth();
+        int h = mSize.getHeight();
+        mJpegStream.reset();
+        YuvImage yuv = new YuvImage(mNv21, ImageFormat.NV21, w, h, null);
+        yuv.compressToJpeg(new Rect(0, 0, w, h), JPEG_QUALITY, mJpegStream);
+        mMyCameraCallback.jpegAvailable(mJpegStream.toByteArray(), w, h, mFrameMetadata.timestamp);
+    }
+
+    // Diagonal gradient that moves 4 pixels per frame.
+    private void fillLuma(long frameNumber) {
+        int w = mSize.getWidth();
+        int h = mSize.getHeight();
+        int shift = (int) (frameNumber * 4);
+        for (int y = 0; y < h; y++) {
+            int row = y * w;
+            int base = y + shift;
+            for (int x = 0; x < w; x++) {
+                mNv21[row + x] = (byte) (x + base);
+            }
+        }
+    }
+
+    private void fillMetadata(long frameNumber) {
+        // Slow sinusoidal sweep of exposure and focus, with ISO moving the other way.
+        double phase = 2 * Math.PI * frameNumber * mFrameDurationNanos / 4000000000.0;
+        float sweep = (float) (0.5 + 0.5 * Math.sin(phase));
+
+        FrameMetadata m = mFrameMetadata;
+        m.frameNumber = frameNumber;
+        m.timestamp = FIRST_TIMESTAMP + frameNumber * mFrameDurationNanos;
+        m.frameDuration = mFrameDurationNanos;
+        m.exposureTime = 1000000L + (long) (sweep * (mFrameDurationNanos - 1000000L));
+        m.focusDistance = DIOPTER_HI * (1f - sweep);
+        m.iso = 800 - (int) (sweep * 700);
+        m.aeState = CaptureResult.CONTROL_AE_STATE_CONVERGED;
+        m.awbState = CaptureResult.CONTROL_AWB_STATE_CONVERGED;
+        if (mAfScanFramesLeft > 0 && --mAfScanFramesLeft == 0) {
+            mAfState = CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED;
+        }
+        m.afState = mAfState;
+
+        if (!mCaptureFace) {
+            m.setFaceCount(0);
+            return;
+        }
+        // One face sliding back and forth across the middle of the frame.
+        int w = mSize.getWidth();
+        int h = mSize.getHeight();
+        int size = h / 4;
+        int left = (int) ((w - size) * sweep);
+        int top = (h - size) / 2;
+        m.setFaceCount(1);
+        int[] c = m.faceCoords;
+        c[0] = left;
+        c[1] = top;
+        c[2] = left + size;
+        c[3] = top + size;
+        c[4] = left + size / 3;
+        c[5] = top + size / 3;
+        c[6] = left + 2 * size / 3;
+        c[7] = top + size / 3;
+        c[8] = left + size / 2;
+        c[9] = top + 3 * size / 4;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.media.ExifInterface;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Makes rotated thumbnails of JPEGs while reusing its memory from shot to shot.
+ *
+ * Uses the EXIF thumbnail when there is one (API 24+, where ExifInterface reads streams),
+ * otherwise decodes at the largest power of two downsample that still covers the target size.
+ * Decoding goes into a reused inBitmap with a reused inTempStorage buffer, and the rotation is
+ * drawn straight into an output Bitmap from a small pool. Give outputs back with recycle().
+ *
+ * Thread safe, but decodes one JPEG at a time.
+ */
+public class ThumbnailDecoder {
+    private static final String TAG = "DevCamera_THUMB";
+
+    private static final int TEMP_STORAGE_SIZE = 32 * 1024;
+    // Output Bitmaps kept for reuse.
+    private static final int POOL_SIZE = 3;
+
+    private final int mTargetSize;
+    private final int mRotation;
+
+    private final byte[] mTempStorage = new byte[TEMP_STORAGE_SIZE];
+    private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+    // Last decode target, reused as inBitmap when it is big enough.
+    private Bitmap mDecodeTarget;
+    private final ArrayList<Bitmap> mFreeOutputs = new ArrayList<Bitmap>(POOL_SIZE);
+    private final Canvas mCanvas = new Canvas();
+    private final Matrix mMatrix = new Matrix();
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    /**
+     * @param targetSize Smallest acceptable thumbnail width and height, before rotation.
+     * @param rotation Clockwise rotation to apply, a multiple of 90 degrees.
+     */
+    public ThumbnailDecoder(int targetSize, int rotation) {
+        mTargetSize = targetSize;
+        mRotation = rotation;
+    }
+
+    /**
+     * Return a rotated thumbnail of jpeg, or null if it could not be decoded.
+     */
+    public Bitmap decode(byte[] jpeg) {
+        return decode(jpeg, jpeg.length);
+    }
+
+    /**
+     * Same, for a JPEG in the first length bytes of a reused array.
+     */
+    public synchronized Bitmap decode(byte[] jpeg, int length) {
+        long t0 = SystemClock.uptimeMillis();
+        boolean fromExif = true;
+        Bitmap decoded = decodeExifThumbnail(jpeg, length);
+        if (decoded == null) {
+            fromExif = false;
+            decoded = decodeSampled(jpeg, length);
+        }
+        if (decoded == null) {
+            Log.e(TAG, "Could not decode JPEG thumbnail");
+            return null;
+        }
+        Bitmap out = rotate(decoded);
+        Log.v(TAG, String.format("%dx%d thumbnail from %s in %d ms", out.getWidth(), out.getHeight(),
+                fromExif ? "EXIF" : "sampled decode", SystemClock.uptimeMillis() - t0));
+        return out;
+    }
+
+    /**
+     * Give a Bitmap from decode() back for reuse.
+     */
+    public synchronized void recycle(Bitmap b) {
+        if (b != null && mFreeOutputs.size() < POOL_SIZE) {
+            mFreeOutputs.add(b);
+        }
+    }
+
+    private Bitmap decodeExifThumbnail(byte[] jpeg, int length) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return null;
+        }
+        byte[] thumb;
+        try {
+            ExifInterface exif = new ExifInterface(new ByteArrayInputStream(jpeg, 0, length));
+            thumb = exif.getThumbnail();
+        } catch (IOException e) {
+            return null;
+        }
+        if (thumb == null) {
+            return null;
+        }
+        mOptions.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(thumb, 0, thumb.length, mOptions);
+        // Embedded thumbnails are often 160x120; only use them if they are big enough.
+        if (Math.min(mOptions.outWidth, mOptions.outHeight) < mTargetSize) {
+            return null;
+        }
+        return decodeInto(thumb, thumb.length, 1);
+    }
+
+    private Bitmap decodeSampled(byte[] jpeg, int length) {
+        mOptions.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpeg, 0, length, mOptions);
+        int shortSide = Math.min(mOptions.outWidth, mOptions.outHeight);
+        if (shortSide <= 0) {
+            return null;
+        }
+        int sample = 1;
+        while (shortSide / (sample * 2) >= mTargetSize) {
+            sample *= 2;
+        }
+        return decodeInto(jpeg, length, sample);
+    }
+
+    // Decode with inSampleSize, reusing mDecodeTarget; outWidth/outHeight must be set.
+    private Bitmap decodeInto(byte[] data, int length, int sample) {
+        int w = (mOptions.outWidth + sample - 1) / sample;
+        int h = (mOptions.outHeight + sample - 1) / sample;
+        mOptions.inJustDecodeBounds = false;
+        mOptions.inSampleSize = sample;
+        mOptions.inTempStorage = mTempStorage;
+        mOptions.inMutable = true;
+        mOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        mOptions.inBitmap = mDecodeTarget != null && mDecodeTarget.getAllocationByteCount() >= w * h * 4
+                ? mDecodeTarget : null;
+        Bitmap b;
+        try {
+            b = BitmapFactory.decodeByteArray(data, 0, length, mOptions);
+        } catch (IllegalArgumentException e) {
+            // inBitmap could not be reused after all.
+            mOptions.inBitmap = null;
+            b = BitmapFactory.decodeByteArray(data, 0, length, mOptions);
+        }
+        if (b != null) {
+            mDecodeTarget = b;
+        }
+        return b;
+    }
+
+    // Draw src rotated into a pooled output Bitmap.
+    private Bitmap rotate(Bitmap src) {
+        int w = src.getWidth();
+        int h = src.getHeight();
+        boolean swap = mRotation % 180 != 0;
+        int outW = swap ? h : w;
+        int outH = swap ? w : h;
+
+        Bitmap out = null;
+        for (int i = mFreeOutputs.size() - 1; i >= 0; i--) {
+            Bitmap b = mFreeOutputs.get(i);
+            if (b.getWidth() == outW && b.getHeight() == outH) {
+                out = mFreeOutputs.remove(i);
+                break;
+            }
+        }
+        if (out == null) {
+            out = Bitmap.createBitmap(outW, outH, Bitmap.Config.ARGB_8888);
+        }
+
+        // Rotate about the origin, then move the result back into view.
+        mMatrix.setRotate(mRotation);
+        switch (((mRotation % 360) + 360) % 360) {
+            case 90:
+                mMatrix.postTranslate(h, 0);
+                break;
+            case 180:
+                mMatrix.postTranslate(w, h);
+                break;
+            case 270:
+                mMatrix.postTranslate(0, w);
+                break;
+        }
+        mCanvas.setBitmap(out);
+        mCanvas.drawBitmap(src, mMatrix, mPaint);
+        mCanvas.setBitmap(null);
+        return out;
+    }
+}
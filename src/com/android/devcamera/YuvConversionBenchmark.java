@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera;
+
+import android.media.Image;
+import android.util.Log;
+
+/**
+ * Times YuvToArgbConverter on live camera images and logs its throughput.
+ */
+public class YuvConversionBenchmark {
+    private static final String TAG = "DevCamera_YUVBENCH";
+
+    private final String mName;
+    private final int mLogEvery;
+    private final YuvToArgbConverter mSerial = new YuvToArgbConverter(1);
+    private final YuvToArgbConverter mParallel =
+            new YuvToArgbConverter(Runtime.getRuntime().availableProcessors());
+
+    private int mFrames = 0;
+    private long mPixels = 0;
+    private long mSerialNanos = 0;
+    private long mParallelNanos = 0;
+
+    /**
+     * @param name Stream name for the log.
+     * @param logEvery Log and reset the totals every this many frames.
+     */
+    public YuvConversionBenchmark(String name, int logEvery) {
+        mName = name;
+        mLogEvery = logEvery;
+    }
+
+    /**
+     * Convert img with rotation, once single threaded and once on the fork-join pool.
+     */
+    public void run(Image img) {
+        long t0 = System.nanoTime();
+        mSerial.recycle(BitmapUtility.convertYuvImage(img, mSerial, true));
+        long t1 = System.nanoTime();
+        mParallel.recycle(BitmapUtility.convertYuvImage(img, mParallel, true));
+        long t2 = System.nanoTime();
+
+        mSerialNanos += t1 - t0;
+        mParallelNanos += t2 - t1;
+        mPixels += img.getWidth() * img.getHeight();
+        if (++mFrames == mLogEvery) {
+            Log.v(TAG, String.format("%s %dx%d YUV->ARGB rotated: serial %.2f ms/frame %.1f MPix/s, " +
+                    "parallel %.2f ms/frame %.1f MPix/s",
+                    mName, img.getWidth(), img.getHeight(),
+                    mSerialNanos * 0.000001 / mFrames, mPixels * 1000.0 / mSerialNanos,
+                    mParallelNanos * 0.000001 / mFrames, mPixels * 1000.0 / mParallelNanos));
+            mFrames = 0;
+            mPixels = 0;
+            mSerialNanos = 0;
+            mParallelNanos = 0;
+        }
+    }
+
+    public void shutdown() {
+        mSerial.shutdown();
+        mParallel.shutdown();
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Converts YUV_420_888 planes to ARGB_8888 pixels, optionally rotated 90 degrees clockwise.
+ *
+ * Honors row and pixel strides, so it works on any plane layout a camera produces (I420,
+ * NV12, NV21, padded rows). Uses full range BT.601 (JFIF) lookup tables, with no per-pixel
+ * floating point and no allocation on the single threaded path. Output arrays come from a
+ * small pool; recycle() them when done. With parallelism > 1, rows are split across a
+ * ForkJoinPool.
+ *
+ * Only uses java.* so it can be benchmarked off device.
+ */
+public class YuvToArgbConverter {
+    // Output arrays kept for reuse.
+    private static final int POOL_SIZE = 3;
+    // Don't split below this many rows per task.
+    private static final int MIN_ROWS_PER_TASK = 16;
+
+    // Chroma contributions, indexed by the unsigned U or V sample.
+    private static final int[] R_V = new int[256];
+    private static final int[] G_U = new int[256];
+    private static final int[] G_V = new int[256];
+    private static final int[] B_U = new int[256];
+    // Clamps Y + chroma contribution to 0..255, indexed with CLAMP_OFFSET added.
+    private static final int CLAMP_OFFSET = 512;
+    private static final int[] CLAMP = new int[256 + 2 * CLAMP_OFFSET];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int c = i - 128;
+            R_V[i] = Math.round(1.402f * c);
+            G_U[i] = Math.round(-0.344136f * c);
+            G_V[i] = Math.round(-0.714136f * c);
+            B_U[i] = Math.round(1.772f * c);
+        }
+        for (int i = 0; i < CLAMP.length; i++) {
+            CLAMP[i] = Math.min(255, Math.max(0, i - CLAMP_OFFSET));
+        }
+    }
+
+    private final ForkJoinPool mPool;
+    private final int mParallelism;
+    private final ArrayDeque<int[]> mFreeBuffers = new ArrayDeque<int[]>(POOL_SIZE);
+
+    /**
+     * @param parallelism Threads to convert with; 1 converts on the calling thread.
+     */
+    public YuvToArgbConverter(int parallelism) {
+        mParallelism = parallelism;
+        mPool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+    }
+
+    /**
+     * Get an output array of size pixels, from the pool if possible.
+     */
+    public synchronized int[] obtain(int size) {
+        int[] buf = mFreeBuffers.pollFirst();
+        while (buf != null && buf.length != size) {
+            // Stream size changed; let the old arrays go.
+            buf = mFreeBuffers.pollFirst();
+        }
+        return buf != null ? buf : new int[size];
+    }
+
+    /**
+     * Return an array from obtain() or convert() to the pool.
+     */
+    public synchronized void recycle(int[] buf) {
+        if (mFreeBuffers.size() < POOL_SIZE) {
+            mFreeBuffers.addLast(buf);
+        }
+    }
+
+    /**
+     * Convert into a pooled array. Output is width x height pixels, or height x width if rotated.
+     */
+    public int[] convert(ByteBuffer y, int yRowStride, int yPixelStride,
+            ByteBuffer u, ByteBuffer v, int uvRowStride, int uvPixelStride,
+            int width, int height, boolean rotate90) {
+        int[] out = obtain(width * height);
+        convert(y, yRowStride, yPixelStride, u, v, uvRowStride, uvPixelStride,
+                width, height, rotate90, out);
+        return out;
+    }
+
+    /**
+     * Convert into out, which must hold width * height pixels.
+     */
+    public void convert(ByteBuffer y, int yRowStride, int yPixelStride,
+            ByteBuffer u, ByteBuffer v, int uvRowStride, int uvPixelStride,
+            int width, int height, boolean rotate90, int[] out) {
+        if (mPool == null || height < 2 * MIN_ROWS_PER_TASK) {
+            convertRows(y, yRowStride, yPixelStride, u, v, uvRowStride, uvPixelStride,
+                    width, height, rotate90, out, 0, height);
+        } else {
+            // A few tasks per thread, so that a slow thread doesn't hold up the rest.
+            int minRows = Math.max(MIN_ROWS_PER_TASK, height / (4 * mParallelism));
+            mPool.invoke(new RowsTask(y, yRowStride, yPixelStride, u, v, uvRowStride, uvPixelStride,
+                    width, height, rotate90, out, 0, height, minRows));
+        }
+    }
+
+    /**
+     * Stop the worker threads, if any.
+     */
+    public void shutdown() {
+        if (mPool != null) {
+            mPool.shutdown();
+        }
+    }
+
+    // Convert rows [rowStart, rowEnd).
+    private static void convertRows(ByteBuffer yBuf, int yRowStride, int yPixelStride,
+            ByteBuffer uBuf, ByteBuffer vBuf, int uvRowStride, int uvPixelStride,
+            int width, int height, boolean rotate90, int[] out, int rowStart, int rowEnd) {
+        for (int row = rowStart; row < rowEnd; row++) {
+            int yRow = row * yRowStride;
+            int uvRow = (row >> 1) * uvRowStride;
+            // Where pixel x of this row goes, and the step to pixel x + 1.
+            int o;
+            int step;
+            if (rotate90) {
+                // 90 degrees clockwise: (x, row) -> (height - 1 - row, x) in a height wide image.
+                o = height - 1 - row;
+                step = height;
+            } else {
+                o = row * width;
+                step = 1;
+            }
+            for (int x = 0; x < width; x++) {
+                int uvIndex = uvRow + (x >> 1) * uvPixelStride;
+                int yy = (yBuf.get(yRow + x * yPixelStride) & 0xff) + CLAMP_OFFSET;
+                int uu = uBuf.get(uvIndex) & 0xff;
+                int vv = vBuf.get(uvIndex) & 0xff;
+                out[o] = 0xff000000
+                        | CLAMP[yy + R_V[vv]] << 16
+                        | CLAMP[yy + G_U[uu] + G_V[vv]] << 8
+                        | CLAMP[yy + B_U[uu]];
+                o += step;
+            }
+        }
+    }
+
+    // Splits its rows in half until there are few enough, then converts them.
+    private static class RowsTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final ByteBuffer mY, mU, mV;
+        final int mYRowStride, mYPixelStride, mUvRowStride, mUvPixelStride;
+        final int mWidth, mHeight;
+        final boolean mRotate90;
+        final int[] mOut;
+        final int mRowStart, mRowEnd, mMinRows;
+
+        RowsTask(ByteBuffer y, int yRowStride, int yPixelStride,
+                ByteBuffer u, ByteBuffer v, int uvRowStride, int uvPixelStride,
+                int width, int height, boolean rotate90, int[] out,
+                int rowStart, int rowEnd, int minRows) {
+            mY = y;
+            mYRowStride = yRowStride;
+            mYPixelStride = yPixelStride;
+            mU = u;
+            mV = v;
+            mUvRowStride = uvRowStride;
+            mUvPixelStride = uvPixelStride;
+            mWidth = width;
+            mHeight = height;
+            mRotate90 = rotate90;
+            mOut = out;
+            mRowStart = rowStart;
+            mRowEnd = rowEnd;
+            mMinRows = minRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (mRowEnd - mRowStart <= mMinRows) {
+                // ByteBuffer absolute gets don't touch position, so the buffers can be shared.
+                convertRows(mY, mYRowStride, mYPixelStride, mU, mV, mUvRowStride, mUvPixelStride,
+                        mWidth, mHeight, mRotate90, mOut, mRowStart, mRowEnd);
+                return;
+            }
+            int mid = (mRowStart + mRowEnd) >>> 1;
+            invokeAll(split(mRowStart, mid), split(mid, mRowEnd));
+        }
+
+        private RowsTask split(int rowStart, int rowEnd) {
+            return new RowsTask(mY, mYRowStride, mYPixelStride, mU, mV, mUvRowStride, mUvPixelStride,
+                    mWidth, mHeight, mRotate90, mOut, rowStart, rowEnd, mMinRows);
+        }
+    }
+}
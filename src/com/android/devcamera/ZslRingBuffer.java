@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.devcamera;
+
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.media.Image;
+
+/**
+ * Zero shutter lag history: the last N YUV images, each paired with its TotalCaptureResult.
+ *
+ * Images and capture results arrive on different callbacks and in no particular order, so
+ * they are matched by SENSOR_TIMESTAMP, which is identical to Image.getTimestamp() for
+ * the same frame. Slots are reused in ring order and the oldest slot is evicted (and its
+ * Image closed) when the ring is full, so at most capacity Images are ever held and the
+ * ImageReader is never starved.
+ *
+ * Each frame also carries a sharpness score (from SharpnessScorer) and the camera motion over
+ * its exposure, so the shutter can pick the best of the last few frames rather than the
+ * nearest one. Motion the gyro had not caught up with when the result came in can be filled
+ * in later with updateUnknownMotion().
+ *
+ * When several rings share one ImageReader, trimImages() keeps their total within the
+ * reader's buffers.
+ *
+ * Not thread safe: only use this from the camera operations thread.
+ */
+public class ZslRingBuffer {
+    /**
+     * A complete ZSL frame removed from the ring. Caller owns the Image.
+     */
+    public static class Frame {
+        public final Image image;
+        public final TotalCaptureResult result;
+        public final long timestamp;
+        // Camera motion over the exposure, in radians; NaN if not known.
+        public final float motion;
+        public final float sharpness;
+
+        Frame(Image image, TotalCaptureResult result, long timestamp, float motion,
+                float sharpness) {
+            this.image = image;
+            this.result = result;
+            this.timestamp = timestamp;
+            this.motion = motion;
+            this.sharpness = sharpness;
+        }
+    }
+
+    private final int mCapacity;
+    private final long[] mTimestamps; // 0 means slot is empty.
+    private final Image[] mImages;
+    private final TotalCaptureResult[] mResults;
+    private final float[] mMotion;
+    // First row exposure start to last row exposure end, from the capture result.
+    private final long[] mExposureSpans;
+    private final float[] mSharpness;
+    // Next slot to write; when the ring is full this is also the oldest slot.
+    private int mHead = 0;
+
+    public ZslRingBuffer(int capacity) {
+        mCapacity = capacity;
+        mTimestamps = new long[capacity];
+        mImages = new Image[capacity];
+        mResults = new TotalCaptureResult[capacity];
+        mMotion = new float[capacity];
+        mExposureSpans = new long[capacity];
+        mSharpness = new float[capacity];
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Add a newly acquired image. The ring takes ownership of it.
+     *
+     * @param sharpness Sharpness score of the image; higher is sharper.
+     */
+    public void addImage(Image image, float sharpness) {
+        int slot = slotFor(image.getTimestamp());
+        if (mImages[slot] != null) {
+            // Duplicate timestamp; should not happen, but don't leak the old buffer.
+            mImages[slot].close();
+        }
+        mImages[slot] = image;
+        mSharpness[slot] = sharpness;
+    }
+
+    /**
+     * Add a capture result. It will be paired with the image of the same SENSOR_TIMESTAMP.
+     *
+     * @param motion Camera motion over the frame's exposure in radians, or NaN if not known.
+     * @param exposureSpan Nanoseconds from the first row starting exposure to the last row
+     *                     finishing, i.e. rolling shutter skew plus exposure time.
+     */
+    public void addResult(TotalCaptureResult result, float motion, long exposureSpan) {
+        Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        if (timestamp == null) {
+            return;
+        }
+        int slot = slotFor(timestamp);
+        mResults[slot] = result;
+        mMotion[slot] = motion;
+        mExposureSpans[slot] = exposureSpan;
+    }
+
+    /**
+     * Look up the motion of frames that don't know it yet, e.g. long exposures the gyro had
+     * not covered when their result arrived.
+     *
+     * @param toGyroTime Offset from the sensor time base to the gyro's.
+     */
+    public void updateUnknownMotion(GyroHistory history, long toGyroTime) {
+        for (int i = 0; i < mCapacity; i++) {
+            if (mResults[i] != null && Float.isNaN(mMotion[i])) {
+                long start = mTimestamps[i] + toGyroTime;
+                mMotion[i] = history.motion(start, start + mExposureSpans[i]);
+            }
+        }
+    }
+
+    /**
+     * Whether the image of this timestamp is in the ring.
+     */
+    public boolean hasImage(long timestamp) {
+        for (int i = 0; i < mCapacity; i++) {
+            if (mImages[i] != null && mTimestamps[i] == timestamp) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Number of images held, complete or not.
+     */
+    public int imageCount() {
+        int n = 0;
+        for (int i = 0; i < mCapacity; i++) {
+            if (mImages[i] != null) n++;
+        }
+        return n;
+    }
+
+    /**
+     * Evict the oldest frames until at most max images are held.
+     */
+    public void trimImages(int max) {
+        int excess = imageCount() - Math.max(0, max);
+        // From mHead on, slots are in the order they were claimed, oldest first.
+        for (int n = 0; n < mCapacity && excess > 0; n++) {
+            int slot = (mHead + n) % mCapacity;
+            if (mImages[slot] != null) {
+                mImages[slot].close();
+                clearSlot(slot);
+                excess--;
+            }
+        }
+    }
+
+    /**
+     * Number of frames which have both an image and a capture result.
+     */
+    public int completeCount() {
+        int n = 0;
+        for (int i = 0; i < mCapacity; i++) {
+            if (isComplete(i)) n++;
+        }
+        return n;
+    }
+
+    /**
+     * Remove and return the complete frame whose timestamp is closest to the given time,
+     * or null if no complete frame is available. Timestamp must be in the sensor time base.
+     */
+    public Frame takeClosest(long timestamp) {
+        int best = -1;
+        long bestDistance = Long.MAX_VALUE;
+        for (int i = 0; i < mCapacity; i++) {
+            if (!isComplete(i)) continue;
+            long distance = Math.abs(mTimestamps[i] - timestamp);
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = i;
+            }
+        }
+        return best < 0 ? null : take(best);
+    }
+
+    /**
+     * Remove and return the sharpest complete frame within window of the given time, skipping
+     * frames known to have moved more than maxMotion radians unless all of them did. Falls
+     * back to the closest frame if none is within window; null if no complete frame is
+     * available. Timestamp must be in the sensor time base.
+     */
+    public Frame takeSharpest(long timestamp, long window, float maxMotion) {
+        int best = -1;
+        boolean bestSteady = false;
+        for (int i = 0; i < mCapacity; i++) {
+            if (!isComplete(i) || Math.abs(mTimestamps[i] - timestamp) > window) continue;
+            // NaN motion (unknown) counts as steady.
+            boolean steady = !(mMotion[i] > maxMotion);
+            if (best < 0 || (steady && !bestSteady)
+                    || (steady == bestSteady && mSharpness[i] > mSharpness[best])) {
+                best = i;
+                bestSteady = steady;
+            }
+        }
+        return best < 0 ? takeClosest(timestamp) : take(best);
+    }
+
+    /**
+     * Remove and return the complete frame with exactly this timestamp, or null.
+     */
+    public Frame take(long timestamp) {
+        for (int i = 0; i < mCapacity; i++) {
+            if (isComplete(i) && mTimestamps[i] == timestamp) {
+                return take(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Remove and return the most recent complete frame, or null if there is none.
+     */
+    public Frame takeNewest() {
+        return takeClosest(Long.MAX_VALUE);
+    }
+
+    /**
+     * Close all held images and empty the ring.
+     */
+    public void clear() {
+        for (int i = 0; i < mCapacity; i++) {
+            if (mImages[i] != null) {
+                mImages[i].close();
+            }
+            clearSlot(i);
+        }
+        mHead = 0;
+    }
+
+    private boolean isComplete(int slot) {
+        return mImages[slot] != null && mResults[slot] != null;
+    }
+
+    private Frame take(int slot) {
+        Frame frame = new Frame(mImages[slot], mResults[slot], mTimestamps[slot], mMotion[slot],
+                mSharpness[slot]);
+        clearSlot(slot);
+        return frame;
+    }
+
+    private void clearSlot(int slot) {
+        mTimestamps[slot] = 0;
+        mImages[slot] = null;
+        mResults[slot] = null;
+        mMotion[slot] = Float.NaN;
+        mExposureSpans[slot] = 0;
+        mSharpness[slot] = 0f;
+    }
+
+    // Find the slot holding this timestamp, or claim the oldest slot for it.
+    private int slotFor(long timestamp) {
+        for (int i = 0; i < mCapacity; i++) {
+            if (mTimestamps[i] == timestamp) {
+                return i;
+            }
+        }
+        int slot = mHead;
+        mHead = (mHead + 1) % mCapacity;
+        if (mImages[slot] != null) {
+            mImages[slot].close();
+        }
+        clearSlot(slot);
+        mTimestamps[slot] = timestamp;
+        return slot;
+    }
+}